@@ -0,0 +1,60 @@
+import java.util.Arrays;
+
+/**
+ * Aggregate kernels over a contiguous block of primitive values.
+ *
+ * MIN and MAX are plain scalar loops unrolled by four with four independent accumulators, so
+ * consecutive steps do not wait on each other's result; the accumulators are combined at the
+ * end and a scalar tail handles the remainder. SUM and AVERAGE keep the compensated summation
+ * of DoubleStream.sum(), run directly on the primitive block, so their results are exactly
+ * those of summing the cell values one by one (0.1 + 0.2 + 0.3 gives 0.6).
+ * Blocks only contain numeric cells, so no masking is needed inside the loops.
+ */
+public final class Aggregates {
+    private Aggregates() {
+    }
+
+    public static double sum(double[] values, int count) {
+        return Arrays.stream(values, 0, count).sum();
+    }
+
+    public static double min(double[] values, int count) {
+        if (count == 0) {
+            return 0;
+        }
+        double m0 = values[0], m1 = m0, m2 = m0, m3 = m0;
+        int i = 0;
+        for (int limit = count & ~3; i < limit; i += 4) {
+            m0 = Math.min(m0, values[i]);
+            m1 = Math.min(m1, values[i + 1]);
+            m2 = Math.min(m2, values[i + 2]);
+            m3 = Math.min(m3, values[i + 3]);
+        }
+        for (; i < count; i++) {
+            m0 = Math.min(m0, values[i]);
+        }
+        return Math.min(Math.min(m0, m1), Math.min(m2, m3));
+    }
+
+    public static double max(double[] values, int count) {
+        if (count == 0) {
+            return 0;
+        }
+        double m0 = values[0], m1 = m0, m2 = m0, m3 = m0;
+        int i = 0;
+        for (int limit = count & ~3; i < limit; i += 4) {
+            m0 = Math.max(m0, values[i]);
+            m1 = Math.max(m1, values[i + 1]);
+            m2 = Math.max(m2, values[i + 2]);
+            m3 = Math.max(m3, values[i + 3]);
+        }
+        for (; i < count; i++) {
+            m0 = Math.max(m0, values[i]);
+        }
+        return Math.max(Math.max(m0, m1), Math.max(m2, m3));
+    }
+
+    public static double average(double[] values, int count) {
+        return count == 0 ? 0 : sum(values, count) / count;
+    }
+}
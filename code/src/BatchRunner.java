@@ -0,0 +1,288 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Non-interactive mode: runs a stream of commands, one per line, without menus or prompts.
+ *
+ *   set A1 <content>             set one cell
+ *   set-range A1 1;2;3|4;5;6     set a block starting at A1 (';' between cells, '|' between rows)
+ *   get A1                       print "A1<TAB>value"
+ *   load <path>                  replace the sheet with a file (a workbook for a .s2w path),
+ *                                attaching its journal like an interactive load
+ *   load-rows 100:200 <path>     replace the sheet with those rows of a file and the rows they read
+ *   save <path>                  save the sheet and journal it (its whole workbook for a .s2w path)
+ *   sheet <name>                 switch to a sheet of the workbook, adding it if needed
+ *   recalc                       recalculate all formulas
+ *   dump                         print all evaluated values in S2V layout
+ *   export <path>                write evaluated values as CSV (TSV for a .tsv path)
+ *   export-range A1:D20 <path>   same, for a rectangle
+ *   analyze [n]                  print a dependency analysis with the top n entries (default 10)
+ *   fill A1 B1:B100              fill a range from a cell (relative references move, $A$1 stays)
+ *   fill-down A1:C100            fill each column from its top cell
+ *   fill-right A1:F3             fill each row from its leftmost cell
+ *   undo / redo                  undo or redo the last edit batch
+ *
+ * Blank lines and lines starting with '#' are ignored. Consecutive set/set-range commands
+ * are applied as one batch, so dependents are recalculated once per batch instead of per cell.
+ * Output is buffered and written once at the end (or when it fills up); errors go to stderr.
+ */
+public class BatchRunner {
+    private static final int MAX_BATCH = 10_000;
+
+    private Spreadsheet sheet;
+    private final PrintWriter out;
+    private final Path mappedStoreDir; // Store for loaded sheets, null for the default one
+
+    // Pending edits, in command order
+    private final Map<String, String> batch = new LinkedHashMap<>();
+    private int lineNumber;
+    private int errors;
+
+    public BatchRunner(Spreadsheet sheet, OutputStream output) {
+        this(sheet, output, null);
+    }
+
+    /**
+     * Loaded sheets use a mapped store in 'mappedStoreDir' when it is not null
+     */
+    public BatchRunner(Spreadsheet sheet, OutputStream output, Path mappedStoreDir) {
+        this.sheet = sheet;
+        this.out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), 1 << 16), false);
+        this.mappedStoreDir = mappedStoreDir;
+    }
+
+    /**
+     * Run all commands from the reader. Returns the number of failed commands.
+     */
+    public int run(BufferedReader reader) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+
+            String[] parts = trimmed.split("\\s+", 3);
+            try {
+                execute(parts[0].toLowerCase(), parts);
+            } catch (Exception e) {
+                error(e.getMessage());
+            }
+        }
+
+        try {
+            flushBatch();
+        } catch (Exception e) {
+            error(e.getMessage());
+        }
+        out.flush();
+        return errors;
+    }
+
+    public Spreadsheet getSheet() {
+        return sheet;
+    }
+
+    private void execute(String command, String[] parts) throws Exception {
+        switch (command) {
+            case "set" -> {
+                require(parts, 2, "set <cell> <content>");
+                queue(parts[1], parts.length > 2 ? parts[2] : "");
+            }
+            case "set-range" -> {
+                require(parts, 3, "set-range <start cell> <row>|<row>...");
+                queueRange(parts[1].toUpperCase(), parts[2]);
+            }
+            case "get" -> {
+                require(parts, 2, "get <cell>");
+                flushBatch();
+                String coord = parts[1].toUpperCase();
+                out.print(coord);
+                out.print('\t');
+                out.println(sheet.getCellContent(coord));
+            }
+            case "load" -> {
+                require(parts, 2, "load <path>");
+                flushBatch();
+                String path = argument(parts);
+                Spreadsheet loaded = Workbook.isWorkbookName(path)
+                        ? FileSystem.loadWorkbook(path).getSheets().get(0)
+                        : FileSystem.open(path, mappedStoreDir);
+                sheet.close();
+                sheet = loaded;
+            }
+            case "load-rows" -> {
+                require(parts, 3, "load-rows <first>:<last> <path>");
+                flushBatch();
+                String[] rows = parts[1].split(":", -1);
+                if (rows.length != 2) {
+                    throw new IllegalArgumentException("Usage: load-rows <first>:<last> <path>");
+                }
+                Spreadsheet loaded = FileSystem.loadRows(parts[2], Integer.parseInt(rows[0]), Integer.parseInt(rows[1]));
+                sheet.close();
+                sheet = loaded;
+            }
+            case "save" -> {
+                require(parts, 2, "save <path>");
+                flushBatch();
+                String path = argument(parts);
+                if (Workbook.isWorkbookName(path)) {
+                    FileSystem.saveWorkbook(workbook(), path);
+                } else {
+                    EditJournal.save(sheet, path);
+                }
+            }
+            case "sheet" -> {
+                require(parts, 2, "sheet <name>");
+                flushBatch();
+                Workbook workbook = workbook();
+                String name = argument(parts);
+                Spreadsheet next = workbook.getSheet(name);
+                sheet = next != null ? next : workbook.addSheet(name);
+            }
+            case "recalc" -> {
+                flushBatch();
+                if (sheet.getWorkbook() != null) {
+                    sheet.getWorkbook().calculateAll();
+                } else {
+                    sheet.calculateAll();
+                }
+            }
+            case "dump" -> {
+                flushBatch();
+                dump();
+            }
+            case "export" -> {
+                require(parts, 2, "export <path>");
+                flushBatch();
+                String path = argument(parts);
+                ValueExporter.export(sheet, Path.of(path), ValueExporter.delimiterFor(path));
+            }
+            case "export-range" -> {
+                require(parts, 3, "export-range <range> <path>");
+                flushBatch();
+                ValueExporter.export(sheet, Path.of(parts[2]), ValueExporter.delimiterFor(parts[2]), parts[1]);
+            }
+            case "analyze" -> {
+                flushBatch();
+                int topN = parts.length > 1 ? Integer.parseInt(parts[1]) : 10;
+                out.print(DependencyAnalyzer.analyze(sheet, topN).describe());
+            }
+            case "fill" -> {
+                require(parts, 3, "fill <source cell> <range>");
+                flushBatch();
+                sheet.fill(parts[1], parts[2]);
+            }
+            case "fill-down", "fill-right" -> {
+                require(parts, 2, command + " <range>");
+                flushBatch();
+                if (command.equals("fill-down")) {
+                    sheet.fillDown(parts[1]);
+                } else {
+                    sheet.fillRight(parts[1]);
+                }
+            }
+            case "undo" -> {
+                flushBatch();
+                if (!sheet.undo()) throw new IllegalStateException("Nothing to undo");
+            }
+            case "redo" -> {
+                flushBatch();
+                if (!sheet.redo()) throw new IllegalStateException("Nothing to redo");
+            }
+            default -> throw new IllegalArgumentException("Unknown command: " + parts[0]);
+        }
+    }
+
+    private void queue(String coord, String content) throws Exception {
+        coord = coord.toUpperCase();
+        // A second edit of the same cell must not overtake the first one
+        if (batch.containsKey(coord) || batch.size() >= MAX_BATCH) {
+            flushBatch();
+        }
+        batch.put(coord, content);
+    }
+
+    private void queueRange(String start, String block) throws Exception {
+        int startCol = FileSystem.columnNumber(start);
+        int row = FileSystem.rowNumber(start);
+
+        for (String rowValues : block.split("\\|", -1)) {
+            String[] values = rowValues.split(";", -1);
+            for (int i = 0; i < values.length; i++) {
+                if (!values[i].isEmpty()) {
+                    queue(FileSystem.coordinate(startCol + i, row), values[i]);
+                }
+            }
+            row++;
+        }
+    }
+
+    private void flushBatch() throws Exception {
+        if (batch.isEmpty()) {
+            return;
+        }
+        Map<String, String> failed = sheet.setCellContents(batch);
+        batch.clear();
+
+        for (Map.Entry<String, String> failure : failed.entrySet()) {
+            error("cell " + failure.getKey() + ": " + failure.getValue());
+        }
+    }
+
+    /**
+     * Print evaluated values in S2V layout: one line per row up to the last used row
+     */
+    private void dump() {
+        TreeMap<Integer, TreeMap<Integer, String>> rows = new TreeMap<>();
+        for (Cell cell : sheet.getAllCells().values()) {
+            if (cell.getContent() == null) continue;
+            String coord = cell.getCoordinate();
+            rows.computeIfAbsent(FileSystem.rowNumber(coord), r -> new TreeMap<>())
+                    .put(FileSystem.columnNumber(coord), cell.getDisplayValue());
+        }
+
+        int lastPrinted = 0;
+        for (Map.Entry<Integer, TreeMap<Integer, String>> row : rows.entrySet()) {
+            for (int blank = lastPrinted + 1; blank < row.getKey(); blank++) {
+                out.println();
+            }
+            TreeMap<Integer, String> cols = row.getValue();
+            int maxCol = cols.lastKey();
+            for (int col = 1; col <= maxCol; col++) {
+                out.print(cols.getOrDefault(col, ""));
+                if (col < maxCol) out.print(';');
+            }
+            out.println();
+            lastPrinted = row.getKey();
+        }
+    }
+
+    private static void require(String[] parts, int count, String usage) {
+        if (parts.length < count) {
+            throw new IllegalArgumentException("Usage: " + usage);
+        }
+    }
+
+    /**
+     * The current sheet's workbook; a standalone sheet becomes the first sheet of a new one
+     */
+    private Workbook workbook() {
+        if (sheet.getWorkbook() == null) {
+            new Workbook().addSheet(Workbook.DEFAULT_SHEET, sheet);
+        }
+        return sheet.getWorkbook();
+    }
+
+    private static String argument(String[] parts) {
+        return parts.length > 2 ? parts[1] + " " + parts[2] : parts[1];
+    }
+
+    private void error(String message) {
+        errors++;
+        System.err.println("ERROR line " + lineNumber + ": " + message);
+    }
+}
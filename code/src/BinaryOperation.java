@@ -9,6 +9,16 @@ public class BinaryOperation implements Expression {
         this.right = right;
     }
 
+    @Override
+    public Expression shift(int cols, int rows) {
+        Expression shiftedLeft = left.shift(cols, rows);
+        Expression shiftedRight = right.shift(cols, rows);
+        if (shiftedLeft == left && shiftedRight == right) {
+            return this;
+        }
+        return new BinaryOperation(shiftedLeft, operator, shiftedRight);
+    }
+
     @Override
     public double calculate() {
         double l = left.calculate();
@@ -26,6 +36,8 @@ public class BinaryOperation implements Expression {
                     throw new ArithmeticException("Division by zero");
                 }
                 return l / r;
+            case '^':
+                return Math.pow(l, r);
             default:
                 throw new IllegalStateException("Unknown operator: " + operator);
         }
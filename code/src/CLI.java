@@ -1,11 +1,41 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.Map;
 import java.util.Scanner;
 
 public class CLI {
 
-    private Spreadsheet sheet = new Spreadsheet();
+    private Spreadsheet sheet;
     private Scanner sc = new Scanner(System.in);
 
+    // Directory for memory-mapped cell storage, or null to keep cells on the heap
+    private Path mappedStoreDir;
+
+    // Grid viewport: top-left cell and window size
+    private static final int VIEW_ROWS = 20;
+    private static final int VIEW_COLS = 8;
+    private static final int CELL_WIDTH = 15;
+    private int viewRow = 1;
+    private int viewCol = 1;
+
+    public CLI() {
+        this(null);
+    }
+
+    public CLI(Path mappedStoreDir) {
+        this.mappedStoreDir = mappedStoreDir;
+        this.sheet = newSheet();
+    }
+
+    private Spreadsheet newSheet() {
+        try {
+            return Spreadsheet.create(mappedStoreDir);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create mapped cell store in " + mappedStoreDir, e);
+        }
+    }
+
     public void start() {
         while (true) {
             System.out.println("\n=== Excel-CLI ===");
@@ -16,6 +46,12 @@ public class CLI {
             System.out.println("5. Load spreadsheet");
             System.out.println("6. Create new spreadsheet");
             System.out.println("7. Exit");
+            System.out.println("8. Undo");
+            System.out.println("9. Redo");
+            System.out.println("10. Export values (CSV/TSV)");
+            System.out.println("11. Memory usage");
+            System.out.println("12. Analyze dependencies");
+            System.out.println("13. Fill range");
 
             System.out.print("Choose: ");
             int opt = sc.nextInt();
@@ -28,7 +64,16 @@ public class CLI {
                 case 4 -> save();
                 case 5 -> load();
                 case 6 -> createNew();
-                case 7 -> { return; }
+                case 7 -> {
+                    sheet.close();
+                    return;
+                }
+                case 8 -> undo();
+                case 9 -> redo();
+                case 10 -> exportValues();
+                case 11 -> showMemory();
+                case 12 -> System.out.print(DependencyAnalyzer.analyze(sheet, 10).describe());
+                case 13 -> fillRange();
                 default -> System.out.println("Invalid option");
             }
         }
@@ -61,56 +106,108 @@ public class CLI {
     }
 
     private void viewGrid() {
-        Map<String, Cell> allCells = sheet.getAllCells();
+        CellIndex index = sheet.getIndex();
 
-        if (allCells.isEmpty()) {
+        if (index.isEmpty()) {
             System.out.println("Spreadsheet is empty");
             return;
         }
 
-        // Find bounds
-        int maxRow = 0;
-        int maxCol = 0;
-
-        for (String coord : allCells.keySet()) {
-            int col = FileSystem.columnNumber(coord);
-            int row = FileSystem.rowNumber(coord);
-            if (row > maxRow) maxRow = row;
-            if (col > maxCol) maxCol = col;
+        System.out.print("Top-left cell (Enter for " + FileSystem.coordinate(viewCol, viewRow) + "): ");
+        String topLeft = sc.nextLine().trim().toUpperCase();
+        if (!topLeft.isEmpty()) {
+            try {
+                viewCol = Math.max(1, FileSystem.columnNumber(topLeft));
+                viewRow = Math.max(1, FileSystem.rowNumber(topLeft));
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid cell: " + topLeft);
+                return;
+            }
         }
 
-        // Build grid display
-        System.out.println("\n=== Spreadsheet Grid ===");
+        System.out.print(renderGrid(viewCol, viewRow, VIEW_COLS, VIEW_ROWS));
+    }
+
+    /**
+     * Render a window of the grid into one string.
+     * Only the populated cells inside the window are looked up (through the sheet's index).
+     */
+    private String renderGrid(int firstCol, int firstRow, int cols, int rows) {
+        CellIndex index = sheet.getIndex();
+        Map<String, Cell> allCells = sheet.getAllCells();
+        int lastCol = firstCol + cols - 1;
+        int lastRow = firstRow + rows - 1;
+        int labelWidth = Math.max(4, String.valueOf(lastRow).length() + 1);
 
-        // Print column headers
-        System.out.print("     ");
-        for (int col = 1; col <= maxCol; col++) {
-            System.out.printf("%-15s ", FileSystem.coordinate(col, 1).replaceAll("\\d", ""));
+        StringBuilder out = new StringBuilder();
+        out.append("\n=== Spreadsheet Grid ")
+           .append(FileSystem.coordinate(firstCol, firstRow)).append(':')
+           .append(FileSystem.coordinate(lastCol, lastRow))
+           .append(" (sheet extends to ")
+           .append(FileSystem.coordinate(index.getMaxCol(), index.getMaxRow()))
+           .append(") ===\n");
+
+        // Column headers
+        pad(out, "", labelWidth + 1);
+        for (int col = firstCol; col <= lastCol; col++) {
+            pad(out, FileSystem.columnName(col), CELL_WIDTH);
+            out.append(' ');
         }
-        System.out.println();
-        System.out.print("     ");
-        for (int col = 1; col <= maxCol; col++) {
-            System.out.print("--------------- ");
+        out.append('\n');
+        pad(out, "", labelWidth + 1);
+        for (int col = firstCol; col <= lastCol; col++) {
+            out.append("-".repeat(CELL_WIDTH)).append(' ');
         }
-        System.out.println();
+        out.append('\n');
 
-        // Print rows
-        for (int row = 1; row <= maxRow; row++) {
-            System.out.printf("%-4d|", row);
+        // Rows
+        for (int row = firstRow; row <= lastRow; row++) {
+            pad(out, String.valueOf(row), labelWidth);
+            out.append('|');
 
-            for (int col = 1; col <= maxCol; col++) {
-                String coord = FileSystem.coordinate(col, row);
-                Cell cell = allCells.get(coord);
+            int col = firstCol;
+            for (int populated : index.columnsInRow(row, firstCol, lastCol)) {
+                // Blank cells up to the next populated one
+                for (; col < populated; col++) {
+                    pad(out, "", CELL_WIDTH + 1);
+                }
+                Cell cell = allCells.get(FileSystem.coordinate(populated, row));
                 String value = cell != null ? cell.getDisplayValue() : "";
 
                 // Truncate if too long
                 if (value.length() > 14) {
                     value = value.substring(0, 11) + "...";
                 }
-
-                System.out.printf("%-15s ", value);
+                pad(out, value, CELL_WIDTH);
+                out.append(' ');
+                col++;
             }
-            System.out.println();
+            out.append('\n');
+        }
+
+        return out.toString();
+    }
+
+    private static void pad(StringBuilder out, String text, int width) {
+        out.append(text);
+        for (int i = text.length(); i < width; i++) {
+            out.append(' ');
+        }
+    }
+
+    private void undo() {
+        try {
+            System.out.println(sheet.undo() ? "Undone" : "Nothing to undo");
+        } catch (Exception e) {
+            System.out.println("ERROR: " + e.getMessage());
+        }
+    }
+
+    private void redo() {
+        try {
+            System.out.println(sheet.redo() ? "Redone" : "Nothing to redo");
+        } catch (Exception e) {
+            System.out.println("ERROR: " + e.getMessage());
         }
     }
 
@@ -128,18 +225,66 @@ public class CLI {
         try {
             System.out.print("File path: ");
             String path = sc.nextLine();
-            FileSystem.save(sheet, path);
+            EditJournal.save(sheet, path);
             System.out.println("Saved!");
         } catch (Exception e) {
             System.out.println("Error saving file: " + e.getMessage());
         }
     }
 
+    private void exportValues() {
+        try {
+            System.out.print("File path (.csv or .tsv): ");
+            String path = sc.nextLine().trim();
+            System.out.print("Range (e.g. A1:D20, Enter for the whole sheet): ");
+            String range = sc.nextLine().trim();
+
+            char delimiter = ValueExporter.delimiterFor(path);
+            long rows = range.isEmpty()
+                    ? ValueExporter.export(sheet, Path.of(path), delimiter)
+                    : ValueExporter.export(sheet, Path.of(path), delimiter, range);
+            System.out.println("Exported " + rows + " rows");
+        } catch (Exception e) {
+            System.out.println("Error exporting values: " + e.getMessage());
+        }
+    }
+
+    private void fillRange() {
+        System.out.print("Source cell, or 'down'/'right' to fill from the first row/column: ");
+        String source = sc.nextLine().trim();
+        System.out.print("Range (e.g. B2:B100): ");
+        String range = sc.nextLine().trim();
+
+        try {
+            long filled = switch (source.toLowerCase()) {
+                case "down" -> sheet.fillDown(range);
+                case "right" -> sheet.fillRight(range);
+                default -> sheet.fill(source, range);
+            };
+            System.out.println("Filled " + filled + " cells");
+        } catch (Exception e) {
+            System.out.println("ERROR: " + e.getMessage());
+        }
+    }
+
+    private void showMemory() {
+        MemoryBudget memory = sheet.getMemoryBudget();
+        for (Map.Entry<String, Long> entry : memory.breakdown().entrySet()) {
+            System.out.printf("%-16s %8d MB%n", entry.getKey(), MemoryBudget.megabytes(entry.getValue()));
+        }
+        System.out.printf("%-16s %8d MB of %d MB budget%n", "total (estimate)",
+                MemoryBudget.megabytes(memory.used()), MemoryBudget.megabytes(memory.getLimit()));
+    }
+
     private void load() {
         try {
             System.out.print("File path: ");
             String path = sc.nextLine();
-            sheet = FileSystem.load(path);
+            Spreadsheet loaded = FileSystem.open(path, mappedStoreDir);
+            sheet.close();
+            sheet = loaded;
+            viewRow = 1;
+            viewCol = 1;
             System.out.println("Loaded successfully!");
             System.out.println("Use option 3 to view the spreadsheet");
         } catch (Exception e) {
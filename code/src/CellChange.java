@@ -0,0 +1,25 @@
+/**
+ * New value of a cell after a recalculation pass (delivered to change subscribers)
+ */
+public class CellChange {
+    private final String coordinate;
+    private final Object value;
+
+    public CellChange(String coordinate, Object value) {
+        this.coordinate = coordinate;
+        this.value = value;
+    }
+
+    public String getCoordinate() {
+        return coordinate;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return coordinate + "=" + value;
+    }
+}
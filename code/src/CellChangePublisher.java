@@ -0,0 +1,191 @@
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Flow;
+
+/**
+ * Publishes the cells whose values changed after each recalculation pass.
+ *
+ * Subscribers register for the whole sheet or for a cell/range ("B2", "A1:C10") and receive
+ * batches of CellChange. Each batch counts as one item against the subscriber's demand.
+ * Changes that arrive while a subscriber has no demand are coalesced per cell, keeping only
+ * the latest value, so a slow consumer gets one up-to-date batch instead of a growing backlog.
+ * Delivery happens on an executor, never on the thread that edited the sheet.
+ */
+public class CellChangePublisher implements Flow.Publisher<List<CellChange>> {
+    private final Spreadsheet sheet;
+    private final Executor executor;
+    private final List<ChangeSubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    public CellChangePublisher(Spreadsheet sheet) {
+        this(sheet, ForkJoinPool.commonPool());
+    }
+
+    public CellChangePublisher(Spreadsheet sheet, Executor executor) {
+        this.sheet = sheet;
+        this.executor = executor;
+    }
+
+    /**
+     * Subscribe to changes anywhere in the sheet
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super List<CellChange>> subscriber) {
+        subscribe(null, subscriber);
+    }
+
+    /**
+     * Subscribe to changes of one cell, a range like "A1:C10" or an open range like "A:A", "3:3"
+     * or "A5:A" (null for the whole sheet)
+     */
+    public void subscribe(String cellOrRange, Flow.Subscriber<? super List<CellChange>> subscriber) {
+        ChangeSubscription subscription = new ChangeSubscription(subscriber, cellOrRange);
+        subscriptions.add(subscription);
+        subscriber.onSubscribe(subscription);
+    }
+
+    public boolean hasSubscribers() {
+        return !subscriptions.isEmpty();
+    }
+
+    /**
+     * Offer the current values of the given cells to every subscriber watching them
+     * Each cell is evaluated at most once, and only if someone watches it
+     */
+    public void publish(Collection<String> changedCells) {
+        if (subscriptions.isEmpty() || changedCells.isEmpty()) {
+            return;
+        }
+
+        Map<ChangeSubscription, List<CellChange>> batches = new HashMap<>();
+        for (String coord : changedCells) {
+            int col = FileSystem.columnNumber(coord);
+            int row = FileSystem.rowNumber(coord);
+            CellChange change = null;
+
+            for (ChangeSubscription subscription : subscriptions) {
+                if (subscription.covers(col, row)) {
+                    if (change == null) {
+                        change = new CellChange(coord, value(coord));
+                    }
+                    batches.computeIfAbsent(subscription, s -> new ArrayList<>()).add(change);
+                }
+            }
+        }
+
+        for (Map.Entry<ChangeSubscription, List<CellChange>> batch : batches.entrySet()) {
+            batch.getKey().offer(batch.getValue());
+        }
+    }
+
+    private Object value(String coord) {
+        Cell cell = sheet.getAllCells().get(coord);
+        if (cell == null || cell.getContent() == null) {
+            return "";
+        }
+        return cell.getContent().getValue();
+    }
+
+    private class ChangeSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super List<CellChange>> subscriber;
+
+        // Watched rectangle; a null range means the whole sheet
+        private final boolean wholeSheet;
+        private int firstCol, lastCol, firstRow, lastRow;
+
+        // Latest value per cell not yet delivered (guarded by this)
+        private final Map<String, CellChange> pending = new LinkedHashMap<>();
+        private long demand;
+        private boolean draining;
+        private volatile boolean cancelled;
+
+        ChangeSubscription(Flow.Subscriber<? super List<CellChange>> subscriber, String cellOrRange) {
+            this.subscriber = subscriber;
+            this.wholeSheet = cellOrRange == null;
+
+            if (!wholeSheet) {
+                // Open ranges (A:A, 3:3, A5:A) watch up to the sheet limits
+                int[] bounds = Range.bounds(cellOrRange.replace("$", ""));
+                firstCol = bounds[0];
+                lastCol = bounds[1];
+                firstRow = bounds[2];
+                lastRow = bounds[3];
+            }
+        }
+
+        boolean covers(int col, int row) {
+            return wholeSheet || (col >= firstCol && col <= lastCol && row >= firstRow && row <= lastRow);
+        }
+
+        void offer(List<CellChange> changes) {
+            synchronized (this) {
+                if (cancelled) return;
+                for (CellChange change : changes) {
+                    // Drop-to-latest: an undelivered older value of the same cell is replaced
+                    pending.remove(change.getCoordinate());
+                    pending.put(change.getCoordinate(), change);
+                }
+            }
+            scheduleDrain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("Requested " + n + " items; must be positive"));
+                return;
+            }
+            synchronized (this) {
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            }
+            scheduleDrain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+            synchronized (this) {
+                pending.clear();
+            }
+        }
+
+        private void scheduleDrain() {
+            synchronized (this) {
+                if (draining || cancelled || demand == 0 || pending.isEmpty()) {
+                    return;
+                }
+                draining = true;
+            }
+            executor.execute(this::drain);
+        }
+
+        /**
+         * Deliver pending batches while there is demand; onNext calls are never concurrent
+         */
+        private void drain() {
+            while (true) {
+                List<CellChange> batch;
+                synchronized (this) {
+                    if (cancelled || demand == 0 || pending.isEmpty()) {
+                        draining = false;
+                        return;
+                    }
+                    batch = new ArrayList<>(pending.values());
+                    pending.clear();
+                    demand--;
+                }
+
+                try {
+                    subscriber.onNext(batch);
+                } catch (Throwable t) {
+                    cancel();
+                    subscriber.onError(t);
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Ordered index of populated cells: for each row, the sorted column numbers that have content,
+ * and for each column, the sorted row numbers that have content.
+ * Lets viewers fetch just the populated cells of a window instead of scanning every cell, and
+ * lets a whole-column range visit only the populated rows of its columns.
+ */
+public class CellIndex {
+    private final Map<Integer, Line> rows = new HashMap<>();
+    private final Map<Integer, Line> columns = new HashMap<>();
+    private int maxRow;
+    private int maxCol;
+    private long cellCount;
+
+    /**
+     * Sorted positions of the populated cells of one row or column
+     */
+    private static class Line {
+        int[] positions = new int[4]; // sorted, first 'count' entries used
+        int count;
+
+        boolean add(int position) {
+            int at = Arrays.binarySearch(positions, 0, count, position);
+            if (at >= 0) {
+                return false;
+            }
+            at = -at - 1;
+
+            if (count == positions.length) {
+                positions = Arrays.copyOf(positions, count * 2);
+            }
+            System.arraycopy(positions, at, positions, at + 1, count - at);
+            positions[at] = position;
+            count++;
+            return true;
+        }
+
+        boolean remove(int position) {
+            int at = Arrays.binarySearch(positions, 0, count, position);
+            if (at < 0) {
+                return false;
+            }
+            System.arraycopy(positions, at + 1, positions, at, count - at - 1);
+            count--;
+            return true;
+        }
+
+        /**
+         * Positions within [first, last], in ascending order
+         */
+        int[] between(int first, int last) {
+            int from = Arrays.binarySearch(positions, 0, count, first);
+            if (from < 0) from = -from - 1;
+            int to = Arrays.binarySearch(positions, 0, count, last);
+            to = to < 0 ? -to - 1 : to + 1;
+
+            return from >= to ? new int[0] : Arrays.copyOfRange(positions, from, to);
+        }
+    }
+
+    public void add(int col, int row) {
+        if (!rows.computeIfAbsent(row, r -> new Line()).add(col)) {
+            return;
+        }
+        columns.computeIfAbsent(col, c -> new Line()).add(row);
+        cellCount++;
+
+        if (row > maxRow) maxRow = row;
+        if (col > maxCol) maxCol = col;
+    }
+
+    /**
+     * Forget a cell (the bounds are not shrunk)
+     */
+    public void remove(int col, int row) {
+        Line entry = rows.get(row);
+        if (entry == null || !entry.remove(col)) {
+            return;
+        }
+        cellCount--;
+        if (entry.count == 0) {
+            rows.remove(row);
+        }
+        Line column = columns.get(col);
+        column.remove(row);
+        if (column.count == 0) {
+            columns.remove(col);
+        }
+    }
+
+    /**
+     * Populated columns of a row within [firstCol, lastCol], in ascending order
+     */
+    public int[] columnsInRow(int row, int firstCol, int lastCol) {
+        Line entry = rows.get(row);
+        return entry == null ? new int[0] : entry.between(firstCol, lastCol);
+    }
+
+    /**
+     * Populated rows of a column within [firstRow, lastRow], in ascending order
+     */
+    public int[] rowsInColumn(int col, int firstRow, int lastRow) {
+        Line entry = columns.get(col);
+        return entry == null ? new int[0] : entry.between(firstRow, lastRow);
+    }
+
+    /**
+     * Number of populated cells in a column
+     */
+    public int countInColumn(int col) {
+        Line entry = columns.get(col);
+        return entry == null ? 0 : entry.count;
+    }
+
+    public int getMaxRow() {
+        return maxRow;
+    }
+
+    public int getMaxCol() {
+        return maxCol;
+    }
+
+    /**
+     * Estimated heap bytes: a map entry, boxed key and Line per row and per column,
+     * one int (with slack) per cell in each direction
+     */
+    public long estimateBytes() {
+        return (rows.size() + columns.size()) * 104L + cellCount * 12;
+    }
+
+    /**
+     * Number of populated cells
+     */
+    public long size() {
+        return cellCount;
+    }
+
+    public boolean isEmpty() {
+        return rows.isEmpty();
+    }
+
+    public void clear() {
+        rows.clear();
+        columns.clear();
+        cellCount = 0;
+        maxRow = 0;
+        maxCol = 0;
+    }
+}
@@ -1,12 +1,63 @@
+/**
+ * A reference to one cell. "$" before the column and/or row ($A$1, A$1, $A1) anchors that part,
+ * so it stays put when the formula is filled into other cells; getCoordinate() is always plain.
+ */
 public class CellReference implements Expression {
     private String coordinate;
     private Spreadsheet spreadsheet;
+    private final boolean absoluteColumn;
+    private final boolean absoluteRow;
 
     public CellReference(String coordinate, Spreadsheet spreadsheet) {
-        this.coordinate = coordinate.toUpperCase();
+        String text = coordinate.toUpperCase();
+        this.absoluteColumn = text.startsWith("$");
+        this.absoluteRow = text.indexOf('$', 1) > 0;
+        this.coordinate = absoluteColumn || absoluteRow ? text.replace("$", "") : text;
         this.spreadsheet = spreadsheet;
     }
 
+    @Override
+    public Expression shift(int cols, int rows) {
+        if ((cols == 0 || absoluteColumn) && (rows == 0 || absoluteRow)) {
+            return this;
+        }
+        return new CellReference(shift(getReference(), cols, rows), spreadsheet);
+    }
+
+    /**
+     * Move a reference written as a cell ("A1", "$A$1"), column ("A", "$A") or row ("3") by
+     * 'cols' columns and 'rows' rows, leaving anchored parts alone; "$" signs are kept
+     */
+    static String shift(String reference, int cols, int rows) {
+        int i = 0;
+        boolean absoluteCol = reference.startsWith("$");
+        if (absoluteCol) i++;
+        int lettersStart = i;
+        while (i < reference.length() && Character.isLetter(reference.charAt(i))) i++;
+        int lettersEnd = i;
+        boolean absoluteRow = i < reference.length() && reference.charAt(i) == '$';
+        if (absoluteRow) i++;
+
+        StringBuilder shifted = new StringBuilder(reference.length() + 2);
+        if (lettersEnd > lettersStart) {
+            int col = FileSystem.columnNumber(reference.substring(lettersStart, lettersEnd));
+            if (!absoluteCol) col += cols;
+            if (col < 1 || col > Range.MAX_COL) {
+                throw new IllegalArgumentException("Reference " + reference + " moves off the sheet");
+            }
+            shifted.append(absoluteCol ? "$" : "").append(FileSystem.columnName(col));
+        }
+        if (i < reference.length()) {
+            int row = Integer.parseInt(reference.substring(i));
+            if (!absoluteRow) row += rows;
+            if (row < 1 || row > Range.MAX_ROW) {
+                throw new IllegalArgumentException("Reference " + reference + " moves off the sheet");
+            }
+            shifted.append(absoluteRow ? "$" : "").append(row);
+        }
+        return shifted.toString();
+    }
+
     @Override
     public double calculate() {
         Cell cell = spreadsheet.getCell(coordinate);
@@ -31,11 +82,11 @@ public class CellReference implements Expression {
                 return 0;
             }
             // Try to parse as number
-            try {
-                return Double.parseDouble(str);
-            } catch (NumberFormatException e) {
-                throw new RuntimeException("Cell " + coordinate + " contains non-numeric value: " + str);
+            ContentClassifier classifier = ContentClassifier.forThread();
+            if (classifier.classify(str) == ContentClassifier.NUMBER) {
+                return classifier.number();
             }
+            throw new RuntimeException("Cell " + coordinate + " contains non-numeric value: " + str);
         }
 
         throw new RuntimeException("Cannot convert cell " + coordinate + " to number");
@@ -44,4 +95,29 @@ public class CellReference implements Expression {
     public String getCoordinate() {
         return coordinate;
     }
+
+    /**
+     * The reference as written, with its "$" anchors
+     */
+    public String getReference() {
+        if (!absoluteColumn && !absoluteRow) {
+            return coordinate;
+        }
+        int digits = 0;
+        while (Character.isLetter(coordinate.charAt(digits))) digits++;
+        return (absoluteColumn ? "$" : "") + coordinate.substring(0, digits)
+                + (absoluteRow ? "$" : "") + coordinate.substring(digits);
+    }
+
+    public boolean isAbsoluteColumn() {
+        return absoluteColumn;
+    }
+
+    public boolean isAbsoluteRow() {
+        return absoluteRow;
+    }
+
+    public Spreadsheet getSpreadsheet() {
+        return spreadsheet;
+    }
 }
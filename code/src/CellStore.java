@@ -0,0 +1,77 @@
+import java.io.IOException;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * Storage backend for the cells of a Spreadsheet
+ */
+public interface CellStore {
+    /**
+     * Cell at the coordinate, or null if it was never stored
+     */
+    public Cell get(String coord);
+
+    /**
+     * Content of the cell at a column/row position, or null if it is blank
+     * Stores keyed by position override this to skip building the coordinate string
+     */
+    public default Content getContent(int col, int row) {
+        Cell cell = get(FileSystem.coordinate(col, row));
+        return cell == null ? null : cell.getContent();
+    }
+
+    /**
+     * Cell at the coordinate, creating an empty one if needed
+     */
+    public Cell getOrCreate(String coord);
+
+    /**
+     * Store new content for a cell
+     */
+    public void setContent(String coord, Content content);
+
+    /**
+     * Remove a cell entirely, so it is no longer stored at all
+     */
+    public void remove(String coord);
+
+    public int size();
+
+    /**
+     * Map view of all stored cells (coordinate -> cell)
+     */
+    public Map<String, Cell> asMap();
+
+    public void clear();
+
+    /**
+     * Estimated heap bytes held by the store
+     */
+    public long estimateBytes();
+
+    /**
+     * Pass the TextDictionary code of every stored text cell to 'visitor' (a code may come more
+     * than once). By default each cell is read; stores that keep codes outside the heap override
+     * this to report them without materializing cells.
+     */
+    public default void visitTextCodes(IntConsumer visitor) {
+        for (Cell cell : asMap().values()) {
+            if (cell != null && cell.getContent() instanceof TextContent) {
+                int code = ((TextContent) cell.getContent()).getCode();
+                if (code >= 0) visitor.accept(code);
+            }
+        }
+    }
+
+    /**
+     * Drop whatever can be rebuilt on demand (caches); nothing by default
+     */
+    public default void evictCaches() {
+    }
+
+    /**
+     * Release files and other resources outside the heap; nothing by default
+     */
+    public default void close() throws IOException {
+    }
+}
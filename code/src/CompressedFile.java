@@ -0,0 +1,310 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Block-compressed S2V container (".s2z").
+ *
+ * Rows are grouped into blocks of BLOCK_ROWS consecutive rows. Each block holds the S2V text of
+ * its rows (one line per row, empty lines for empty rows), compressed independently with
+ * raw Deflate, so blocks can be compressed and decompressed on several threads. Blocks
+ * without any cell are not written, and an index in the footer locates every block:
+ *
+ *   [magic "S2Z" 1]
+ *   [block]...                                     raw Deflate data
+ *   [entry]...                                     per block: int firstRow, int rowCount,
+ *                                                  long offset, int compressedLength,
+ *                                                  int rawLength, int crc32(raw)
+ *   [int blockCount][long indexOffset][magic]
+ *
+ * Saving reads the sheet on the calling thread and compresses on a worker pool, writing blocks
+ * in row order with a bounded number in flight. Loading (FileSystem.load) decompresses and
+ * parses blocks on workers. Deflaters and Inflaters are pooled for the duration of one call.
+ */
+public class CompressedFile {
+    public static final String EXTENSION = ".s2z";
+
+    static final int BLOCK_ROWS = 4096;
+
+    private static final byte[] MAGIC = { 'S', '2', 'Z', 1 };
+    private static final int ENTRY_SIZE = 28;
+    private static final int TRAILER_SIZE = 16;
+    private static final int LEVEL = Deflater.BEST_SPEED;
+
+    /**
+     * Location and checksum of one block
+     */
+    static class Block {
+        int firstRow;
+        int rowCount;
+        long offset;
+        int compressedLength;
+        int rawLength;
+        int crc;
+        byte[] data; // Compressed bytes, only while saving
+    }
+
+    /**
+     * True for a path named like a compressed file
+     */
+    public static boolean isCompressedName(String path) {
+        return path.toLowerCase().endsWith(EXTENSION);
+    }
+
+    /**
+     * True if the file starts with the container's magic bytes
+     */
+    public static boolean isCompressed(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer head = ByteBuffer.allocate(MAGIC.length);
+            while (head.hasRemaining() && channel.read(head) >= 0) { }
+            return !head.hasRemaining() && Arrays.equals(head.array(), MAGIC);
+        }
+    }
+
+    /**
+     * Save the raw contents of the sheet
+     */
+    public static void save(Spreadsheet sheet, String path) throws IOException {
+        int workers = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "s2z-compressor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+
+        Deque<Future<Block>> pending = new ArrayDeque<>();
+        List<Block> blocks = new ArrayList<>();
+        int maxRow = sheet.getIndex().getMaxRow();
+        int maxCol = sheet.getIndex().getMaxCol();
+
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            write(channel, ByteBuffer.wrap(MAGIC));
+
+            for (int firstRow = 1; firstRow <= maxRow; firstRow += BLOCK_ROWS) {
+                int rowCount = Math.min(BLOCK_ROWS, maxRow - firstRow + 1);
+                String text = text(sheet, firstRow, rowCount, maxCol);
+                if (text == null) {
+                    continue;
+                }
+
+                int blockFirstRow = firstRow;
+                pending.add(pool.submit(() -> compress(text, blockFirstRow, rowCount, deflaters)));
+                if (pending.size() > 2 * workers) {
+                    blocks.add(writeBlock(channel, pending.poll()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                blocks.add(writeBlock(channel, pending.poll()));
+            }
+
+            long indexOffset = channel.position();
+            ByteBuffer index = ByteBuffer.allocate(blocks.size() * ENTRY_SIZE + TRAILER_SIZE);
+            for (Block block : blocks) {
+                index.putInt(block.firstRow).putInt(block.rowCount).putLong(block.offset)
+                        .putInt(block.compressedLength).putInt(block.rawLength).putInt(block.crc);
+            }
+            index.putInt(blocks.size()).putLong(indexOffset).put(MAGIC);
+            index.flip();
+            write(channel, index);
+        } finally {
+            pool.shutdownNow();
+            for (Deflater deflater : deflaters) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * S2V text of rows [firstRow, firstRow + rowCount), or null if none of them has a cell
+     */
+    private static String text(Spreadsheet sheet, int firstRow, int rowCount, int maxCol) {
+        StringBuilder text = new StringBuilder();
+        boolean empty = true;
+
+        for (int row = firstRow; row < firstRow + rowCount; row++) {
+            int col = 1;
+            for (int populated : sheet.getIndex().columnsInRow(row, 1, maxCol)) {
+                Content content = sheet.getContent(populated, row);
+                if (content == null) {
+                    continue;
+                }
+                for (; col < populated; col++) {
+                    text.append(';');
+                }
+                text.append(FileSystem.quoteCell(content.getRawContent()));
+                empty = false;
+            }
+            text.append('\n');
+        }
+        return empty ? null : text.toString();
+    }
+
+    /**
+     * Encode and compress one block (runs on a worker thread)
+     */
+    private static Block compress(String text, int firstRow, int rowCount, Queue<Deflater> deflaters) {
+        byte[] raw = text.getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(raw);
+
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(LEVEL, true);
+        }
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            byte[] out = new byte[Math.max(64, raw.length / 2)];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                length += deflater.deflate(out, length, out.length - length);
+            }
+
+            Block block = new Block();
+            block.firstRow = firstRow;
+            block.rowCount = rowCount;
+            block.rawLength = raw.length;
+            block.crc = (int) crc.getValue();
+            block.compressedLength = length;
+            block.data = out;
+            return block;
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+    }
+
+    private static Block writeBlock(FileChannel channel, Future<Block> future) throws IOException {
+        Block block;
+        try {
+            block = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Saving interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Error compressing block: " + e.getCause().getMessage(), e.getCause());
+        }
+
+        block.offset = channel.position();
+        write(channel, ByteBuffer.wrap(block.data, 0, block.compressedLength));
+        block.data = null;
+        return block;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Read the block index from the footer, in row order
+     */
+    static List<Block> readIndex(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < MAGIC.length + TRAILER_SIZE) {
+            throw new IOException("Truncated compressed file");
+        }
+        ByteBuffer trailer = read(channel, size - TRAILER_SIZE, TRAILER_SIZE);
+        int blockCount = trailer.getInt();
+        long indexOffset = trailer.getLong();
+        byte[] magic = new byte[MAGIC.length];
+        trailer.get(magic);
+        if (!Arrays.equals(magic, MAGIC) || blockCount < 0 || indexOffset < MAGIC.length
+                || indexOffset + (long) blockCount * ENTRY_SIZE != size - TRAILER_SIZE) {
+            throw new IOException("Corrupt or truncated compressed file");
+        }
+
+        ByteBuffer index = read(channel, indexOffset, blockCount * ENTRY_SIZE);
+        List<Block> blocks = new ArrayList<>(blockCount);
+        for (int i = 0; i < blockCount; i++) {
+            Block block = new Block();
+            block.firstRow = index.getInt();
+            block.rowCount = index.getInt();
+            block.offset = index.getLong();
+            block.compressedLength = index.getInt();
+            block.rawLength = index.getInt();
+            block.crc = index.getInt();
+            if (block.offset < MAGIC.length || block.offset + block.compressedLength > indexOffset
+                    || block.rawLength < 0 || block.firstRow < 1 || block.rowCount < 0) {
+                throw new IOException("Corrupt block index entry " + i);
+            }
+            blocks.add(block);
+        }
+        return blocks;
+    }
+
+    /**
+     * Decompress and check one block and split it into lines (safe to call from several threads)
+     */
+    static List<String> readLines(FileChannel channel, Block block, Queue<Inflater> inflaters) throws IOException {
+        ByteBuffer compressed = read(channel, block.offset, block.compressedLength);
+        byte[] raw = new byte[block.rawLength];
+
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            inflater.setInput(compressed.array(), 0, block.compressedLength);
+            int length = 0;
+            while (length < raw.length && !inflater.finished()) {
+                int n = inflater.inflate(raw, length, raw.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += n;
+            }
+            if (length != raw.length) {
+                throw new IOException("Block at row " + block.firstRow + " is truncated");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Block at row " + block.firstRow + " is corrupt: " + e.getMessage(), e);
+        } finally {
+            inflater.reset();
+            inflaters.offer(inflater);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(raw);
+        if ((int) crc.getValue() != block.crc) {
+            throw new IOException("Block at row " + block.firstRow + " fails its checksum");
+        }
+
+        List<String> lines = new ArrayList<>(block.rowCount);
+        String text = new String(raw, StandardCharsets.UTF_8);
+        int start = 0;
+        for (int end = text.indexOf('\n'); end >= 0; end = text.indexOf('\n', start)) {
+            lines.add(text.substring(start, end));
+            start = end + 1;
+        }
+        return lines;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of compressed file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
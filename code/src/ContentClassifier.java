@@ -0,0 +1,311 @@
+import java.math.BigInteger;
+
+/**
+ * Classifies raw cell input as blank, number, text or formula in one scan, without exceptions.
+ *
+ * Numbers follow the syntax Double.parseDouble accepts (surrounding whitespace, sign, digits with
+ * an optional fraction and exponent, a trailing d/f, NaN, Infinity, hex), so cells are classified
+ * exactly as before, but text is recognized by the scan itself instead of a NumberFormatException.
+ * Decimal numbers are converted without the JDK: exactly in floating point when the digits and the
+ * power of ten are small enough (Clinger's fast path), otherwise with the Eisel-Lemire algorithm,
+ * which multiplies the digits by a 128-bit approximation of the power of five and only succeeds
+ * when the rounded result is certain. The rare inputs it cannot settle (more than 19 significant
+ * digits, subnormal or overflowing results, an undecided product) go to Double.parseDouble, whose
+ * syntax has already been checked, so every result is the correctly rounded double and
+ * Double.toString output reads back to the same value. Only hex input is still parsed by trying.
+ *
+ * An instance keeps the result of the last call; use one per thread (forThread()) and reuse it.
+ */
+public final class ContentClassifier {
+    public static final int BLANK = 0;
+    public static final int NUMBER = 1;
+    public static final int TEXT = 2;
+    public static final int FORMULA = 3;
+
+    private static final ThreadLocal<ContentClassifier> PER_THREAD = ThreadLocal.withInitial(ContentClassifier::new);
+
+    // Result of the last classify(): bounds of the input without surrounding whitespace, and the number
+    private int start;
+    private int end;
+    private double number;
+
+    /**
+     * The calling thread's instance
+     */
+    public static ContentClassifier forThread() {
+        return PER_THREAD.get();
+    }
+
+    public int classify(CharSequence input) {
+        return classify(input, 0, input.length());
+    }
+
+    /**
+     * Classify input[from, to), ignoring surrounding whitespace (characters up to ' ', like trim())
+     */
+    public int classify(CharSequence input, int from, int to) {
+        while (from < to && input.charAt(from) <= ' ') from++;
+        while (to > from && input.charAt(to - 1) <= ' ') to--;
+        start = from;
+        end = to;
+
+        if (from == to) {
+            return BLANK;
+        }
+        if (input.charAt(from) == '=') {
+            return FORMULA;
+        }
+        return scanNumber(input, from, to) ? NUMBER : TEXT;
+    }
+
+    /**
+     * Start of the last classified input without leading whitespace
+     */
+    public int start() {
+        return start;
+    }
+
+    /**
+     * End of the last classified input without trailing whitespace
+     */
+    public int end() {
+        return end;
+    }
+
+    /**
+     * Value of the last input classified as NUMBER
+     */
+    public double number() {
+        return number;
+    }
+
+    /**
+     * The last classified input without surrounding whitespace, as a string
+     */
+    public String text(CharSequence input) {
+        if (start == 0 && end == input.length() && input instanceof String) {
+            return (String) input;
+        }
+        return input.subSequence(start, end).toString();
+    }
+
+    // Significant digits a long always holds
+    private static final int MAX_DIGITS = 19;
+
+    private boolean scanNumber(CharSequence input, int from, int to) {
+        int i = from;
+        boolean negative = false;
+        char ch = input.charAt(i);
+        if (ch == '+' || ch == '-') {
+            negative = ch == '-';
+            if (++i == to) return false;
+            ch = input.charAt(i);
+        }
+        if (ch == 'N' || ch == 'I') {
+            return special(input, i, to, negative);
+        }
+        if (ch == '0' && i + 1 < to && (input.charAt(i + 1) | 0x20) == 'x') {
+            return hex(input, from, to);
+        }
+
+        long digits = 0;
+        int count = 0;        // Significant digits kept in 'digits'
+        int power = 0;        // Power of ten applied to 'digits'
+        boolean seen = false; // Any digit at all
+        boolean dropped = false;
+
+        for (; i < to && (ch = input.charAt(i)) >= '0' && ch <= '9'; i++) {
+            seen = true;
+            if (count < MAX_DIGITS) {
+                if (digits != 0 || ch != '0') {
+                    digits = digits * 10 + (ch - '0');
+                    count++;
+                }
+            } else {
+                power++;
+                dropped |= ch != '0';
+            }
+        }
+        if (i < to && input.charAt(i) == '.') {
+            for (i++; i < to && (ch = input.charAt(i)) >= '0' && ch <= '9'; i++) {
+                seen = true;
+                if (count < MAX_DIGITS) {
+                    if (digits != 0 || ch != '0') {
+                        digits = digits * 10 + (ch - '0');
+                        count++;
+                    }
+                    power--;
+                } else {
+                    dropped |= ch != '0';
+                }
+            }
+        }
+        if (!seen) {
+            return false;
+        }
+
+        if (i < to && (input.charAt(i) | 0x20) == 'e') {
+            i++;
+            boolean negativeExponent = false;
+            if (i < to && (input.charAt(i) == '+' || input.charAt(i) == '-')) {
+                negativeExponent = input.charAt(i) == '-';
+                i++;
+            }
+            if (i == to || input.charAt(i) < '0' || input.charAt(i) > '9') {
+                return false;
+            }
+            int exponent = 0;
+            for (; i < to && (ch = input.charAt(i)) >= '0' && ch <= '9'; i++) {
+                if (exponent < 100_000) {
+                    exponent = exponent * 10 + (ch - '0');
+                }
+            }
+            power += negativeExponent ? -exponent : exponent;
+        }
+        if (i < to && "dDfF".indexOf(input.charAt(i)) >= 0) {
+            i++;
+        }
+        if (i != to) {
+            return false;
+        }
+
+        double value = dropped ? Double.NaN : toDouble(negative, digits, power);
+        if (Double.isNaN(value)) {
+            // Syntax already checked: this parse cannot throw
+            value = Double.parseDouble(input.subSequence(from, to).toString());
+        }
+        number = value;
+        return true;
+    }
+
+    /**
+     * NaN and Infinity, as Double.parseDouble spells them
+     */
+    private boolean special(CharSequence input, int i, int to, boolean negative) {
+        String word = to - i == 3 ? "NaN" : "Infinity";
+        if (to - i != word.length()) {
+            return false;
+        }
+        for (int k = 0; k < word.length(); k++) {
+            if (input.charAt(i + k) != word.charAt(k)) {
+                return false;
+            }
+        }
+        number = word.equals("NaN") ? Double.NaN : negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+        return true;
+    }
+
+    /**
+     * Hexadecimal floating point (0x1.8p3): rare enough to leave to the JDK
+     */
+    private boolean hex(CharSequence input, int from, int to) {
+        try {
+            number = Double.parseDouble(input.subSequence(from, to).toString());
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // Powers of ten a double holds exactly, for the fast path
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private static final int MIN_POWER = -342;
+    private static final int MAX_POWER = 308;
+
+    // 5^q for q in [MIN_POWER, MAX_POWER], normalized to 128 bits with the top bit set: truncated
+    // for q >= 0, rounded up for q < 0 (a reciprocal), as high and low 64-bit halves
+    private static final long[] POWER_HIGH = new long[MAX_POWER - MIN_POWER + 1];
+    private static final long[] POWER_LOW = new long[MAX_POWER - MIN_POWER + 1];
+
+    static {
+        BigInteger five = BigInteger.valueOf(5);
+        BigInteger mask = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+        for (int q = MIN_POWER; q <= MAX_POWER; q++) {
+            BigInteger power = five.pow(Math.abs(q));
+            int bits = power.bitLength();
+            BigInteger normalized;
+            if (q >= 0) {
+                normalized = bits <= 128 ? power.shiftLeft(128 - bits) : power.shiftRight(bits - 128);
+            } else {
+                normalized = BigInteger.ONE.shiftLeft(bits + 127).divide(power).add(BigInteger.ONE);
+            }
+            POWER_HIGH[q - MIN_POWER] = normalized.shiftRight(64).longValue();
+            POWER_LOW[q - MIN_POWER] = normalized.and(mask).longValue();
+        }
+    }
+
+    /**
+     * digits * 10^power correctly rounded, or NaN when the fast algorithms cannot decide.
+     * 'digits' is unsigned: 19 digits may not fit in a signed long.
+     */
+    static double toDouble(boolean negative, long digits, int power) {
+        if (digits == 0) {
+            return negative ? -0.0 : 0.0;
+        }
+        if (power >= -22 && power <= 22 && Long.compareUnsigned(digits, 1L << 53) <= 0) {
+            // Both operands are exact doubles, so the one rounding of the operation is the right one
+            double value = digits;
+            value = power < 0 ? value / POWERS_OF_TEN[-power] : value * POWERS_OF_TEN[power];
+            return negative ? -value : value;
+        }
+        if (power < MIN_POWER || power > MAX_POWER) {
+            return Double.NaN;
+        }
+
+        // Eisel-Lemire: the top bits of digits * 5^power, with the power of two kept aside
+        int leadingZeros = Long.numberOfLeadingZeros(digits);
+        long significand = digits << leadingZeros;
+        int index = power - MIN_POWER;
+
+        long high = unsignedMultiplyHigh(significand, POWER_HIGH[index]);
+        long low = significand * POWER_HIGH[index];
+        if ((high & 0x1FF) == 0x1FF) {
+            // The 55 bits needed might be off by the truncated part: add the next 64 bits of 5^power
+            long next = unsignedMultiplyHigh(significand, POWER_LOW[index]);
+            low += next;
+            if (Long.compareUnsigned(next, low) > 0) {
+                high++;
+            }
+        }
+        if (low == -1L && (power < -27 || power > 55)) {
+            return Double.NaN; // Product may still be one unit short
+        }
+
+        int upperBit = (int) (high >>> 63);
+        long mantissa = high >>> (upperBit + 9);
+        long exponent = ((217706L * power) >> 16) + 63 + upperBit - leadingZeros + 1023;
+        if (exponent <= 0) {
+            return Double.NaN; // Subnormal
+        }
+
+        // Exactly halfway between two doubles: round to even instead of up
+        if (Long.compareUnsigned(low, 1) <= 0 && power >= -4 && power <= 23 && (mantissa & 3) == 1
+                && (mantissa << (upperBit + 9)) == high) {
+            mantissa &= ~1L;
+        }
+        mantissa += mantissa & 1;
+        mantissa >>>= 1;
+        if (mantissa >= 1L << 53) {
+            mantissa = 1L << 52;
+            exponent++;
+        }
+        mantissa &= ~(1L << 52);
+        if (exponent >= 0x7FF) {
+            return Double.NaN; // Overflow
+        }
+
+        long bits = mantissa | exponent << 52 | (negative ? 1L << 63 : 0);
+        return Double.longBitsToDouble(bits);
+    }
+
+    /**
+     * High 64 bits of the unsigned 128-bit product
+     */
+    private static long unsignedMultiplyHigh(long x, long y) {
+        return Math.multiplyHigh(x, y) + ((x >> 63) & y) + ((y >> 63) & x);
+    }
+}
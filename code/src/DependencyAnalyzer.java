@@ -0,0 +1,397 @@
+import java.util.*;
+
+/**
+ * Structural analysis of a sheet's dependency graph, to find out why recalculation is slow.
+ *
+ * Reports:
+ * - depth of every cell (longest chain of references below it) and the critical path
+ * - the cells with the most transitive dependents
+ * - the formula ranges covering the most cells
+ * - cycles, and "near cycles": groups of columns that depend on each other, where moving a
+ *   single formula can close a real cycle
+ *
+ * Depths, the critical path, ranges and both cycle searches are linear in cells plus edges.
+ * Exact transitive dependent counts are not computable in linear time, so candidates are
+ * ranked by a linear upper bound (dependents counted once per path) and only a short list
+ * is counted exactly with getAllDependents.
+ */
+public class DependencyAnalyzer {
+    private final Spreadsheet sheet;
+    private final DependencyManager graph;
+    private final int topN;
+
+    // Results
+    private int[] depth;
+    private int[] parent; // Deepest dependency of each node, -1 for inputs
+    private int[][] regionsOf; // Regions (A:A, 3:3) containing each cell: dependents without an edge
+    private int deepest = -1;
+    private final List<Map.Entry<String, Integer>> topFanOut = new ArrayList<>();
+    private final List<Map.Entry<String, Long>> largestRanges = new ArrayList<>();
+    private final List<List<String>> cycles = new ArrayList<>();
+    private final List<List<String>> columnCycles = new ArrayList<>();
+
+    /**
+     * Adjacency by node id, so one SCC routine serves both the cell and the column graph
+     */
+    private interface Graph {
+        int size();
+        int degree(int node);
+        int edge(int node, int index);
+    }
+
+    private DependencyAnalyzer(Spreadsheet sheet, int topN) {
+        this.sheet = sheet;
+        this.graph = sheet.getDependencyManager();
+        this.topN = topN;
+    }
+
+    /**
+     * Analyze a sheet, keeping the top 'topN' entries of each ranking
+     */
+    public static DependencyAnalyzer analyze(Spreadsheet sheet, int topN) {
+        DependencyAnalyzer analyzer = new DependencyAnalyzer(sheet, topN);
+        analyzer.computeDepths();
+        analyzer.computeFanOut();
+        analyzer.computeLargestRanges();
+        analyzer.computeCycles();
+        return analyzer;
+    }
+
+    /**
+     * Longest reference chain below a cell (0 for a cell without references, -1 if unknown)
+     */
+    public int depthOf(String cell) {
+        int id = graph.idOf(cell);
+        return id < 0 ? (sheet.getAllCells().containsKey(cell.toUpperCase()) ? 0 : -1) : depth[id];
+    }
+
+    public int getCriticalPathLength() {
+        return deepest < 0 ? 0 : depth[deepest];
+    }
+
+    /**
+     * Cells of the longest chain, from an input up to the deepest formula
+     */
+    public List<String> getCriticalPath() {
+        List<String> path = new ArrayList<>();
+        for (int node = deepest; node >= 0; node = parent[node]) {
+            path.add(graph.nameOf(node));
+        }
+        Collections.reverse(path);
+        return path;
+    }
+
+    public List<Map.Entry<String, Integer>> getTopFanOut() {
+        return topFanOut;
+    }
+
+    public List<Map.Entry<String, Long>> getLargestRanges() {
+        return largestRanges;
+    }
+
+    public List<List<String>> getCycles() {
+        return cycles;
+    }
+
+    public List<List<String>> getColumnCycles() {
+        return columnCycles;
+    }
+
+    /**
+     * Human-readable report
+     */
+    public String describe() {
+        StringBuilder out = new StringBuilder();
+        out.append("Cells in dependency graph: ").append(graph.getNodeCount())
+                .append(", references: ").append(graph.getEdgeCount()).append('\n');
+
+        List<String> path = getCriticalPath();
+        out.append("Critical path length: ").append(getCriticalPathLength()).append('\n');
+        if (!path.isEmpty()) {
+            out.append("  ");
+            if (path.size() > 12) {
+                out.append(String.join(" -> ", path.subList(0, 5))).append(" -> ... -> ")
+                        .append(String.join(" -> ", path.subList(path.size() - 5, path.size())));
+            } else {
+                out.append(String.join(" -> ", path));
+            }
+            out.append('\n');
+        }
+
+        out.append("Most transitive dependents:\n");
+        for (Map.Entry<String, Integer> entry : topFanOut) {
+            out.append("  ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+
+        out.append("Largest ranges:\n");
+        for (Map.Entry<String, Long> entry : largestRanges) {
+            out.append("  ").append(entry.getKey()).append(": ").append(entry.getValue()).append(" cells\n");
+        }
+
+        out.append(cycles.isEmpty() ? "Cycles: none\n" : "Cycles:\n");
+        for (List<String> cycle : cycles) {
+            out.append("  ").append(abbreviate(cycle)).append('\n');
+        }
+        out.append(columnCycles.isEmpty() ? "Columns depending on each other: none\n" : "Columns depending on each other:\n");
+        for (List<String> columns : columnCycles) {
+            out.append("  ").append(String.join(", ", columns)).append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * Depth of every node in topological order (Kahn over the dependency direction)
+     */
+    private void computeDepths() {
+        int n = graph.getNodeCount();
+        depth = new int[n];
+        parent = new int[n];
+        Arrays.fill(parent, -1);
+
+        int[] remaining = new int[n];
+        int[] queue = new int[n];
+        int tail = 0;
+        regionsOf = new int[n][];
+        for (int node = 0; node < n; node++) {
+            remaining[node] += graph.dependencyCountOf(node);
+            regionsOf[node] = graph.regionsOf(node);
+            for (int region : regionsOf[node]) {
+                remaining[region]++;
+            }
+        }
+        for (int node = 0; node < n; node++) {
+            if (remaining[node] == 0) {
+                queue[tail++] = node;
+            }
+        }
+
+        for (int head = 0; head < tail; head++) {
+            int node = queue[head];
+            if (deepest < 0 || depth[node] > depth[deepest]) {
+                deepest = node;
+            }
+            int count = graph.dependentCountOf(node);
+            for (int i = 0; i < count + regionsOf[node].length; i++) {
+                int dependent = i < count ? graph.dependentOf(node, i) : regionsOf[node][i - count];
+                if (depth[node] + 1 > depth[dependent]) {
+                    depth[dependent] = depth[node] + 1;
+                    parent[dependent] = node;
+                }
+                if (--remaining[dependent] == 0) {
+                    queue[tail++] = dependent;
+                }
+            }
+        }
+        // Nodes never dequeued sit on a cycle; computeCycles reports them
+    }
+
+    /**
+     * Rank by an upper bound computed in reverse topological order, then count the
+     * short list exactly
+     */
+    private void computeFanOut() {
+        int n = graph.getNodeCount();
+        if (n == 0 || topN <= 0) {
+            return;
+        }
+
+        // Bucket nodes by depth and walk from the deepest, so dependents are done first
+        int maxDepth = getCriticalPathLength();
+        int[] start = new int[maxDepth + 2];
+        for (int node = 0; node < n; node++) start[depth[node] + 1]++;
+        for (int d = 0; d <= maxDepth; d++) start[d + 1] += start[d];
+        int[] byDepth = new int[n];
+        int[] fill = Arrays.copyOf(start, start.length);
+        for (int node = 0; node < n; node++) byDepth[fill[depth[node]]++] = node;
+
+        long[] bound = new long[n];
+        for (int i = n - 1; i >= 0; i--) {
+            int node = byDepth[i];
+            long sum = 0;
+            for (int j = 0, count = graph.dependentCountOf(node); j < count; j++) {
+                sum += 1 + bound[graph.dependentOf(node, j)];
+            }
+            for (int region : regionsOf[node]) {
+                sum += bound[region]; // A region is not a cell, so it does not count itself
+            }
+            bound[node] = Math.min(sum, n - 1);
+        }
+
+        int shortList = Math.min(n, topN * 4);
+        PriorityQueue<Integer> candidates = new PriorityQueue<>(Comparator.comparingLong(node -> bound[node]));
+        for (int node = 0; node < n; node++) {
+            if (bound[node] == 0 || graph.isRegion(node)) continue;
+            candidates.add(node);
+            if (candidates.size() > shortList) candidates.poll();
+        }
+
+        List<Map.Entry<String, Integer>> exact = new ArrayList<>();
+        for (int node : candidates) {
+            String name = graph.nameOf(node);
+            exact.add(Map.entry(name, graph.getAllDependents(name).size()));
+        }
+        exact.sort(Map.Entry.<String, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        topFanOut.addAll(exact.subList(0, Math.min(topN, exact.size())));
+    }
+
+    private void computeLargestRanges() {
+        if (topN <= 0) {
+            return;
+        }
+        PriorityQueue<Map.Entry<String, Long>> largest = new PriorityQueue<>(Map.Entry.comparingByValue());
+        for (Cell cell : sheet.getAllCells().values()) {
+            if (cell.getContent() instanceof FormulaContent) {
+                collectRanges(cell.getCoordinate(), ((FormulaContent) cell.getContent()).getExpression(), largest);
+            }
+        }
+
+        List<Map.Entry<String, Long>> sorted = new ArrayList<>(largest);
+        sorted.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        largestRanges.addAll(sorted);
+    }
+
+    private void collectRanges(String cell, Expression expr, PriorityQueue<Map.Entry<String, Long>> largest) {
+        if (expr instanceof Range) {
+            Range range = (Range) expr;
+            long cells = (long) (range.getLastCol() - range.getFirstCol() + 1) * (range.getLastRow() - range.getFirstRow() + 1);
+            largest.add(Map.entry(cell + " " + range.getReference(), cells));
+            if (largest.size() > topN) largest.poll();
+        } else if (expr instanceof Function) {
+            for (Expression argument : ((Function) expr).getArguments()) {
+                collectRanges(cell, argument, largest);
+            }
+        } else if (expr instanceof BinaryOperation) {
+            collectRanges(cell, ((BinaryOperation) expr).getLeft(), largest);
+            collectRanges(cell, ((BinaryOperation) expr).getRight(), largest);
+        }
+    }
+
+    /**
+     * Cell-level cycles (normally none, since edits that close one are rejected) and
+     * column-level strongly connected groups
+     */
+    private void computeCycles() {
+        int n = graph.getNodeCount();
+        Graph cells = new Graph() {
+            public int size() { return n; }
+            public int degree(int node) { return graph.dependencyCountOf(node); }
+            public int edge(int node, int index) { return graph.dependencyOf(node, index); }
+        };
+        for (int[] component : stronglyConnected(cells)) {
+            List<String> names = new ArrayList<>(component.length);
+            for (int node : component) names.add(graph.nameOf(node));
+            cycles.add(names);
+        }
+
+        // Collapse cells to columns; an edge between two different columns is kept once
+        Map<Integer, Integer> columnIds = new HashMap<>();
+        List<Integer> columns = new ArrayList<>();
+        int[] columnOf = new int[n];
+        for (int node = 0; node < n; node++) {
+            // Other sheets' cells get a group of their own (negative), apart from this sheet's columns
+            int column = graph.isExternalNode(node) ? -1 - node : FileSystem.columnNumber(graph.nameOf(node));
+            Integer id = columnIds.get(column);
+            if (id == null) {
+                id = columns.size();
+                columnIds.put(column, id);
+                columns.add(column);
+            }
+            columnOf[node] = id;
+        }
+
+        Set<Long> seen = new HashSet<>();
+        List<List<Integer>> adjacency = new ArrayList<>();
+        for (int i = 0; i < columns.size(); i++) adjacency.add(new ArrayList<>());
+        for (int node = 0; node < n; node++) {
+            for (int i = 0, count = graph.dependencyCountOf(node); i < count; i++) {
+                int from = columnOf[node];
+                int to = columnOf[graph.dependencyOf(node, i)];
+                if (from != to && seen.add(((long) from << 32) | to)) {
+                    adjacency.get(from).add(to);
+                }
+            }
+        }
+
+        Graph columnGraph = new Graph() {
+            public int size() { return adjacency.size(); }
+            public int degree(int node) { return adjacency.get(node).size(); }
+            public int edge(int node, int index) { return adjacency.get(node).get(index); }
+        };
+        for (int[] component : stronglyConnected(columnGraph)) {
+            List<String> names = new ArrayList<>(component.length);
+            for (int id : component) names.add(FileSystem.columnName(columns.get(id)));
+            Collections.sort(names);
+            columnCycles.add(names);
+        }
+    }
+
+    /**
+     * Strongly connected components with more than one node (iterative Tarjan)
+     */
+    private static List<int[]> stronglyConnected(Graph g) {
+        int n = g.size();
+        int[] index = new int[n];
+        int[] low = new int[n];
+        boolean[] onStack = new boolean[n];
+        Arrays.fill(index, -1);
+
+        int[] stack = new int[n];
+        int stackSize = 0;
+        int[] callNode = new int[n];
+        int[] callEdge = new int[n];
+        int counter = 0;
+        List<int[]> components = new ArrayList<>();
+
+        for (int root = 0; root < n; root++) {
+            if (index[root] >= 0) continue;
+
+            int depth = 0;
+            callNode[0] = root;
+            callEdge[0] = 0;
+            index[root] = low[root] = counter++;
+            stack[stackSize++] = root;
+            onStack[root] = true;
+
+            while (depth >= 0) {
+                int node = callNode[depth];
+                if (callEdge[depth] < g.degree(node)) {
+                    int next = g.edge(node, callEdge[depth]++);
+                    if (index[next] < 0) {
+                        index[next] = low[next] = counter++;
+                        stack[stackSize++] = next;
+                        onStack[next] = true;
+                        depth++;
+                        callNode[depth] = next;
+                        callEdge[depth] = 0;
+                    } else if (onStack[next]) {
+                        low[node] = Math.min(low[node], index[next]);
+                    }
+                    continue;
+                }
+
+                // All edges done: close a component if node is its root, then return to the caller
+                if (low[node] == index[node]) {
+                    int from = stackSize;
+                    do {
+                        onStack[stack[--from]] = false;
+                    } while (stack[from] != node);
+                    if (stackSize - from > 1) {
+                        components.add(Arrays.copyOfRange(stack, from, stackSize));
+                    }
+                    stackSize = from;
+                }
+                depth--;
+                if (depth >= 0) {
+                    int caller = callNode[depth];
+                    low[caller] = Math.min(low[caller], low[node]);
+                }
+            }
+        }
+        return components;
+    }
+
+    private static String abbreviate(List<String> cells) {
+        return cells.size() <= 10 ? String.join(", ", cells)
+                : String.join(", ", cells.subList(0, 10)) + ", ... (" + cells.size() + " cells)";
+    }
+}
@@ -1,15 +1,68 @@
 import java.util.*;
 
+/**
+ * Dependency graph between cells, with integer node ids and adjacency arrays.
+ *
+ * Open-ended ranges (A:A, 3:3, A5:A) are one region node each instead of one node per
+ * covered cell, so a whole-column reference costs one edge. A region has no edges to the
+ * cells it covers; traversals towards dependents step from a cell to every region whose
+ * bounds contain it, so changing any cell in a column still reaches formulas over A:A.
+ *
+ * Filled blocks (Spreadsheet.fill) have no nodes or edges at all: a FillPattern computes which
+ * of its cells read a changed cell from the shared formula template.
+ *
+ * In a workbook, cells and open ranges of other sheets are external nodes named like
+ * "HOJA2!A1" or "HOJA2!A:A". They are leaves here; Workbook connects them to the sheet
+ * they belong to through getDependentsOfSheetCells().
+ */
 public class DependencyManager {
-    // Key: cell coordinate, Value: set of cells that this cell depends on
-    private Map<String, Set<String>> dependencies;
+    // Every cell that takes part in a dependency gets a dense integer id
+    private Map<String, Integer> ids;
+    private String[] names;
+    private int nodeCount;
+    private long edgeCount;
 
-    // Key: cell coordinate, Value: set of cells that depend on this cell
-    private Map<String, Set<String>> dependents;
+    // Adjacency stored as growable int lists per node (no boxed sets)
+    // dependencies[id]: cells that this cell depends on
+    private int[][] dependencies;
+    private int[] dependencyCount;
+
+    // dependents[id]: cells that depend on this cell
+    private int[][] dependents;
+    private int[] dependentCount;
+
+    // Each edge knows its position in the opposite list, so removing one is O(1) however large
+    // the fan-out: dependencySlots[id][i] is the index of id in dependents[dependencies[id][i]],
+    // dependentSlots[id][k] the index of id in dependencies[dependents[id][k]]
+    private int[][] dependencySlots;
+    private int[][] dependentSlots;
+
+    // Per-node visit stamps reused by every traversal, so no visited sets are allocated
+    private int[] marks;
+    private int epoch;
+
+    // Position of every cell node; region nodes have their bounds instead (null for cells)
+    private int[] cols;
+    private int[] rows;
+    private int[][] regionBounds;
+
+    // Region ids by column for regions up to NARROW_REGION columns wide; wider ones in a list
+    private Map<Integer, List<Integer>> columnRegions;
+    private List<Integer> wideRegions;
+    private int regionCount;
+    private static final int NARROW_REGION = 64;
+
+    // Filled blocks, whose dependencies follow from their template
+    private List<FillPattern> fills;
+
+    // External nodes by upper-case sheet name: cells are found by name, ranges through this list
+    private Map<String, List<Integer>> externalRanges;
+    private Set<String> externalSheets;
+
+    private static final int[] EMPTY = new int[0];
 
     public DependencyManager() {
-        this.dependencies = new HashMap<>();
-        this.dependents = new HashMap<>();
+        initialize();
     }
 
     /**
@@ -17,11 +70,29 @@ public class DependencyManager {
      * Example: If B1 has formula =A1*2, call addDependency("B1", "A1")
      */
     public void addDependency(String cell, String dependsOn) {
+        int from = idFor(cell.toUpperCase());
+        int to = idFor(dependsOn.toUpperCase());
+
+        if (!contains(dependencies[from], dependencyCount[from], to)) {
+            addEdge(from, to);
+        }
+    }
+
+    /**
+     * Replace all dependencies of 'cell' with the given set of cells in one call
+     * Avoids the per-edge duplicate check of addDependency, since the input is a set
+     */
+    public void setDependencies(String cell, Set<String> dependsOn) {
         cell = cell.toUpperCase();
-        dependsOn = dependsOn.toUpperCase();
+        clearDependencies(cell);
+        if (dependsOn.isEmpty()) {
+            return;
+        }
 
-        dependencies.computeIfAbsent(cell, k -> new HashSet<>()).add(dependsOn);
-        dependents.computeIfAbsent(dependsOn, k -> new HashSet<>()).add(cell);
+        int from = idFor(cell);
+        for (String dep : dependsOn) {
+            addEdge(from, idFor(dep.toUpperCase()));
+        }
     }
 
     /**
@@ -29,19 +100,116 @@ public class DependencyManager {
      */
     public void clearDependencies(String cell) {
         cell = cell.toUpperCase();
+        if (!fills.isEmpty()) {
+            // The cell no longer holds its filled formula
+            int col = FileSystem.columnNumber(cell);
+            int row = FileSystem.rowNumber(cell);
+            for (Iterator<FillPattern> it = fills.iterator(); it.hasNext(); ) {
+                FillPattern fill = it.next();
+                fill.hole(col, row);
+                if (fill.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+
+        Integer id = ids.get(cell);
+        if (id != null) {
+            clearDependencies(id);
+        }
+    }
 
+    private void clearDependencies(int id) {
         // Remove from dependents of other cells
-        Set<String> deps = dependencies.get(cell);
-        if (deps != null) {
-            for (String dep : deps) {
-                Set<String> depSet = dependents.get(dep);
-                if (depSet != null) {
-                    depSet.remove(cell);
+        int[] deps = dependencies[id];
+        for (int i = 0; i < dependencyCount[id]; i++) {
+            removeDependent(deps[i], dependencySlots[id][i]);
+        }
+
+        edgeCount -= dependencyCount[id];
+        dependencies[id] = EMPTY;
+        dependencySlots[id] = EMPTY;
+        dependencyCount[id] = 0;
+    }
+
+    /**
+     * Register a filled block; its cells must have no dependencies of their own (see clearBlock)
+     */
+    public void addFill(FillPattern fill) {
+        fills.add(fill);
+    }
+
+    /**
+     * Re-register one cell of a fill, e.g. when undo brings its filled formula back
+     */
+    public void restoreFillCell(FillPattern fill, String cell) {
+        clearDependencies(cell);
+        if (!fills.contains(fill)) {
+            fills.add(fill);
+        }
+        fill.unhole(FileSystem.columnNumber(cell), FileSystem.rowNumber(cell));
+    }
+
+    /**
+     * Clear the dependencies of every cell in the rectangle, as clearDependencies does per cell
+     */
+    public void clearBlock(int firstCol, int lastCol, int firstRow, int lastRow) {
+        for (Iterator<FillPattern> it = fills.iterator(); it.hasNext(); ) {
+            FillPattern fill = it.next();
+            if (fill.intersects(firstCol, lastCol, firstRow, lastRow)) {
+                fill.hole(firstCol, lastCol, firstRow, lastRow);
+                if (fill.isEmpty()) {
+                    it.remove();
                 }
             }
         }
+        int[] block = { firstCol, lastCol, firstRow, lastRow };
+        for (int id = 0; id < nodeCount; id++) {
+            if (regionBounds[id] == null && dependencyCount[id] > 0 && covers(block, cols[id], rows[id])) {
+                clearDependencies(id);
+            }
+        }
+    }
+
+    /**
+     * Cells outside the rectangle that depend (directly or indirectly) on cells inside it
+     */
+    public Set<String> getDependentsOfBlock(int firstCol, int lastCol, int firstRow, int lastRow) {
+        int[] block = { firstCol, lastCol, firstRow, lastRow };
+        Traversal traversal = new Traversal(block);
+        for (int id = 0; id < nodeCount; id++) {
+            int[] bounds = regionBounds[id];
+            if (bounds == null ? covers(block, cols[id], rows[id])
+                    : bounds[0] <= lastCol && bounds[1] >= firstCol && bounds[2] <= lastRow && bounds[3] >= firstRow) {
+                traversal.seed(id);
+            }
+        }
+        for (FillPattern fill : fills) {
+            fill.forEachReading(firstCol, lastCol, firstRow, lastRow, traversal::visit);
+        }
+        traversal.run();
+        return traversal.reached;
+    }
 
-        dependencies.remove(cell);
+    /**
+     * Check that filling the pattern's block keeps the graph free of cycles, before anything
+     * changes, and return the cells outside the block that depend on it.
+     * Conservative for cycles inside the block, see FillPattern.isAcyclic()
+     */
+    public Set<String> checkFill(FillPattern fill) {
+        int[] block = fill.bounds();
+        String name = FileSystem.coordinate(block[0], block[2]) + ":" + FileSystem.coordinate(block[1], block[3]);
+        if (!fill.isAcyclic()) {
+            throw new RuntimeException("Circular dependency detected: Cannot fill " + name);
+        }
+        Set<String> dependents = getDependentsOfBlock(block[0], block[1], block[2], block[3]);
+        for (String cell : dependents) {
+            if (fill.reads(FileSystem.columnNumber(cell), FileSystem.rowNumber(cell))) {
+                throw new RuntimeException("Circular dependency detected: Cannot fill " + name
+                        + " (" + cell + " depends on it)");
+            }
+        }
+        return dependents;
     }
 
     /**
@@ -49,22 +217,52 @@ public class DependencyManager {
      * Used for recalculation
      */
     public Set<String> getAllDependents(String cell) {
-        cell = cell.toUpperCase();
-        Set<String> result = new HashSet<>();
-        collectDependents(cell, result);
-        return result;
+        return getAllDependents(Collections.singleton(cell));
     }
 
-    private void collectDependents(String cell, Set<String> result) {
-        Set<String> directDependents = dependents.get(cell);
-        if (directDependents != null) {
-            for (String dependent : directDependents) {
-                if (!result.contains(dependent)) {
-                    result.add(dependent);
-                    collectDependents(dependent, result);
+    /**
+     * Get all cells that depend on any of the given cells (directly or indirectly)
+     * One traversal for the whole set, used when several cells change together
+     */
+    public Set<String> getAllDependents(Collection<String> cells) {
+        Set<String> result;
+        if (regionCount == 0 && fills.isEmpty()) {
+            int[] sources = new int[cells.size()];
+            int sourceCount = 0;
+            for (String cell : cells) {
+                Integer id = ids.get(cell.toUpperCase());
+                if (id != null) {
+                    sources[sourceCount++] = id;
                 }
             }
+            result = new HashSet<>();
+            if (sourceCount == 0) {
+                return result;
+            }
+            for (int id : reach(sources, sourceCount, dependents, dependentCount)) {
+                result.add(names[id]);
+            }
+        } else {
+            // A cell outside the graph can still be covered by a region or read by a fill
+            Traversal traversal = new Traversal(null);
+            for (String cell : cells) {
+                cell = cell.toUpperCase();
+                Integer id = ids.get(cell);
+                if (id != null) {
+                    traversal.seed(id);
+                } else {
+                    traversal.seed(cell);
+                }
+            }
+            traversal.run();
+            result = traversal.reached;
+        }
+
+        // Like the single-cell version, the changed cells themselves are not included
+        for (String cell : cells) {
+            result.remove(cell.toUpperCase());
         }
+        return result;
     }
 
     /**
@@ -73,108 +271,562 @@ public class DependencyManager {
      */
     public boolean wouldCreateCycle(String fromCell, Set<String> toCells) {
         fromCell = fromCell.toUpperCase();
+        int col = FileSystem.columnNumber(fromCell);
+        int row = FileSystem.rowNumber(fromCell);
 
+        Set<Integer> targets = new HashSet<>();
+        Set<String> targetCells = new HashSet<>();
+        List<int[]> targetRegions = new ArrayList<>();
         for (String toCell : toCells) {
             toCell = toCell.toUpperCase();
-
-            // If toCell depends on fromCell (directly or indirectly), adding
-            // fromCell -> toCell would create a cycle
-            if (dependsOn(toCell, fromCell)) {
+            if (toCell.equals(fromCell)) {
                 return true;
             }
+            if (toCell.indexOf('!') >= 0) {
+                continue; // Another sheet: checked across the workbook by Workbook.checkCycle
+            }
+            if (toCell.indexOf(':') >= 0) {
+                int[] bounds = Range.bounds(toCell);
+                if (covers(bounds, col, row)) {
+                    return true;
+                }
+                targetRegions.add(bounds);
+            } else {
+                targetCells.add(toCell);
+            }
+            Integer id = ids.get(toCell);
+            if (id != null) {
+                targets.add(id);
+            }
+        }
+
+        // A cycle through fromCell needs an edge into it, so a cell nothing depends on
+        // (the common case while loading top to bottom) never closes one
+        Integer self = ids.get(fromCell);
+        if (regionCount == 0 && fills.isEmpty() && targetRegions.isEmpty()) {
+            if (self == null || targets.isEmpty() || dependentCount[self] == 0) {
+                return false;
+            }
+            // If fromCell is reachable through the dependencies of any toCell, adding
+            // fromCell -> toCell would close a cycle
+            int[] sources = new int[targets.size()];
+            int sourceCount = 0;
+            for (int id : targets) {
+                sources[sourceCount++] = id;
+            }
+            for (int id : reach(sources, sourceCount, dependencies, dependencyCount)) {
+                if (id == self) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // With regions or fills, search the other way: neither has edges to the cells it
+        // reads, so look for a toCell (or a cell inside a referenced region) among the
+        // dependents of fromCell
+        if (targetCells.isEmpty() && targetRegions.isEmpty()) {
+            return false;
         }
+        Traversal traversal = new Traversal(null);
+        if (self != null) {
+            traversal.seed(self);
+        } else {
+            traversal.seed(fromCell);
+        }
+        traversal.run();
 
+        for (String cell : traversal.reached) {
+            if (targetCells.contains(cell)) {
+                return true;
+            }
+            for (int[] bounds : targetRegions) {
+                if (covers(bounds, FileSystem.columnNumber(cell), FileSystem.rowNumber(cell))) {
+                    return true;
+                }
+            }
+        }
         return false;
     }
 
     /**
-     * Check if 'cell' depends on 'target' (directly or indirectly)
+     * Get topological sort order for recalculation
+     * Returns cells in order such that dependencies are calculated before dependents
      */
-    private boolean dependsOn(String cell, String target) {
-        if (cell.equals(target)) {
-            return true;
+    public List<String> getCalculationOrder(Set<String> cells) {
+        List<String> result = new ArrayList<>(cells.size());
+
+        // A region's dependencies for the sort are the given cells it contains, so formulas
+        // over a region come after the cells in it that are recalculated too
+        Map<Integer, List<Integer>> regionMembers = new HashMap<>();
+        if (regionCount > 0) {
+            for (String cell : cells) {
+                Integer id = ids.get(cell.toUpperCase());
+                if (id != null && regionBounds[id] == null) {
+                    for (int region : regionsContaining(cols[id], rows[id])) {
+                        regionMembers.computeIfAbsent(region, r -> new ArrayList<>()).add(id);
+                    }
+                }
+            }
         }
 
-        Set<String> deps = dependencies.get(cell);
-        if (deps == null) {
-            return false;
+        // Iterative DFS over dependencies: mark == epoch means finished,
+        // mark == epoch + 1 means on the current path
+        nextEpoch();
+        int done = epoch;
+        int onPath = epoch + 1;
+
+        int[] stack = new int[16];
+        int[] edge = new int[16];
+
+        for (String cell : cells) {
+            cell = cell.toUpperCase();
+            Integer root = ids.get(cell);
+            if (root == null) {
+                result.add(cell);
+                continue;
+            }
+            if (marks[root] == done) {
+                continue;
+            }
+
+            int depth = 0;
+            stack[0] = root;
+            edge[0] = 0;
+            marks[root] = onPath;
+
+            while (depth >= 0) {
+                int node = stack[depth];
+                List<Integer> members = regionBounds[node] == null ? null : regionMembers.getOrDefault(node, List.of());
+                if (edge[depth] < (members == null ? dependencyCount[node] : members.size())) {
+                    int next = members == null ? dependencies[node][edge[depth]++] : members.get(edge[depth]++);
+                    if (marks[next] == onPath) {
+                        throw new RuntimeException("Circular dependency detected involving " + names[next]);
+                    }
+                    if (marks[next] != done) {
+                        if (++depth == stack.length) {
+                            stack = Arrays.copyOf(stack, depth * 2);
+                            edge = Arrays.copyOf(edge, depth * 2);
+                        }
+                        stack[depth] = next;
+                        edge[depth] = 0;
+                        marks[next] = onPath;
+                    }
+                } else {
+                    marks[node] = done;
+                    if (members == null && !isExternal(node)) {
+                        result.add(names[node]);
+                    }
+                    depth--;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Clear all dependencies (for new spreadsheet)
+     */
+    public void reset() {
+        initialize();
+    }
+
+    private void initialize() {
+        ids = new HashMap<>();
+        names = new String[16];
+        nodeCount = 0;
+        edgeCount = 0;
+        dependencies = new int[16][];
+        dependencyCount = new int[16];
+        dependents = new int[16][];
+        dependentCount = new int[16];
+        dependencySlots = new int[16][];
+        dependentSlots = new int[16][];
+        marks = new int[16];
+        epoch = 0;
+        cols = new int[16];
+        rows = new int[16];
+        regionBounds = new int[16][];
+        columnRegions = new HashMap<>();
+        wideRegions = new ArrayList<>();
+        regionCount = 0;
+        fills = new ArrayList<>();
+        externalRanges = new HashMap<>();
+        externalSheets = new HashSet<>();
+    }
+
+    /**
+     * Breadth-first reach from the given sources over one edge direction
+     * Returns the sources followed by every node reached from them, each once
+     */
+    private int[] reach(int[] sources, int sourceCount, int[][] edges, int[] edgeCount) {
+        nextEpoch();
+        int[] queue = new int[Math.max(16, sourceCount)];
+        int tail = 0;
+
+        for (int i = 0; i < sourceCount; i++) {
+            if (marks[sources[i]] != epoch) {
+                marks[sources[i]] = epoch;
+                queue[tail++] = sources[i];
+            }
         }
 
-        Set<String> visited = new HashSet<>();
-        return dependsOnRecursive(cell, target, visited);
+        for (int head = 0; head < tail; head++) {
+            int node = queue[head];
+            int[] adjacent = edges[node];
+            for (int i = 0; i < edgeCount[node]; i++) {
+                int next = adjacent[i];
+                if (marks[next] != epoch) {
+                    marks[next] = epoch;
+                    if (tail == queue.length) {
+                        queue = Arrays.copyOf(queue, tail * 2);
+                    }
+                    queue[tail++] = next;
+                }
+            }
+        }
+
+        return Arrays.copyOf(queue, tail);
     }
 
-    private boolean dependsOnRecursive(String cell, String target, Set<String> visited) {
-        if (cell.equals(target)) {
-            return true;
+    /**
+     * Breadth-first search towards dependents through edges, regions containing a reached cell
+     * and fills reading it. Reached cells without a node (filled cells, cells only inside a
+     * region) are walked by name. Cells inside 'skip' ({firstCol, lastCol, firstRow, lastRow},
+     * or null) are neither reported nor followed unless seeded.
+     */
+    private class Traversal {
+        private final int[] skip;
+        private int[] queue = new int[16];
+        private int tail;
+        private final ArrayDeque<String> cellQueue = new ArrayDeque<>();
+        private final Set<String> seenCells = new HashSet<>();
+
+        // Every cell reached, seeds excluded unless reached again
+        final Set<String> reached = new HashSet<>();
+
+        Traversal(int[] skip) {
+            this.skip = skip;
+            nextEpoch();
         }
 
-        if (visited.contains(cell)) {
-            return false;
+        void seed(int id) {
+            if (marks[id] != epoch) {
+                marks[id] = epoch;
+                push(id);
+            }
         }
-        visited.add(cell);
 
-        Set<String> deps = dependencies.get(cell);
-        if (deps == null) {
-            return false;
+        void seed(String cell) {
+            if (seenCells.add(cell)) {
+                cellQueue.add(cell);
+            }
         }
 
-        for (String dep : deps) {
-            if (dependsOnRecursive(dep, target, visited)) {
-                return true;
+        void visit(int id) {
+            if (marks[id] == epoch) {
+                return;
             }
+            marks[id] = epoch;
+            if (regionBounds[id] == null) {
+                if (skip != null && covers(skip, cols[id], rows[id])) {
+                    return;
+                }
+                reached.add(names[id]);
+            }
+            push(id);
         }
 
-        return false;
+        void visit(int col, int row) {
+            if (skip != null && covers(skip, col, row)) {
+                return;
+            }
+            String cell = FileSystem.coordinate(col, row);
+            Integer id = ids.get(cell);
+            if (id != null) {
+                visit(id);
+            } else if (seenCells.add(cell)) {
+                reached.add(cell);
+                cellQueue.add(cell);
+            }
+        }
+
+        void run() {
+            int head = 0;
+            while (head < tail || !cellQueue.isEmpty()) {
+                int col, row;
+                if (head < tail) {
+                    int node = queue[head++];
+                    for (int i = 0; i < dependentCount[node]; i++) {
+                        visit(dependents[node][i]);
+                    }
+                    if (regionBounds[node] != null || isExternal(node)) {
+                        continue;
+                    }
+                    col = cols[node];
+                    row = rows[node];
+                } else {
+                    String cell = cellQueue.poll();
+                    col = FileSystem.columnNumber(cell);
+                    row = FileSystem.rowNumber(cell);
+                }
+                for (int region : regionsContaining(col, row)) {
+                    visit(region);
+                }
+                for (FillPattern fill : fills) {
+                    fill.forEachReading(col, col, row, row, this::visit);
+                }
+            }
+        }
+
+        private void push(int id) {
+            if (tail == queue.length) {
+                queue = Arrays.copyOf(queue, tail * 2);
+            }
+            queue[tail++] = id;
+        }
+    }
+
+    private int idFor(String cell) {
+        Integer id = ids.get(cell);
+        if (id != null) {
+            return id;
+        }
+
+        if (nodeCount == names.length) {
+            int capacity = nodeCount * 2;
+            names = Arrays.copyOf(names, capacity);
+            dependencies = Arrays.copyOf(dependencies, capacity);
+            dependencyCount = Arrays.copyOf(dependencyCount, capacity);
+            dependents = Arrays.copyOf(dependents, capacity);
+            dependentCount = Arrays.copyOf(dependentCount, capacity);
+            dependencySlots = Arrays.copyOf(dependencySlots, capacity);
+            dependentSlots = Arrays.copyOf(dependentSlots, capacity);
+            marks = Arrays.copyOf(marks, capacity);
+            cols = Arrays.copyOf(cols, capacity);
+            rows = Arrays.copyOf(rows, capacity);
+            regionBounds = Arrays.copyOf(regionBounds, capacity);
+        }
+
+        int newId = nodeCount++;
+        ids.put(cell, newId);
+        names[newId] = cell;
+        dependencies[newId] = EMPTY;
+        dependents[newId] = EMPTY;
+        dependencySlots[newId] = EMPTY;
+        dependentSlots[newId] = EMPTY;
+        int bang = cell.indexOf('!');
+        if (bang >= 0) {
+            // Another sheet's cell or range: no position in this sheet
+            String sheet = cell.substring(0, bang);
+            externalSheets.add(sheet);
+            if (cell.indexOf(':', bang) >= 0) {
+                externalRanges.computeIfAbsent(sheet, s -> new ArrayList<>()).add(newId);
+            }
+        } else if (cell.indexOf(':') >= 0) {
+            addRegion(newId, Range.bounds(cell));
+        } else {
+            cols[newId] = FileSystem.columnNumber(cell);
+            rows[newId] = FileSystem.rowNumber(cell);
+        }
+        return newId;
     }
 
     /**
-     * Get topological sort order for recalculation
-     * Returns cells in order such that dependencies are calculated before dependents
+     * Cells of this sheet that depend (directly or indirectly) on the given cells of another sheet
      */
-    public List<String> getCalculationOrder(Set<String> cells) {
-        List<String> result = new ArrayList<>();
-        Set<String> visited = new HashSet<>();
-        Set<String> tempMark = new HashSet<>();
-
+    public Set<String> getDependentsOfSheetCells(String sheet, Collection<String> cells) {
+        sheet = sheet.toUpperCase();
+        if (!externalSheets.contains(sheet) || cells.isEmpty()) {
+            return new HashSet<>();
+        }
+        Traversal traversal = new Traversal(null);
+        String prefix = sheet + "!";
         for (String cell : cells) {
-            if (!visited.contains(cell)) {
-                topologicalSort(cell, visited, tempMark, result);
+            Integer id = ids.get(prefix + cell.toUpperCase());
+            if (id != null) {
+                traversal.seed(id);
+            }
+        }
+        for (int id : externalRanges.getOrDefault(sheet, List.of())) {
+            int[] bounds = Range.bounds(names[id].substring(prefix.length()));
+            for (String cell : cells) {
+                if (covers(bounds, FileSystem.columnNumber(cell), FileSystem.rowNumber(cell))) {
+                    traversal.seed(id);
+                    break;
+                }
             }
         }
+        traversal.run();
+        return traversal.reached;
+    }
 
-        return result;
+    /**
+     * True if a formula of this sheet has referenced the named sheet
+     */
+    public boolean referencesSheet(String sheet) {
+        return externalSheets.contains(sheet.toUpperCase());
     }
 
-    private void topologicalSort(String cell, Set<String> visited,
-                                  Set<String> tempMark, List<String> result) {
-        if (tempMark.contains(cell)) {
-            throw new RuntimeException("Circular dependency detected involving " + cell);
+    private boolean isExternal(int id) {
+        return cols[id] == 0 && regionBounds[id] == null;
+    }
+
+    private void addRegion(int id, int[] bounds) {
+        regionBounds[id] = bounds;
+        regionCount++;
+        if (bounds[1] - bounds[0] < NARROW_REGION) {
+            for (int col = bounds[0]; col <= bounds[1]; col++) {
+                columnRegions.computeIfAbsent(col, c -> new ArrayList<>()).add(id);
+            }
+        } else {
+            wideRegions.add(id);
         }
+    }
 
-        if (visited.contains(cell)) {
-            return;
+    /**
+     * Ids of the region nodes whose bounds contain the cell
+     */
+    private int[] regionsContaining(int col, int row) {
+        if (regionCount == 0) {
+            return EMPTY;
+        }
+        int[] found = EMPTY;
+        int count = 0;
+        List<Integer> narrow = columnRegions.get(col);
+        if (narrow != null) {
+            for (int region : narrow) {
+                if (covers(regionBounds[region], col, row)) found = append(found, count++, region);
+            }
+        }
+        for (int region : wideRegions) {
+            if (covers(regionBounds[region], col, row)) found = append(found, count++, region);
         }
+        return count == found.length ? found : Arrays.copyOf(found, count);
+    }
 
-        tempMark.add(cell);
+    private static boolean covers(int[] bounds, int col, int row) {
+        return bounds[0] <= col && col <= bounds[1] && bounds[2] <= row && row <= bounds[3];
+    }
 
-        Set<String> deps = dependencies.get(cell);
-        if (deps != null) {
-            for (String dep : deps) {
-                topologicalSort(dep, visited, tempMark, result);
-            }
+    /**
+     * Estimated heap bytes: per node the id map entry, name and per-node array slots;
+     * per edge an id and a slot in each direction, with growth slack
+     */
+    public long estimateBytes() {
+        long bytes = nodeCount * BYTES_PER_NODE + edgeCount * BYTES_PER_EDGE;
+        for (FillPattern fill : fills) {
+            bytes += BYTES_PER_FILL + fill.size() / 8; // Hole bits
         }
+        return bytes;
+    }
+
+    static final long BYTES_PER_NODE = 160;
+    static final long BYTES_PER_EDGE = 24;
+    static final long BYTES_PER_FILL = 200;
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public long getEdgeCount() {
+        return edgeCount;
+    }
+
+    // Read-only access to the graph by node id (0 .. getNodeCount() - 1), for DependencyAnalyzer
+
+    String nameOf(int id) {
+        return names[id];
+    }
+
+    int idOf(String cell) {
+        Integer id = ids.get(cell.toUpperCase());
+        return id == null ? -1 : id;
+    }
+
+    int dependencyCountOf(int id) {
+        return dependencyCount[id];
+    }
+
+    int dependencyOf(int id, int index) {
+        return dependencies[id][index];
+    }
+
+    int dependentCountOf(int id) {
+        return dependentCount[id];
+    }
+
+    int dependentOf(int id, int index) {
+        return dependents[id][index];
+    }
 
-        tempMark.remove(cell);
-        visited.add(cell);
-        result.add(cell);
+    boolean isRegion(int id) {
+        return regionBounds[id] != null;
     }
 
     /**
-     * Clear all dependencies (for new spreadsheet)
+     * True for a cell or range of another sheet
      */
-    public void reset() {
-        dependencies.clear();
-        dependents.clear();
+    boolean isExternalNode(int id) {
+        return isExternal(id);
+    }
+
+    /**
+     * Regions containing a cell node: implicit dependents besides dependentOf()
+     */
+    int[] regionsOf(int id) {
+        return regionBounds[id] == null ? regionsContaining(cols[id], rows[id]) : EMPTY;
+    }
+
+    private void addEdge(int from, int to) {
+        edgeCount++;
+        int i = dependencyCount[from]++;
+        int k = dependentCount[to]++;
+        dependencies[from] = append(dependencies[from], i, to);
+        dependencySlots[from] = append(dependencySlots[from], i, k);
+        dependents[to] = append(dependents[to], k, from);
+        dependentSlots[to] = append(dependentSlots[to], k, i);
+    }
+
+    /**
+     * Remove the entry at 'slot' of node's dependents
+     */
+    private void removeDependent(int node, int slot) {
+        int last = --dependentCount[node];
+        if (slot != last) {
+            // Order does not matter, so move the last entry in and tell its edge where it went
+            int moved = dependents[node][last];
+            int movedSlot = dependentSlots[node][last];
+            dependents[node][slot] = moved;
+            dependentSlots[node][slot] = movedSlot;
+            dependencySlots[moved][movedSlot] = slot;
+        }
+    }
+
+    /**
+     * Start a new traversal; epoch and epoch + 1 are both fresh marks afterwards
+     */
+    private void nextEpoch() {
+        if (epoch > Integer.MAX_VALUE - 4) {
+            Arrays.fill(marks, 0);
+            epoch = 0;
+        }
+        epoch += 2;
+    }
+
+    private static int[] append(int[] list, int size, int value) {
+        if (size == list.length) {
+            list = Arrays.copyOf(list, Math.max(4, size * 2));
+        }
+        list[size] = value;
+        return list;
+    }
+
+    private static boolean contains(int[] list, int size, int value) {
+        for (int i = 0; i < size; i++) {
+            if (list[i] == value) return true;
+        }
+        return false;
     }
 }
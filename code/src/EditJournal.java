@@ -0,0 +1,333 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of setCellContent operations, stored next to a snapshot file as "<snapshot>.journal".
+ *
+ * Record layout: [int payloadLength][int crc32(payload)][payload]
+ * Payload:       [short coordLength][coord UTF-8][raw content UTF-8]
+ *                [short coordLength | REMOVED][coord UTF-8]   for a cell removed by undo/redo
+ *
+ * Records are written sequentially and fsynced in batches: every 64 records or 200 ms. An append
+ * checks the interval itself, and a shared background thread checks it every 50 ms, so a record
+ * is on disk about 250 ms after it was appended at the latest even when no further edit comes.
+ * When the journal grows past the compaction threshold the whole sheet is written as a new
+ * snapshot and the journal is truncated. On load, records are replayed until the first torn or
+ * corrupt record.
+ */
+public class EditJournal {
+    public static final String EXTENSION = ".journal";
+
+    private static final int HEADER_SIZE = 8;
+    // Flag in the coordinate length of a removal record (coordinates are far shorter)
+    private static final int REMOVED = 0x8000;
+    private static final int SYNC_EVERY_RECORDS = 64;
+    private static final long SYNC_INTERVAL_MILLIS = 200;
+    private static final long DEFAULT_COMPACT_BYTES = 16L * 1024 * 1024;
+
+    // Syncs journals that went SYNC_INTERVAL_MILLIS without a sync when no append comes to do it
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "s2v-journal");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Spreadsheet sheet;
+    private final Path snapshotPath;
+    private final Path journalPath;
+    private final FileChannel channel;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer buffer = ByteBuffer.allocate(256);
+
+    private long compactThreshold = DEFAULT_COMPACT_BYTES;
+    private int unsyncedRecords;
+    private long lastSync = System.currentTimeMillis();
+    private final ScheduledFuture<?> flush;
+
+    private EditJournal(Spreadsheet sheet, Path snapshotPath) throws IOException {
+        this.sheet = sheet;
+        this.snapshotPath = snapshotPath.toAbsolutePath();
+        this.journalPath = journalPathFor(this.snapshotPath);
+        this.channel = FileChannel.open(journalPath,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.flush = FLUSHER.scheduleWithFixedDelay(this::syncIfDue,
+                SYNC_INTERVAL_MILLIS / 4, SYNC_INTERVAL_MILLIS / 4, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Attach a journal for the given snapshot file to the sheet.
+     * Every later successful setCellContent on the sheet is appended to it.
+     */
+    public static EditJournal attach(Spreadsheet sheet, String snapshotPath) throws IOException {
+        EditJournal journal = new EditJournal(sheet, Paths.get(snapshotPath));
+        sheet.setJournal(journal);
+        return journal;
+    }
+
+    /**
+     * Write the sheet as a fresh snapshot and start an empty journal for it.
+     * Any stale journal from an earlier file at this path is discarded first,
+     * so it can never be replayed over the new snapshot.
+     */
+    public static EditJournal create(Spreadsheet sheet, String snapshotPath) throws IOException {
+        EditJournal journal = new EditJournal(sheet, Paths.get(snapshotPath));
+        journal.channel.truncate(0);
+        journal.compact();
+        sheet.setJournal(journal);
+        return journal;
+    }
+
+    /**
+     * Save the sheet to a snapshot file: saving to the journaled file compacts its journal,
+     * another file gets a new journal (used by every front end, so they all save alike)
+     */
+    public static void save(Spreadsheet sheet, String snapshotPath) throws IOException {
+        EditJournal journal = sheet.getJournal();
+        if (journal != null && journal.isFor(snapshotPath)) {
+            journal.compact();
+        } else {
+            create(sheet, snapshotPath);
+        }
+    }
+
+    public static Path journalPathFor(Path snapshotPath) {
+        return snapshotPath.resolveSibling(snapshotPath.getFileName() + EXTENSION);
+    }
+
+    /**
+     * Whether this journal belongs to the given snapshot file
+     */
+    public boolean isFor(String path) {
+        return snapshotPath.equals(Paths.get(path).toAbsolutePath());
+    }
+
+    public void setCompactThreshold(long bytes) {
+        this.compactThreshold = bytes;
+    }
+
+    /**
+     * Append one edit. Compacts into a fresh snapshot if the journal got too large.
+     */
+    public void append(String coord, String rawInput) throws IOException {
+        append(coord, rawInput, 0);
+    }
+
+    /**
+     * Append the removal of a cell: replay deletes it instead of storing an empty text
+     */
+    public void appendRemoval(String coord) throws IOException {
+        append(coord, null, REMOVED);
+    }
+
+    private synchronized void append(String coord, String rawInput, int flags) throws IOException {
+        byte[] coordBytes = coord.getBytes(StandardCharsets.UTF_8);
+        byte[] rawBytes = rawInput == null ? new byte[0] : rawInput.getBytes(StandardCharsets.UTF_8);
+        int payloadLength = 2 + coordBytes.length + rawBytes.length;
+
+        if (buffer.capacity() < HEADER_SIZE + payloadLength) {
+            buffer = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, HEADER_SIZE + payloadLength));
+        }
+        buffer.clear();
+        buffer.putInt(payloadLength);
+        buffer.putInt(0); // crc placeholder
+        buffer.putShort((short) (coordBytes.length | flags));
+        buffer.put(coordBytes);
+        buffer.put(rawBytes);
+
+        crc.reset();
+        crc.update(buffer.array(), HEADER_SIZE, payloadLength);
+        buffer.putInt(4, (int) crc.getValue());
+
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        unsyncedRecords++;
+        long now = System.currentTimeMillis();
+        if (unsyncedRecords >= SYNC_EVERY_RECORDS || now - lastSync >= SYNC_INTERVAL_MILLIS) {
+            sync();
+        }
+
+        if (channel.size() >= compactThreshold) {
+            compact();
+        }
+    }
+
+    /**
+     * Force all appended records to disk
+     */
+    public synchronized void sync() throws IOException {
+        if (unsyncedRecords > 0) {
+            channel.force(false);
+            unsyncedRecords = 0;
+        }
+        lastSync = System.currentTimeMillis();
+    }
+
+    /**
+     * Write the whole sheet as a new snapshot (atomically replacing the old one) and empty the journal.
+     * A crash between the two steps is harmless: replaying edits over a snapshot that
+     * already contains them sets the same contents again.
+     */
+    public synchronized void compact() throws IOException {
+        Path temp = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+        FileSystem.save(sheet, temp.toString(), CompressedFile.isCompressedName(snapshotPath.toString()));
+        try {
+            Files.move(temp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, snapshotPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        channel.truncate(0);
+        channel.force(true);
+        unsyncedRecords = 0;
+        lastSync = System.currentTimeMillis();
+    }
+
+    public synchronized void close() throws IOException {
+        flush.cancel(false);
+        sync();
+        channel.close();
+    }
+
+    /**
+     * Background flush: sync if records are pending and the last sync is SYNC_INTERVAL_MILLIS old
+     */
+    private synchronized void syncIfDue() {
+        if (unsyncedRecords == 0 || !channel.isOpen()
+                || System.currentTimeMillis() - lastSync < SYNC_INTERVAL_MILLIS) {
+            return;
+        }
+        try {
+            sync();
+        } catch (IOException e) {
+            System.err.println("Error syncing journal " + journalPath + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Replay the journal of a snapshot file into the sheet, if one exists.
+     * Stops at the first incomplete or corrupt record and cuts the file there,
+     * so a crash mid-append only loses that last record.
+     * Returns the number of records applied.
+     */
+    public static int replay(Spreadsheet sheet, String snapshotPath) throws IOException {
+        Path path = journalPathFor(Paths.get(snapshotPath).toAbsolutePath());
+        if (!Files.exists(path)) {
+            return 0;
+        }
+
+        int[] applied = { 0 };
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long offset = readRecords(in, (coord, raw) -> {
+                try {
+                    if (raw == null) {
+                        sheet.removeCell(coord);
+                    } else {
+                        sheet.setCellContent(coord, raw);
+                    }
+                } catch (Exception e) {
+                    // Same as load: a bad cell does not stop the rest
+                    System.err.println("Error replaying cell " + coord + ": " + e.getMessage());
+                }
+                applied[0]++;
+            });
+
+            if (offset < size) {
+                System.err.println("Journal " + path + ": dropping " + (size - offset) + " bytes of incomplete records");
+                in.truncate(offset);
+            }
+        }
+        return applied[0];
+    }
+
+    /**
+     * The last raw content journaled for each cell of a snapshot file ("" for a cleared cell),
+     * without applying them or touching the journal
+     */
+    public static Map<String, String> readEdits(String snapshotPath) throws IOException {
+        Path path = journalPathFor(Paths.get(snapshotPath).toAbsolutePath());
+        Map<String, String> edits = new LinkedHashMap<>();
+        if (Files.exists(path)) {
+            try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+                readRecords(in, (coord, raw) -> edits.put(coord.toUpperCase(), raw == null ? "" : raw));
+            }
+        }
+        return edits;
+    }
+
+    /**
+     * Receives the records of a journal in order; raw is null for a removed cell
+     */
+    private interface RecordVisitor {
+        void accept(String coord, String raw);
+    }
+
+    /**
+     * Read records until the first incomplete or corrupt one; returns the offset where it starts
+     */
+    private static long readRecords(FileChannel in, RecordVisitor visitor) throws IOException {
+        long size = in.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        ByteBuffer payload = ByteBuffer.allocate(256);
+        CRC32 check = new CRC32();
+        long offset = 0;
+
+        while (offset + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(in, header, offset);
+            int length = header.getInt(0);
+            int expectedCrc = header.getInt(4);
+
+            if (length < 2 || offset + HEADER_SIZE + length > size) {
+                break;
+            }
+            if (payload.capacity() < length) {
+                payload = ByteBuffer.allocate(length);
+            }
+            payload.clear().limit(length);
+            readFully(in, payload, offset + HEADER_SIZE);
+
+            check.reset();
+            check.update(payload.array(), 0, length);
+            if ((int) check.getValue() != expectedCrc) {
+                break;
+            }
+
+            int coordField = payload.getShort(0) & 0xFFFF;
+            int coordLength = coordField & ~REMOVED;
+            if (2 + coordLength > length) {
+                break;
+            }
+            String coord = new String(payload.array(), 2, coordLength, StandardCharsets.UTF_8);
+            String raw = (coordField & REMOVED) != 0 ? null
+                    : new String(payload.array(), 2 + coordLength, length - 2 - coordLength, StandardCharsets.UTF_8);
+
+            visitor.accept(coord, raw);
+            offset += HEADER_SIZE + length;
+        }
+        return offset;
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = in.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of journal");
+            }
+            position += read;
+        }
+    }
+}
@@ -1,3 +1,18 @@
 public interface Expression {
     public double calculate();
+
+    /**
+     * Value of the expression as shown in a cell: a Double, or a String for text results
+     */
+    public default Object evaluate() {
+        return calculate();
+    }
+
+    /**
+     * The expression as it reads when its formula is filled 'cols' columns right and 'rows' rows
+     * down: relative references move, anchored ones ($A$1) do not. Unchanged parts are shared.
+     */
+    public default Expression shift(int cols, int rows) {
+        return this;
+    }
 }
@@ -1,9 +1,27 @@
 import java.io.*;
-import java.util.Map;
-import java.util.TreeMap;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.IntFunction;
+import java.util.zip.Inflater;
 
 public class FileSystem {
+    /**
+     * Save as S2V text, or block-compressed for a ".s2z" path
+     */
     public static void save(Spreadsheet sheet, String path) throws IOException {
+        save(sheet, path, CompressedFile.isCompressedName(path));
+    }
+
+    public static void save(Spreadsheet sheet, String path, boolean compressed) throws IOException {
+        if (compressed) {
+            CompressedFile.save(sheet, path);
+            return;
+        }
         Map<Integer, Map<Integer, String>> rows = new TreeMap<>();
 
         for (Cell c : sheet.getAllCells().values()) {
@@ -25,7 +43,7 @@ public class FileSystem {
             StringBuilder line = new StringBuilder();
             for (int col = 1; col <= maxCol; col++) {
                 String content = cols.getOrDefault(col, "");
-                line.append(content);
+                line.append(quoteCell(content));
 
                 if (col < maxCol) line.append(";");
             }
@@ -37,54 +55,653 @@ public class FileSystem {
         writer.close();
     }
 
+    // Lines per parsing task when loading
+    private static final int LOAD_CHUNK_LINES = 4096;
+
+    /**
+     * Load a file. Lines are read sequentially and handed out in chunks to worker threads,
+     * which split them and parse every cell (number, text or formula). Chunks are then merged
+     * in file order on the calling thread, which assigns row numbers and registers dependencies.
+     * Formulas are calculated once at the end.
+     * Compressed files (recognized by their header, whatever the name) are read block by block:
+     * workers decompress and parse blocks, which are merged in row order the same way.
+     */
     public static Spreadsheet load(String path) throws IOException {
-        Spreadsheet sheet = new Spreadsheet();
+        return load(path, new Spreadsheet());
+    }
 
-        BufferedReader reader = new BufferedReader(new FileReader(path));
-        String line;
+    /**
+     * Open a file for editing, as every front end does: load it into a new sheet (see
+     * Spreadsheet.create) and attach its edit journal. A sheet that fails to load is closed.
+     */
+    public static Spreadsheet open(String path, Path mappedStoreDir) throws IOException {
+        Spreadsheet sheet = Spreadsheet.create(mappedStoreDir);
+        try {
+            load(path, sheet);
+            EditJournal.attach(sheet, path);
+        } catch (IOException | RuntimeException e) {
+            sheet.close();
+            throw e;
+        }
+        return sheet;
+    }
+
+    /**
+     * Load a file into the given empty sheet (e.g. one created with a mapped cell store)
+     */
+    public static Spreadsheet load(String path, Spreadsheet sheet) throws IOException {
+
+        int workers = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "s2v-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            if (CompressedFile.isCompressed(Paths.get(path))) {
+                loadBlocks(path, sheet, pool, workers);
+            } else {
+                loadLines(path, sheet, pool, workers);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        // Apply edits recorded after the snapshot was written
+        EditJournal.replay(sheet, path);
+        sheet.clearHistory();
+
+        // Calculate all formulas after loading
+        try {
+            sheet.calculateAll();
+        } catch (Exception e) {
+            System.err.println("Error calculating formulas: " + e.getMessage());
+        }
+
+        return sheet;
+    }
+
+    private static void loadLines(String path, Spreadsheet sheet, ExecutorService pool, int workers) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            loadLines(reader, Long.MAX_VALUE, sheet, pool, workers);
+        }
+    }
+
+    /**
+     * Load up to 'maxLines' lines from the reader as rows 1, 2, ...
+     */
+    private static void loadLines(BufferedReader reader, long maxLines, Spreadsheet sheet, ExecutorService pool,
+                                  int workers) throws IOException {
+        // Chunks in file order; at most a few per worker are kept in flight
+        Deque<Future<ParsedChunk>> pending = new ArrayDeque<>();
         int row = 1;
+        long read = 0;
 
-        while ((line = reader.readLine()) != null) {
-            String[] parts = line.split(";", -1); // keep empty cells
+        List<String> lines = new ArrayList<>(LOAD_CHUNK_LINES);
+        String line;
 
-            for (int col = 1; col <= parts.length; col++) {
-                String coord = coordinate(col, row);
-                String content = parts[col - 1];
-
-                if (!content.isEmpty()) {
-                    try {
-                        sheet.setCellContent(coord, content);
-                    } catch (Exception e) {
-                        System.err.println("Error loading cell " + coord + ": " + e.getMessage());
-                        // Continue loading other cells
-                    }
+        while (read < maxLines && (line = reader.readLine()) != null) {
+            read++;
+            lines.add(line);
+            if (lines.size() == LOAD_CHUNK_LINES) {
+                List<String> chunk = lines;
+                pending.add(pool.submit(() -> parseChunk(sheet, chunk)));
+                lines = new ArrayList<>(LOAD_CHUNK_LINES);
+
+                if (pending.size() > 2 * workers) {
+                    row = mergeChunk(sheet, pending.poll(), row);
                 }
             }
+        }
 
-            row++;
+        if (!lines.isEmpty()) {
+            List<String> chunk = lines;
+            pending.add(pool.submit(() -> parseChunk(sheet, chunk)));
         }
 
-        reader.close();
+        while (!pending.isEmpty()) {
+            row = mergeChunk(sheet, pending.poll(), row);
+        }
+        if (read < maxLines && maxLines != Long.MAX_VALUE) {
+            throw new IOException("Sheet " + sheet.getName() + " is truncated: " + read + " of " + maxLines + " rows");
+        }
+    }
 
-        // Calculate all formulas after loading
+    /**
+     * Load only rows [firstRow, lastRow] of a file, plus every row that their formulas read,
+     * directly or through other formulas, so values in the slice are the same as after a full load.
+     *
+     * Compressed files are read through their block index: only the blocks holding wanted rows
+     * are read and decompressed, and only the wanted rows of a block are parsed, so time and
+     * memory follow the slice and its precedents instead of the file. Plain S2V files have no
+     * index and are scanned again for each round of precedents. Journaled edits are applied to
+     * the rows loaded, but the journal is not attached: the sheet does not hold the whole file.
+     */
+    public static Spreadsheet loadRows(String path, int firstRow, int lastRow) throws IOException {
+        return loadRows(path, firstRow, lastRow, new Spreadsheet());
+    }
+
+    public static Spreadsheet loadRows(String path, int firstRow, int lastRow, Spreadsheet sheet) throws IOException {
+        if (firstRow < 1 || lastRow < firstRow || lastRow > Range.MAX_ROW) {
+            throw new IllegalArgumentException("Invalid row range: " + firstRow + ":" + lastRow);
+        }
+        TreeMap<Integer, Map<Integer, String>> edits = editsByRow(EditJournal.readEdits(path));
+        BitSet wanted = new BitSet();
+        wanted.set(firstRow, lastRow + 1);
+        BitSet loaded = new BitSet();
+
+        int workers = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "s2v-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        boolean compressed = CompressedFile.isCompressed(Paths.get(path));
+        Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+        try (FileChannel channel = compressed ? FileChannel.open(Paths.get(path), StandardOpenOption.READ) : null) {
+            Map<Integer, CompressedFile.Block> blocks = new HashMap<>();
+            if (compressed) {
+                for (CompressedFile.Block block : CompressedFile.readIndex(channel)) {
+                    blocks.put(block.firstRow, block);
+                }
+            }
+
+            // Each round loads the rows read by the formulas of the previous one
+            while (true) {
+                BitSet rows = (BitSet) wanted.clone();
+                rows.andNot(loaded);
+                if (rows.isEmpty()) {
+                    break;
+                }
+                loaded.or(rows);
+                if (compressed) {
+                    loadBlockRows(channel, blocks, rows, edits, sheet, wanted, pool, workers, inflaters);
+                } else {
+                    loadLineRows(path, rows, edits, sheet, wanted, pool, workers);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            for (Inflater inflater : inflaters) {
+                inflater.end();
+            }
+        }
+
+        sheet.clearHistory();
         try {
             sheet.calculateAll();
         } catch (Exception e) {
             System.err.println("Error calculating formulas: " + e.getMessage());
         }
-
         return sheet;
     }
 
+    /**
+     * Load the given rows of a compressed file, one task per block (or per run of empty rows
+     * that only have journaled edits). Rows read by the new formulas are added to 'referenced'.
+     */
+    private static void loadBlockRows(FileChannel channel, Map<Integer, CompressedFile.Block> blocks, BitSet rows,
+                                      TreeMap<Integer, Map<Integer, String>> edits, Spreadsheet sheet,
+                                      BitSet referenced, ExecutorService pool, int workers,
+                                      Queue<Inflater> inflaters) throws IOException {
+        Deque<Future<ParsedChunk>> pending = new ArrayDeque<>();
+        Deque<Integer> pendingRows = new ArrayDeque<>();
+
+        for (int from = rows.nextSetBit(0); from >= 0; ) {
+            int start = windowStart(from);
+            int to = rows.previousSetBit(start + CompressedFile.BLOCK_ROWS - 1);
+            CompressedFile.Block block = blocks.get(start);
+
+            if (block != null || hasEdits(edits, rows, from, to)) {
+                int sliceFrom = from;
+                pending.add(pool.submit(() -> {
+                    List<String> lines = block == null ? null : CompressedFile.readLines(channel, block, inflaters);
+                    return parseChunk(sheet, slice(sliceFrom, to, rows, edits,
+                            row -> lines == null || row - start >= lines.size() ? "" : lines.get(row - start)));
+                }));
+                pendingRows.add(from);
+                if (pending.size() > 2 * workers) {
+                    mergeChunk(sheet, pending.poll(), pendingRows.poll(), referenced);
+                }
+            }
+            from = rows.nextSetBit(to + 1);
+        }
+        while (!pending.isEmpty()) {
+            mergeChunk(sheet, pending.poll(), pendingRows.poll(), referenced);
+        }
+    }
+
+    /**
+     * Load the given rows of a plain S2V file, scanning it from the start
+     */
+    private static void loadLineRows(String path, BitSet rows, TreeMap<Integer, Map<Integer, String>> edits,
+                                     Spreadsheet sheet, BitSet referenced, ExecutorService pool,
+                                     int workers) throws IOException {
+        Deque<Future<ParsedChunk>> pending = new ArrayDeque<>();
+        Deque<Integer> pendingRows = new ArrayDeque<>();
+        int lastRow = rows.length() - 1;
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            int row = 0;
+            String line = "";
+            for (int from = rows.nextSetBit(0); from >= 0; ) {
+                int start = windowStart(from);
+                int to = rows.previousSetBit(start + CompressedFile.BLOCK_ROWS - 1);
+
+                // Keep only the wanted lines of this window
+                String[] lines = new String[to - from + 1];
+                while (line != null && row < to && (line = reader.readLine()) != null) {
+                    row++;
+                    if (row >= from && rows.get(row)) {
+                        lines[row - from] = line;
+                    }
+                }
+                boolean pastEnd = line == null && row < from;
+                if (pastEnd && !hasEdits(edits, rows, from, lastRow)) {
+                    break; // Nothing journaled further down either
+                }
+
+                if (!pastEnd || hasEdits(edits, rows, from, to)) {
+                    int sliceFrom = from;
+                    pending.add(pool.submit(() -> parseChunk(sheet, slice(sliceFrom, to, rows, edits,
+                            wantedRow -> lines[wantedRow - sliceFrom] == null ? "" : lines[wantedRow - sliceFrom]))));
+                    pendingRows.add(from);
+                    if (pending.size() > 2 * workers) {
+                        mergeChunk(sheet, pending.poll(), pendingRows.poll(), referenced);
+                    }
+                }
+                from = rows.nextSetBit(to + 1);
+            }
+        }
+        while (!pending.isEmpty()) {
+            mergeChunk(sheet, pending.poll(), pendingRows.poll(), referenced);
+        }
+    }
+
+    /**
+     * First row of the block-sized window holding the row
+     */
+    private static int windowStart(int row) {
+        return (row - 1) / CompressedFile.BLOCK_ROWS * CompressedFile.BLOCK_ROWS + 1;
+    }
+
+    /**
+     * Lines of rows [from, to] with their journaled edits applied; rows not in 'rows' are left empty
+     */
+    private static List<String> slice(int from, int to, BitSet rows, TreeMap<Integer, Map<Integer, String>> edits,
+                                      IntFunction<String> fileLine) {
+        List<String> lines = new ArrayList<>(to - from + 1);
+        for (int row = from; row <= to; row++) {
+            if (!rows.get(row)) {
+                lines.add("");
+                continue;
+            }
+            Map<Integer, String> rowEdits = edits.get(row);
+            lines.add(rowEdits == null ? fileLine.apply(row) : applyEdits(fileLine.apply(row), rowEdits));
+        }
+        return lines;
+    }
+
+    private static boolean hasEdits(TreeMap<Integer, Map<Integer, String>> edits, BitSet rows, int from, int to) {
+        for (int row : edits.subMap(from, true, to, true).keySet()) {
+            if (rows.get(row)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The S2V line with some of its cells replaced ("" clears a cell)
+     */
+    private static String applyEdits(String line, Map<Integer, String> rowEdits) {
+        List<String> cells = new ArrayList<>(Arrays.asList(splitLine(line)));
+        for (Map.Entry<Integer, String> edit : rowEdits.entrySet()) {
+            while (cells.size() < edit.getKey()) {
+                cells.add("");
+            }
+            cells.set(edit.getKey() - 1, edit.getValue());
+        }
+        while (cells.size() > 1 && cells.get(cells.size() - 1).isEmpty()) {
+            cells.remove(cells.size() - 1);
+        }
+        StringBuilder edited = new StringBuilder(line.length() + 16);
+        for (int i = 0; i < cells.size(); i++) {
+            if (i > 0) edited.append(';');
+            edited.append(quoteCell(cells.get(i)));
+        }
+        return edited.toString();
+    }
+
+    /**
+     * Journaled edits (coordinate -> raw content) grouped by row, then column
+     */
+    private static TreeMap<Integer, Map<Integer, String>> editsByRow(Map<String, String> edits) {
+        TreeMap<Integer, Map<Integer, String>> byRow = new TreeMap<>();
+        for (Map.Entry<String, String> edit : edits.entrySet()) {
+            byRow.computeIfAbsent(rowNumber(edit.getKey()), row -> new HashMap<>())
+                    .put(columnNumber(edit.getKey()), edit.getValue());
+        }
+        return byRow;
+    }
+
+    /**
+     * Mark the rows a formula's references (as collected by Spreadsheet.extractReferences) read
+     */
+    private static void markRows(Set<String> references, BitSet rows) {
+        for (String reference : references) {
+            if (reference.indexOf('!') >= 0) {
+                continue; // Another sheet's cells are not in this file
+            }
+            reference = reference.replace("$", "");
+            if (reference.indexOf(':') < 0) {
+                rows.set(rowNumber(reference));
+            } else {
+                int[] bounds = Range.bounds(reference);
+                rows.set(bounds[2], bounds[3] + 1);
+            }
+        }
+    }
+
+    private static final String WORKBOOK_MAGIC = "S2W 1";
+
+    /**
+     * Save every sheet of a workbook as its own section of one text file:
+     *
+     *   S2W 1
+     *   @sheet <rows> <name>      one line per sheet, in workbook order
+     *   @data
+     *   <rows> S2V lines of the first sheet (empty lines for empty rows), then the next sheet...
+     *
+     * All names come first so that formulas reading a later sheet can be parsed while loading.
+     */
+    public static void saveWorkbook(Workbook workbook, String path) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(path), StandardCharsets.UTF_8), 1 << 16)) {
+            writer.write(WORKBOOK_MAGIC);
+            writer.newLine();
+            for (Spreadsheet sheet : workbook.getSheets()) {
+                writer.write("@sheet " + sheet.getIndex().getMaxRow() + " " + sheet.getName());
+                writer.newLine();
+            }
+            writer.write("@data");
+            writer.newLine();
+
+            for (Spreadsheet sheet : workbook.getSheets()) {
+                int maxCol = sheet.getIndex().getMaxCol();
+                StringBuilder line = new StringBuilder();
+                for (int row = 1; row <= sheet.getIndex().getMaxRow(); row++) {
+                    line.setLength(0);
+                    int col = 1;
+                    for (int populated : sheet.getIndex().columnsInRow(row, 1, maxCol)) {
+                        Content content = sheet.getContent(populated, row);
+                        if (content == null) {
+                            continue;
+                        }
+                        for (; col < populated; col++) {
+                            line.append(';');
+                        }
+                        line.append(quoteCell(content.getRawContent()));
+                    }
+                    writer.append(line);
+                    writer.newLine();
+                }
+            }
+        }
+    }
+
+    /**
+     * Load a workbook saved by saveWorkbook; sections are parsed like S2V files, then independent
+     * groups of sheets are calculated in parallel
+     */
+    public static Workbook loadWorkbook(String path) throws IOException {
+        Workbook workbook = new Workbook();
+        List<Long> rows = new ArrayList<>();
+
+        int workers = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "s2w-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(path), StandardCharsets.UTF_8), 1 << 16)) {
+            if (!WORKBOOK_MAGIC.equals(reader.readLine())) {
+                throw new IOException("Not a workbook file: " + path);
+            }
+            String line;
+            while ((line = reader.readLine()) != null && !line.equals("@data")) {
+                String[] header = line.split(" ", 3);
+                if (header.length < 3 || !header[0].equals("@sheet")) {
+                    throw new IOException("Invalid workbook header line: " + line);
+                }
+                try {
+                    rows.add(Long.parseLong(header[1]));
+                    workbook.addSheet(header[2]);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Invalid workbook header line: " + line, e);
+                }
+            }
+            if (line == null) {
+                throw new IOException("Workbook file has no data section: " + path);
+            }
+
+            List<Spreadsheet> sheets = workbook.getSheets();
+            for (int i = 0; i < sheets.size(); i++) {
+                loadLines(reader, rows.get(i), sheets.get(i), pool, workers);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        for (Spreadsheet sheet : workbook.getSheets()) {
+            sheet.clearHistory();
+        }
+        try {
+            workbook.calculateAll();
+        } catch (Exception e) {
+            System.err.println("Error calculating formulas: " + e.getMessage());
+        }
+        return workbook;
+    }
+
+    private static void loadBlocks(String path, Spreadsheet sheet, ExecutorService pool, int workers) throws IOException {
+        Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+        Deque<Future<ParsedChunk>> pending = new ArrayDeque<>();
+        Deque<CompressedFile.Block> pendingBlocks = new ArrayDeque<>();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            for (CompressedFile.Block block : CompressedFile.readIndex(channel)) {
+                pending.add(pool.submit(() -> parseChunk(sheet, CompressedFile.readLines(channel, block, inflaters))));
+                pendingBlocks.add(block);
+
+                if (pending.size() > 2 * workers) {
+                    mergeChunk(sheet, pending.poll(), pendingBlocks.poll().firstRow);
+                }
+            }
+            while (!pending.isEmpty()) {
+                mergeChunk(sheet, pending.poll(), pendingBlocks.poll().firstRow);
+            }
+        } finally {
+            for (Inflater inflater : inflaters) {
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Parsed cells of a block of consecutive lines.
+     * Row numbers are relative to the block, since the block does not know where it starts.
+     */
+    private static class ParsedChunk {
+        int lineCount;
+        List<int[]> positions = new ArrayList<>(); // {rowInChunk, col}
+        List<Content> contents = new ArrayList<>();
+        List<Set<String>> references = new ArrayList<>();
+        List<String> errors = new ArrayList<>();
+    }
+
+    /**
+     * Split and parse a block of lines (runs on a worker thread; does not modify the sheet)
+     */
+    private static ParsedChunk parseChunk(Spreadsheet sheet, List<String> lines) {
+        ParsedChunk chunk = new ParsedChunk();
+        chunk.lineCount = lines.size();
+
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (line.indexOf('"') < 0) {
+                // Cells are parsed in place between the ';', so numbers never become strings
+                int from = 0;
+                for (int col = 1; from <= line.length(); col++) {
+                    int end = line.indexOf(';', from);
+                    if (end < 0) end = line.length();
+                    if (end > from) { // keep empty cells
+                        parseCell(sheet, chunk, i, col, line, from, end);
+                    }
+                    from = end + 1;
+                }
+                continue;
+            }
+
+            String[] parts = splitLine(line);
+            for (int col = 1; col <= parts.length; col++) {
+                if (!parts[col - 1].isEmpty()) {
+                    parseCell(sheet, chunk, i, col, parts[col - 1], 0, parts[col - 1].length());
+                }
+            }
+        }
+
+        return chunk;
+    }
+
+    private static void parseCell(Spreadsheet sheet, ParsedChunk chunk, int rowInChunk, int col,
+                                  String text, int from, int to) {
+        Content parsed = null;
+        Set<String> refs = null;
+        String error = null;
+        try {
+            parsed = sheet.parseContent(text, from, to);
+            if (parsed instanceof FormulaContent) {
+                refs = sheet.extractReferences((FormulaContent) parsed);
+            }
+        } catch (Exception e) {
+            error = e.getMessage();
+        }
+
+        chunk.positions.add(new int[] { rowInChunk, col });
+        chunk.contents.add(parsed);
+        chunk.references.add(refs);
+        chunk.errors.add(error);
+    }
+
+    /**
+     * Install a parsed block into the sheet, starting at the given row.
+     * Returns the row after the block.
+     */
+    private static int mergeChunk(Spreadsheet sheet, Future<ParsedChunk> future, int firstRow) throws IOException {
+        return mergeChunk(sheet, future, firstRow, null);
+    }
+
+    /**
+     * Same, also marking in 'referenced' (when given) the rows read by the installed formulas
+     */
+    private static int mergeChunk(Spreadsheet sheet, Future<ParsedChunk> future, int firstRow,
+                                  BitSet referenced) throws IOException {
+        ParsedChunk chunk;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Loading interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Error parsing file: " + e.getCause().getMessage(), e.getCause());
+        }
+
+        for (int i = 0; i < chunk.positions.size(); i++) {
+            int[] position = chunk.positions.get(i);
+            String coord = coordinate(position[1], firstRow + position[0]);
+
+            try {
+                if (chunk.errors.get(i) != null) {
+                    throw new RuntimeException(chunk.errors.get(i));
+                }
+                sheet.installContent(coord, chunk.contents.get(i), chunk.references.get(i));
+                if (referenced != null && chunk.references.get(i) != null) {
+                    markRows(chunk.references.get(i), referenced);
+                }
+            } catch (MemoryLimitException e) {
+                throw new IOException("Load stopped at cell " + coord + ": " + e.getMessage(), e);
+            } catch (Exception e) {
+                System.err.println("Error loading cell " + coord + ": " + e.getMessage());
+                // Continue loading other cells
+            }
+        }
+
+        sheet.getMemoryBudget().relievePressure();
+        return firstRow + chunk.lineCount;
+    }
+
+    /**
+     * A cell as written in an S2V line. Contents holding ';' (=SUMA(A1:A9; C1:C9), text) or
+     * starting with '"' are quoted, with '"' doubled inside: "=SUMA(A1:A9; C1:C9)"
+     */
+    public static String quoteCell(String raw) {
+        if (raw.indexOf(';') < 0 && !raw.startsWith("\"")) {
+            return raw;
+        }
+        return '"' + raw.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * The cells of an S2V line, empty ones included, with quoted cells unquoted
+     */
+    public static String[] splitLine(String line) {
+        if (line.indexOf('"') < 0) {
+            return line.split(";", -1);
+        }
+        List<String> cells = new ArrayList<>();
+        StringBuilder cell = new StringBuilder();
+        int i = 0;
+        while (true) {
+            cell.setLength(0);
+            if (i < line.length() && line.charAt(i) == '"') {
+                // Quoted: up to the closing quote, then the separator
+                i++;
+                while (i < line.length()) {
+                    char ch = line.charAt(i++);
+                    if (ch != '"') {
+                        cell.append(ch);
+                    } else if (i < line.length() && line.charAt(i) == '"') {
+                        cell.append('"');
+                        i++;
+                    } else {
+                        break;
+                    }
+                }
+            }
+            // Unquoted cells, and anything after a closing quote, run to the next ';'
+            int end = line.indexOf(';', i);
+            cell.append(line, i, end < 0 ? line.length() : end);
+            cells.add(cell.toString());
+            if (end < 0) {
+                return cells.toArray(new String[0]);
+            }
+            i = end + 1;
+        }
+    }
+
     // Utility: Convert "A" → 1, "B" → 2, ... "AA" → 27
     public static int columnNumber(String coord) {  // Changed to public
         int i = 0;
         while (i < coord.length() && Character.isLetter(coord.charAt(i))) i++;
 
-        String colLetters = coord.substring(0, i).toUpperCase();
         int col = 0;
-        for (char ch : colLetters.toCharArray()) {
-            col = col * 26 + (ch - 'A' + 1);
+        for (int j = 0; j < i; j++) {
+            col = col * 26 + (Character.toUpperCase(coord.charAt(j)) - 'A' + 1);
         }
         return col;
     }
@@ -93,10 +710,15 @@ public class FileSystem {
     public static int rowNumber(String coord) {  // Changed to public
         int i = 0;
         while (i < coord.length() && Character.isLetter(coord.charAt(i))) i++;
-        return Integer.parseInt(coord.substring(i));
+        return Integer.parseInt(coord, i, coord.length(), 10);
     }
 
     public static String coordinate(int col, int row) {  // Changed to public
+        return columnName(col) + row;
+    }
+
+    // Utility: Convert 1 → "A", 26 → "Z", 27 → "AA"
+    public static String columnName(int col) {
         StringBuilder sb = new StringBuilder();
 
         while (col > 0) {
@@ -105,6 +727,6 @@ public class FileSystem {
             col /= 26;
         }
 
-        return sb.toString() + row;
+        return sb.toString();
     }
 }
\ No newline at end of file
@@ -0,0 +1,224 @@
+import java.util.BitSet;
+
+/**
+ * Dependencies of a filled block, kept as one pattern instead of edges per cell.
+ *
+ * Every cell of the block holds the template's formula moved by its offset from the template
+ * origin, so the cells it reads follow from the template's references: a relative bound moves
+ * with the offset, a fixed one (anchored or open-ended) does not. Which cells of the block read
+ * a given rectangle is then two intervals of offsets, one per axis, found in O(1) per reference.
+ *
+ * Cells later overwritten or cleared become holes and no longer count as part of the pattern.
+ */
+public class FillPattern {
+    /**
+     * Receives cells of the block
+     */
+    interface CellVisitor {
+        void visit(int col, int row);
+    }
+
+    private final FormulaTemplate template;
+    private final int firstCol, lastCol, firstRow, lastRow;
+    private final BitSet holes = new BitSet();
+    private long holeCount;
+
+    public FillPattern(FormulaTemplate template, int firstCol, int lastCol, int firstRow, int lastRow) {
+        this.template = template;
+        this.firstCol = firstCol;
+        this.lastCol = lastCol;
+        this.firstRow = firstRow;
+        this.lastRow = lastRow;
+    }
+
+    public FormulaTemplate getTemplate() {
+        return template;
+    }
+
+    /**
+     * {firstCol, lastCol, firstRow, lastRow} of the block
+     */
+    public int[] bounds() {
+        return new int[] { firstCol, lastCol, firstRow, lastRow };
+    }
+
+    public long size() {
+        return (long) (lastCol - firstCol + 1) * (lastRow - firstRow + 1);
+    }
+
+    /**
+     * True if the cell is in the block and still holds the filled formula
+     */
+    public boolean covers(int col, int row) {
+        return inBlock(col, row) && !holes.get(bit(col, row));
+    }
+
+    /**
+     * Visit every filled cell that reads any cell of the rectangle
+     */
+    void forEachReading(int fromCol, int toCol, int fromRow, int toRow, CellVisitor visitor) {
+        int originCol = template.getOriginCol();
+        int originRow = template.getOriginRow();
+        for (int[] reference : template.references()) {
+            long cols = offsets(reference, 0, fromCol, toCol, firstCol - originCol, lastCol - originCol);
+            long rows = offsets(reference, 4, fromRow, toRow, firstRow - originRow, lastRow - originRow);
+            if (cols == EMPTY || rows == EMPTY) {
+                continue;
+            }
+            for (int row = originRow + low(rows); row <= originRow + high(rows); row++) {
+                for (int col = originCol + low(cols); col <= originCol + high(cols); col++) {
+                    if (holeCount == 0 || !holes.get(bit(col, row))) {
+                        visitor.visit(col, row);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * True if some cell of the block would read the given cell (holes are ignored)
+     */
+    boolean reads(int col, int row) {
+        int originCol = template.getOriginCol();
+        int originRow = template.getOriginRow();
+        for (int[] reference : template.references()) {
+            if (offsets(reference, 0, col, col, firstCol - originCol, lastCol - originCol) != EMPTY
+                    && offsets(reference, 4, row, row, firstRow - originRow, lastRow - originRow) != EMPTY) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    /**
+     * Offsets d in [minOffset, maxOffset] for which one axis of a reference overlaps [from, to],
+     * packed as (low << 32 | high), or EMPTY. 'axis' is 0 for columns and 4 for rows.
+     * The reference spans [first + d, last + d] on that axis, without the d of a fixed bound.
+     */
+    private static long offsets(int[] reference, int axis, int from, int to, int minOffset, int maxOffset) {
+        int first = reference[axis], firstFixed = reference[axis + 1];
+        int last = reference[axis + 2], lastFixed = reference[axis + 3];
+        long low = minOffset, high = maxOffset;
+
+        // first + d <= to
+        if (firstFixed != 0) {
+            if (first > to) return EMPTY;
+        } else {
+            high = Math.min(high, (long) to - first);
+        }
+        // last + d >= from
+        if (lastFixed != 0) {
+            if (last < from) return EMPTY;
+        } else {
+            low = Math.max(low, (long) from - last);
+        }
+        return low > high ? EMPTY : low << 32 | (high & 0xFFFFFFFFL);
+    }
+
+    private static int low(long offsets) {
+        return (int) (offsets >> 32);
+    }
+
+    private static int high(long offsets) {
+        return (int) offsets;
+    }
+
+    /**
+     * {firstCol, lastCol, firstRow, lastRow} of everything a reference reads across the block
+     */
+    int[] sweep(int[] reference) {
+        int colOffset = template.getOriginCol(), rowOffset = template.getOriginRow();
+        return new int[] {
+            reference[0] + (reference[1] != 0 ? 0 : firstCol - colOffset),
+            reference[2] + (reference[3] != 0 ? 0 : lastCol - colOffset),
+            reference[4] + (reference[5] != 0 ? 0 : firstRow - rowOffset),
+            reference[6] + (reference[7] != 0 ? 0 : lastRow - rowOffset)
+        };
+    }
+
+    /**
+     * The first reference that moves off the sheet somewhere in the block, or null
+     */
+    int[] referenceOffSheet() {
+        for (int[] reference : template.references()) {
+            int[] swept = sweep(reference);
+            if (swept[0] < 1 || swept[1] > Range.MAX_COL || swept[2] < 1 || swept[3] > Range.MAX_ROW) {
+                return reference;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * True if the filled cells cannot depend on each other in a cycle. Conservative: passes
+     * when, on one axis and in one direction, every reference that can reach into the block
+     * points strictly away from the cell reading it (like a running total reading the row above)
+     */
+    boolean isAcyclic() {
+        boolean up = true, down = true, left = true, right = true;
+        int originCol = template.getOriginCol(), originRow = template.getOriginRow();
+        int[] block = { firstCol, lastCol, firstRow, lastRow };
+
+        for (int[] reference : template.references()) {
+            int[] swept = sweep(reference);
+            if (swept[0] > block[1] || swept[1] < block[0] || swept[2] > block[3] || swept[3] < block[2]) {
+                continue; // Never reads a cell of the block
+            }
+            // Relative bounds keep their distance to the reading cell; fixed ones overlap the block
+            up &= reference[7] == 0 && reference[6] < originRow;
+            down &= reference[5] == 0 && reference[4] > originRow;
+            left &= reference[3] == 0 && reference[2] < originCol;
+            right &= reference[1] == 0 && reference[0] > originCol;
+        }
+        return up || down || left || right;
+    }
+
+    void hole(int col, int row) {
+        if (inBlock(col, row) && !holes.get(bit(col, row))) {
+            holes.set(bit(col, row));
+            holeCount++;
+        }
+    }
+
+    void unhole(int col, int row) {
+        if (inBlock(col, row) && holes.get(bit(col, row))) {
+            holes.clear(bit(col, row));
+            holeCount--;
+        }
+    }
+
+    /**
+     * Mark the part of the block inside the rectangle as holes
+     */
+    void hole(int fromCol, int toCol, int fromRow, int toRow) {
+        int colFrom = Math.max(fromCol, firstCol), colTo = Math.min(toCol, lastCol);
+        for (int row = Math.max(fromRow, firstRow); row <= Math.min(toRow, lastRow); row++) {
+            if (colFrom <= colTo) {
+                int from = bit(colFrom, row), to = bit(colTo, row) + 1;
+                holeCount += (to - from) - holes.get(from, to).cardinality();
+                holes.set(from, to);
+            }
+        }
+    }
+
+    /**
+     * True once every cell of the block has been overwritten
+     */
+    boolean isEmpty() {
+        return holeCount == size();
+    }
+
+    boolean intersects(int fromCol, int toCol, int fromRow, int toRow) {
+        return fromCol <= lastCol && toCol >= firstCol && fromRow <= lastRow && toRow >= firstRow;
+    }
+
+    private boolean inBlock(int col, int row) {
+        return col >= firstCol && col <= lastCol && row >= firstRow && row <= lastRow;
+    }
+
+    private int bit(int col, int row) {
+        return (row - firstRow) * (lastCol - firstCol + 1) + (col - firstCol);
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ * A formula cell produced by a fill: the fill's shared template plus this cell's offset from the
+ * template origin. The expression and text are derived from the template when asked for, so a
+ * filled cell costs a few words instead of its own parsed formula.
+ */
+public class FilledFormulaContent extends FormulaContent {
+    private final FillPattern fill;
+    private final int colOffset;
+    private final int rowOffset;
+
+    public FilledFormulaContent(FillPattern fill, int colOffset, int rowOffset) {
+        super(null, null);
+        this.fill = fill;
+        this.colOffset = colOffset;
+        this.rowOffset = rowOffset;
+    }
+
+    @Override
+    public String getRawContent() {
+        return fill.getTemplate().formulaAt(colOffset, rowOffset);
+    }
+
+    @Override
+    public Expression getExpression() {
+        return fill.getTemplate().expressionAt(colOffset, rowOffset);
+    }
+
+    public FillPattern getFill() {
+        return fill;
+    }
+
+    public int getColOffset() {
+        return colOffset;
+    }
+
+    public int getRowOffset() {
+        return rowOffset;
+    }
+}
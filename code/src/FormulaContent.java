@@ -10,7 +10,7 @@ public class FormulaContent extends Content {
     @Override
     public Object getValue() {
         try {
-            return expression.calculate();
+            return getExpression().evaluate();
         } catch (Exception e) {
             return "#ERROR: " + e.getMessage();
         }
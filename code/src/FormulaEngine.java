@@ -1,6 +1,13 @@
+import java.util.ArrayList;
+import java.util.List;
+
 public class FormulaEngine {
+    // Most arguments an aggregate (SUMA, MIN, MAX, PROMEDIO) accepts, as in Excel
+    static final int MAX_ARGUMENTS = 255;
+
     private String formula;
-    private int position;
+    private FormulaLexer lexer;
+    private int position; // Index of the lookahead token
     private Spreadsheet spreadsheet;
 
     public FormulaEngine(String formula, Spreadsheet spreadsheet) {
@@ -16,11 +23,13 @@ public class FormulaEngine {
         if (!formula.startsWith("=")) {
             throw new FormulaParseException("Formula must start with '='");
         }
-        position = 1; // Skip '='
+        lexer = new FormulaLexer(formula);
+        lexer.tokenize(1); // Skip '='
+        position = 0;
         Expression expr = parseExpression();
 
-        if (position < formula.length()) {
-            throw new FormulaParseException("Unexpected characters after formula at position " + position);
+        if (peek() != FormulaLexer.END) {
+            throw new FormulaParseException("Unexpected characters after formula at position " + lexer.start(position));
         }
 
         return expr;
@@ -33,13 +42,8 @@ public class FormulaEngine {
     private Expression parseExpression() throws FormulaParseException {
         Expression left = parseTerm();
 
-        while (position < formula.length()) {
-            skipWhitespace();
-            if (position >= formula.length()) break;
-
-            char op = formula.charAt(position);
-            if (op != '+' && op != '-') break;
-
+        while (peek() == FormulaLexer.PLUS || peek() == FormulaLexer.MINUS) {
+            char op = peek() == FormulaLexer.PLUS ? '+' : '-';
             position++;
             Expression right = parseTerm();
             left = new BinaryOperation(left, op, right);
@@ -50,20 +54,15 @@ public class FormulaEngine {
 
     /**
      * Parse term: handles multiplication and division
-     * Term -> Factor (('*' | '/') Factor)*
+     * Term -> Power (('*' | '/') Power)*
      */
     private Expression parseTerm() throws FormulaParseException {
-        Expression left = parseFactor();
-
-        while (position < formula.length()) {
-            skipWhitespace();
-            if (position >= formula.length()) break;
-
-            char op = formula.charAt(position);
-            if (op != '*' && op != '/') break;
+        Expression left = parsePower();
 
+        while (peek() == FormulaLexer.STAR || peek() == FormulaLexer.SLASH) {
+            char op = peek() == FormulaLexer.STAR ? '*' : '/';
             position++;
-            Expression right = parseFactor();
+            Expression right = parsePower();
             left = new BinaryOperation(left, op, right);
         }
 
@@ -71,184 +70,215 @@ public class FormulaEngine {
     }
 
     /**
-     * Parse factor: handles numbers, cell references, functions, and parentheses
-     * Factor -> Number | CellRef | Function | '(' Expression ')'
+     * Parse power: left-associative exponentiation, like spreadsheet applications
+     * Power -> Unary ('^' Unary)*
      */
-    private Expression parseFactor() throws FormulaParseException {
-        skipWhitespace();
-
-        if (position >= formula.length()) {
-            throw new FormulaParseException("Unexpected end of formula");
-        }
+    private Expression parsePower() throws FormulaParseException {
+        Expression left = parseUnary();
 
-        // Check for parentheses
-        if (formula.charAt(position) == '(') {
+        while (peek() == FormulaLexer.CARET) {
             position++;
-            Expression expr = parseExpression();
-            skipWhitespace();
-            if (position >= formula.length() || formula.charAt(position) != ')') {
-                throw new FormulaParseException("Missing closing parenthesis");
-            }
-            position++;
-            return expr;
+            Expression right = parseUnary();
+            left = new BinaryOperation(left, '^', right);
         }
 
-        // Check for number
-        if (Character.isDigit(formula.charAt(position))) {
-            return parseNumber();
-        }
-
-        // Check for cell reference or function
-        if (Character.isLetter(formula.charAt(position))) {
-            return parseCellOrFunction();
-        }
-
-        throw new FormulaParseException("Unexpected character at position " + position + ": " + formula.charAt(position));
+        return left;
     }
 
     /**
-     * Parse number literal
+     * Parse unary sign (binds tighter than '^', so -2^2 = 4)
+     * Unary -> ('-' | '+') Unary | Factor
      */
-    private Expression parseNumber() {
-        int start = position;
-        while (position < formula.length() &&
-               (Character.isDigit(formula.charAt(position)) ||
-                formula.charAt(position) == '.')) {
+    private Expression parseUnary() throws FormulaParseException {
+        if (peek() == FormulaLexer.MINUS) {
+            position++;
+            return new BinaryOperation(new Literal(0), '-', parseUnary());
+        }
+        if (peek() == FormulaLexer.PLUS) {
             position++;
+            return parseUnary();
         }
-        String numStr = formula.substring(start, position);
-        return new Literal(Double.parseDouble(numStr));
+        return parseFactor();
     }
 
     /**
-     * Parse cell reference or function call
+     * Parse factor: handles numbers, cell references, ranges, functions, and parentheses
+     * Factor -> Number | String | CellRef | Range | Function | '(' Expression ')'
+     * Range -> CellRef ':' CellRef | CellRef ':' Column | Column ':' Column | Row ':' Row
+     * Either may be prefixed with a sheet of the same workbook: Hoja2!A1, 'Ventas 2024'!A:A
      */
-    private Expression parseCellOrFunction() throws FormulaParseException {
-        int start = position;
-
-        // Read letters
-        while (position < formula.length() && Character.isLetter(formula.charAt(position))) {
-            position++;
-        }
-
-        String identifier = formula.substring(start, position);
-        skipWhitespace();
-
-        // Check if it's a function (followed by '(')
-        if (position < formula.length() && formula.charAt(position) == '(') {
-            return parseFunction(identifier);
+    private Expression parseFactor() throws FormulaParseException {
+        int token = position;
+
+        switch (peek()) {
+            case FormulaLexer.LPAREN -> {
+                position++;
+                Expression expr = parseExpression();
+                expect(FormulaLexer.RPAREN, "Missing closing parenthesis");
+                return expr;
+            }
+            case FormulaLexer.NUMBER -> {
+                position++;
+                if (peek() == FormulaLexer.COLON) {
+                    return parseOpenRange(token, FormulaLexer.NUMBER, spreadsheet);
+                }
+                return new Literal(lexer.number(token));
+            }
+            case FormulaLexer.STRING -> {
+                position++;
+                return new TextLiteral(lexer.string(token));
+            }
+            case FormulaLexer.CELL -> {
+                position++;
+                return parseCellOrRange(lexer.text(token), spreadsheet);
+            }
+            case FormulaLexer.SHEET -> {
+                position++;
+                return parseSheetReference(lexer.sheet(token));
+            }
+            case FormulaLexer.IDENTIFIER -> {
+                position++;
+                if (peek() == FormulaLexer.COLON) {
+                    return parseOpenRange(token, FormulaLexer.IDENTIFIER, spreadsheet);
+                }
+                if (peek() != FormulaLexer.LPAREN || lexer.text(token).charAt(0) == '$') {
+                    throw new FormulaParseException("Invalid cell reference: " + lexer.text(token));
+                }
+                return parseFunction(lexer.text(token));
+            }
+            case FormulaLexer.END -> throw new FormulaParseException("Unexpected end of formula");
+            default -> throw new FormulaParseException("Unexpected character at position " + lexer.start(token)
+                    + ": " + lexer.text(token));
         }
+    }
 
-        // Otherwise it's a cell reference - read the number part
-        int numStart = position;
-        while (position < formula.length() && Character.isDigit(formula.charAt(position))) {
-            position++;
+    /**
+     * Parse the rest of a cell reference, which is a range if followed by ':'
+     * The end is a cell, or a column for a range running to the last row (A5:A)
+     */
+    private Expression parseCellOrRange(String cellCoord, Spreadsheet sheet) throws FormulaParseException {
+        if (peek() != FormulaLexer.COLON) {
+            return new CellReference(cellCoord, sheet);
         }
+        position++; // Skip ':'
 
-        if (numStart == position) {
-            throw new FormulaParseException("Invalid cell reference: " + identifier);
+        if (peek() == FormulaLexer.IDENTIFIER) {
+            return new Range(cellCoord, rangeEnd(FormulaLexer.IDENTIFIER), sheet);
         }
-
-        String cellCoord = identifier + formula.substring(numStart, position);
-
-        // Check if it's part of a range (followed by ':')
-        skipWhitespace();
-        if (position < formula.length() && formula.charAt(position) == ':') {
-            position++; // Skip ':'
-            skipWhitespace();
-
-            // Parse end cell
-            String endCell = parseCellCoordinate();
-            return new Range(cellCoord, endCell, spreadsheet);
+        if (peek() != FormulaLexer.CELL) {
+            throw new FormulaParseException("Expected cell coordinate at position " + lexer.start(position));
         }
-
-        return new CellReference(cellCoord, spreadsheet);
+        String endCell = lexer.text(position++);
+        return new Range(cellCoord, endCell, sheet);
     }
 
     /**
-     * Parse function call
-     * Function -> FunctionName '(' Argument ')'
+     * Parse a whole-column (A:C) or whole-row (3:5) range; 'token' is its start, already consumed
      */
-    private Expression parseFunction(String functionName) throws FormulaParseException {
-        position++; // Skip '('
-        skipWhitespace();
-
-        // Parse argument (could be range or expression)
-        Expression argument = parseFunctionArgument();
-
-        skipWhitespace();
-        if (position >= formula.length() || formula.charAt(position) != ')') {
-            throw new FormulaParseException("Missing closing parenthesis for function " + functionName);
-        }
-        position++;
-
-        return new Function(functionName, argument);
+    private Expression parseOpenRange(int token, int kind, Spreadsheet sheet) throws FormulaParseException {
+        position = token;
+        String start = rangeEnd(kind);
+        position++; // Skip ':'
+        return new Range(start, rangeEnd(kind), sheet);
     }
 
     /**
-     * Parse function argument (can be range or expression)
+     * Parse the cell or range after "Sheet!", evaluated against that sheet of the workbook
      */
-    private Expression parseFunctionArgument() throws FormulaParseException {
-        // Try to parse as range first (look ahead for ':')
-        int savedPosition = position;
-
-        try {
-            // Check if we have a cell reference followed by ':'
-            if (Character.isLetter(formula.charAt(position))) {
-                String startCell = parseCellCoordinate();
-                skipWhitespace();
-                if (position < formula.length() && formula.charAt(position) == ':') {
-                    position++; // Skip ':'
-                    skipWhitespace();
-                    String endCell = parseCellCoordinate();
-                    return new Range(startCell, endCell, spreadsheet);
+    private Expression parseSheetReference(String name) throws FormulaParseException {
+        Workbook workbook = spreadsheet.getWorkbook();
+        Spreadsheet sheet = workbook == null ? null : workbook.getSheet(name);
+        if (sheet == null) {
+            throw new FormulaParseException("Unknown sheet: " + name);
+        }
+
+        int token = position;
+        switch (peek()) {
+            case FormulaLexer.CELL -> {
+                position++;
+                return parseCellOrRange(lexer.text(token), sheet);
+            }
+            case FormulaLexer.IDENTIFIER, FormulaLexer.NUMBER -> {
+                int kind = peek();
+                position++;
+                if (peek() == FormulaLexer.COLON) {
+                    return parseOpenRange(token, kind, sheet);
                 }
             }
-        } catch (Exception e) {
-            // Not a range, restore position
+            default -> { }
         }
-
-        // Restore position and parse as general expression
-        position = savedPosition;
-        return parseExpression();
+        throw new FormulaParseException("Expected cell or range after " + name + "! at position " + lexer.start(token));
     }
 
     /**
-     * Parse a cell coordinate (e.g., "A1", "B2", "AA10")
+     * Consume a column (letters only, optionally anchored: $A) or row (digits only, from 1)
+     * of an open-ended range
      */
-    private String parseCellCoordinate() throws FormulaParseException {
-        int start = position;
-
-        // Read letters
-        while (position < formula.length() && Character.isLetter(formula.charAt(position))) {
-            position++;
+    private String rangeEnd(int kind) throws FormulaParseException {
+        int token = position;
+        String text = peek() == kind ? lexer.text(token) : "";
+        boolean valid = !text.isEmpty();
+        for (int i = kind == FormulaLexer.IDENTIFIER && text.startsWith("$") ? 1 : 0; i < text.length() && valid; i++) {
+            char ch = text.charAt(i);
+            valid = kind == FormulaLexer.NUMBER ? ch >= '0' && ch <= '9' : (ch >= 'A' && ch <= 'Z') || (ch >= 'a' && ch <= 'z');
         }
-
-        if (start == position) {
-            throw new FormulaParseException("Expected cell coordinate at position " + position);
+        if (kind == FormulaLexer.NUMBER && valid) {
+            valid = text.length() <= 7 && Integer.parseInt(text) >= 1 && Integer.parseInt(text) <= Range.MAX_ROW;
+        }
+        if (!valid) {
+            throw new FormulaParseException("Expected " + (kind == FormulaLexer.NUMBER ? "row number" : "column")
+                    + " at position " + lexer.start(token));
         }
+        position++;
+        return text;
+    }
 
-        String letters = formula.substring(start, position);
+    /**
+     * Parse function call
+     * Function -> FunctionName '(' Argument ((',' | ';') Argument)* ')'
+     */
+    private Expression parseFunction(String functionName) throws FormulaParseException {
+        int nameToken = position - 1;
+        position++; // Skip '('
 
-        // Read numbers
-        int numStart = position;
-        while (position < formula.length() && Character.isDigit(formula.charAt(position))) {
+        // Each argument is a general expression; a bare range is just a factor of it
+        List<Expression> arguments = new ArrayList<>();
+        arguments.add(parseExpression());
+        while (peek() == FormulaLexer.COMMA) {
             position++;
+            arguments.add(parseExpression());
         }
 
-        if (numStart == position) {
-            throw new FormulaParseException("Invalid cell coordinate: " + letters);
-        }
+        expect(FormulaLexer.RPAREN, "Missing closing parenthesis for function " + functionName);
+        checkArgumentCount(functionName.toUpperCase(), arguments.size(), nameToken);
+        return new Function(functionName, arguments);
+    }
 
-        return letters + formula.substring(numStart, position);
+    private void checkArgumentCount(String functionName, int count, int token) throws FormulaParseException {
+        int min, max;
+        switch (functionName) {
+            case "BUSCARV" -> { min = 3; max = 4; }
+            case "CONTAR.SI" -> { min = 2; max = 2; }
+            case "SUMAR.SI" -> { min = 2; max = 3; }
+            default -> { min = 1; max = MAX_ARGUMENTS; }
+        }
+        if (count < min || count > max) {
+            throw new FormulaParseException(functionName + " takes " + (min == max ? min : min + " to " + max)
+                    + " argument" + (max == 1 ? "" : "s") + " at position " + lexer.start(token));
+        }
     }
 
     /**
-     * Skip whitespace characters
+     * Kind of the current (lookahead) token
      */
-    private void skipWhitespace() {
-        while (position < formula.length() && Character.isWhitespace(formula.charAt(position))) {
-            position++;
+    private int peek() {
+        return lexer.kind(position);
+    }
+
+    private void expect(int kind, String message) throws FormulaParseException {
+        if (peek() != kind) {
+            throw new FormulaParseException(message + " at position " + lexer.start(position));
         }
+        position++;
     }
 }
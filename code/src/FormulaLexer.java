@@ -0,0 +1,273 @@
+/**
+ * Single-pass tokenizer for formulas.
+ * Tokens are stored in parallel primitive arrays instead of one object per token,
+ * so the parser can walk them with a plain index and one token of lookahead.
+ */
+public class FormulaLexer {
+    // Token kinds
+    public static final int NUMBER = 0;      // 12, 3.5
+    public static final int CELL = 1;        // A1, AA10, $A$1
+    public static final int IDENTIFIER = 2;  // SUMA, MIN, CONTAR.SI
+    public static final int PLUS = 3;
+    public static final int MINUS = 4;
+    public static final int STAR = 5;
+    public static final int SLASH = 6;
+    public static final int CARET = 7;
+    public static final int LPAREN = 8;
+    public static final int RPAREN = 9;
+    public static final int COLON = 10;
+    public static final int END = 11;
+    public static final int COMMA = 12;      // ',' or ';' between function arguments
+    public static final int STRING = 13;     // "text", with "" for a quote
+    public static final int SHEET = 14;      // Hoja2! or 'Ventas 2024'! before a reference
+
+    private final String formula;
+
+    private int count;
+    private final int[] kinds;
+    private final int[] starts;
+    private final int[] ends;
+    private final double[] numbers;
+
+    public FormulaLexer(String formula) {
+        this.formula = formula;
+        // A formula never has more tokens than characters, plus the END token
+        int capacity = formula.length() + 1;
+        this.kinds = new int[capacity];
+        this.starts = new int[capacity];
+        this.ends = new int[capacity];
+        this.numbers = new double[capacity];
+    }
+
+    /**
+     * Tokenize formula[from..] in one pass, always terminated by an END token
+     */
+    public void tokenize(int from) throws FormulaParseException {
+        count = 0;
+        int pos = from;
+        int length = formula.length();
+
+        while (pos < length) {
+            char ch = formula.charAt(pos);
+
+            if (Character.isWhitespace(ch)) {
+                pos++;
+                continue;
+            }
+
+            int start = pos;
+
+            if (isDigit(ch)) {
+                pos = scanNumber(pos);
+                continue;
+            }
+
+            if (isLetter(ch) || ch == '$') {
+                // '$' anchors the column and/or row of a reference: $A$1, A$1, $A (a column end)
+                boolean anchored = ch == '$';
+                if (anchored) pos++;
+                int lettersStart = pos;
+                while (pos < length && isLetter(formula.charAt(pos))) pos++;
+                int lettersEnd = pos;
+                if (pos < length && formula.charAt(pos) == '$') {
+                    anchored = true;
+                    pos++;
+                }
+                int digitsStart = pos;
+                while (pos < length && isDigit(formula.charAt(pos))) pos++;
+                if (lettersStart == lettersEnd || (digitsStart == pos && lettersEnd != digitsStart)) {
+                    throw new FormulaParseException("Invalid cell reference at position " + start);
+                }
+                if (pos < length && formula.charAt(pos) == '!' && !anchored) {
+                    add(SHEET, start, pos++);
+                    continue;
+                }
+                if (digitsStart == pos) {
+                    // Dotted function names: CONTAR.SI, SUMAR.SI
+                    while (!anchored && pos + 1 < length && formula.charAt(pos) == '.' && isLetter(formula.charAt(pos + 1))) {
+                        pos++;
+                        while (pos < length && isLetter(formula.charAt(pos))) pos++;
+                    }
+                    add(IDENTIFIER, start, pos);
+                } else {
+                    add(CELL, start, pos);
+                }
+                continue;
+            }
+
+            if (ch == '"') {
+                pos = scanString(pos);
+                continue;
+            }
+
+            if (ch == '\'') {
+                pos = scanSheet(pos);
+                continue;
+            }
+
+            int kind;
+            switch (ch) {
+                case '+' -> kind = PLUS;
+                case '-' -> kind = MINUS;
+                case '*' -> kind = STAR;
+                case '/' -> kind = SLASH;
+                case '^' -> kind = CARET;
+                case '(' -> kind = LPAREN;
+                case ')' -> kind = RPAREN;
+                case ':' -> kind = COLON;
+                case ',', ';' -> kind = COMMA;
+                default -> throw new FormulaParseException("Unexpected character at position " + pos + ": " + ch);
+            }
+            add(kind, start, ++pos);
+        }
+
+        add(END, length, length);
+    }
+
+    /**
+     * Scan a number literal (digits with an optional fraction) starting at pos
+     */
+    private int scanNumber(int pos) throws FormulaParseException {
+        int start = pos;
+        int length = formula.length();
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean seenDot = false;
+
+        while (pos < length) {
+            char ch = formula.charAt(pos);
+            if (isDigit(ch)) {
+                mantissa = mantissa * 10 + (ch - '0');
+                digits++;
+                if (seenDot) fractionDigits++;
+            } else if (ch == '.' && !seenDot) {
+                seenDot = true;
+            } else {
+                break;
+            }
+            pos++;
+        }
+
+        if (pos < length && formula.charAt(pos) == '.') {
+            throw new FormulaParseException("Invalid number at position " + start);
+        }
+
+        add(NUMBER, start, pos);
+        if (digits <= 15 && fractionDigits <= 22) {
+            // Exact: both operands are representable, so one division rounds correctly
+            numbers[count - 1] = fractionDigits == 0 ? mantissa : mantissa / POWERS_OF_TEN[fractionDigits];
+        } else {
+            ContentClassifier classifier = ContentClassifier.forThread();
+            classifier.classify(formula, start, pos); // Digits with an optional fraction: always a number
+            numbers[count - 1] = classifier.number();
+        }
+        return pos;
+    }
+
+    /**
+     * Scan a string literal starting at the opening quote; a doubled quote stands for one quote
+     */
+    private int scanString(int pos) throws FormulaParseException {
+        int start = pos++;
+        int length = formula.length();
+
+        while (pos < length) {
+            if (formula.charAt(pos++) == '"') {
+                if (pos < length && formula.charAt(pos) == '"') {
+                    pos++;
+                } else {
+                    add(STRING, start, pos);
+                    return pos;
+                }
+            }
+        }
+        throw new FormulaParseException("Unterminated string at position " + start);
+    }
+
+    /**
+     * Scan a quoted sheet name ('Ventas 2024'!) starting at the opening quote; '' stands for one quote
+     */
+    private int scanSheet(int pos) throws FormulaParseException {
+        int start = pos++;
+        int length = formula.length();
+
+        while (pos < length) {
+            if (formula.charAt(pos++) == '\'') {
+                if (pos < length && formula.charAt(pos) == '\'') {
+                    pos++;
+                } else if (pos < length && formula.charAt(pos) == '!' && pos - start > 2) {
+                    add(SHEET, start, pos);
+                    return pos + 1;
+                } else {
+                    break;
+                }
+            }
+        }
+        throw new FormulaParseException("Invalid sheet name at position " + start);
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private void add(int kind, int start, int end) {
+        kinds[count] = kind;
+        starts[count] = start;
+        ends[count] = end;
+        count++;
+    }
+
+    static boolean isDigit(char ch) {
+        return ch >= '0' && ch <= '9';
+    }
+
+    static boolean isLetter(char ch) {
+        return (ch >= 'A' && ch <= 'Z') || (ch >= 'a' && ch <= 'z') || (ch > 127 && Character.isLetter(ch));
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public int kind(int index) {
+        return kinds[index];
+    }
+
+    public int start(int index) {
+        return starts[index];
+    }
+
+    public int end(int index) {
+        return ends[index];
+    }
+
+    public double number(int index) {
+        return numbers[index];
+    }
+
+    /**
+     * Value of a STRING token, without the quotes
+     */
+    public String string(int index) {
+        return formula.substring(starts[index] + 1, ends[index] - 1).replace("\"\"", "\"");
+    }
+
+    /**
+     * Name of a SHEET token, without quotes and '!'
+     */
+    public String sheet(int index) {
+        if (formula.charAt(starts[index]) != '\'') {
+            return text(index);
+        }
+        return formula.substring(starts[index] + 1, ends[index] - 1).replace("''", "'");
+    }
+
+    /**
+     * Source text of a token (only materialized for identifiers and cells)
+     */
+    public String text(int index) {
+        return formula.substring(starts[index], ends[index]);
+    }
+}
@@ -0,0 +1,149 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A formula as written in one cell (its origin), shared by every cell it was filled into.
+ *
+ * A filled cell only stores its offset from the origin. Its expression is the template's
+ * expression shifted by that offset, and its text is the template's text with the reference
+ * tokens moved (relative parts shift, "$"-anchored parts stay), so "=A1*$B$1" filled one row
+ * down reads "=A2*$B$1" without the formula ever being parsed again.
+ */
+public class FormulaTemplate {
+    private final String formula;
+    private final Expression expression;
+    private final int originCol;
+    private final int originRow;
+
+    // [start, end) of every reference token in the formula text: cells and range ends
+    private final int[] spans;
+
+    // Rectangles the formula reads at its origin, see references(), and the sheets they are on
+    private final List<int[]> references = new ArrayList<>();
+    private final Set<Spreadsheet> sheets = new HashSet<>();
+
+    public FormulaTemplate(String formula, Expression expression, int originCol, int originRow) {
+        this.formula = formula;
+        this.expression = expression;
+        this.originCol = originCol;
+        this.originRow = originRow;
+        this.spans = referenceSpans(formula);
+        collectReferences(expression);
+    }
+
+    /**
+     * Token spans of references: CELL tokens, and columns/rows on either side of ':'
+     */
+    private static int[] referenceSpans(String formula) {
+        FormulaLexer lexer = new FormulaLexer(formula);
+        try {
+            lexer.tokenize(1); // Skip '='
+        } catch (FormulaParseException e) {
+            throw new IllegalArgumentException("Formula syntax error: " + e.getMessage());
+        }
+        int[] spans = new int[8];
+        int count = 0;
+        for (int i = 0; i < lexer.count(); i++) {
+            int kind = lexer.kind(i);
+            boolean rangeEnd = (kind == FormulaLexer.IDENTIFIER || kind == FormulaLexer.NUMBER)
+                    && ((i > 0 && lexer.kind(i - 1) == FormulaLexer.COLON)
+                        || lexer.kind(i + 1) == FormulaLexer.COLON);
+            if (kind == FormulaLexer.CELL || rangeEnd) {
+                if (count + 2 > spans.length) {
+                    spans = Arrays.copyOf(spans, spans.length * 2);
+                }
+                spans[count++] = lexer.start(i);
+                spans[count++] = lexer.end(i);
+            }
+        }
+        return Arrays.copyOf(spans, count);
+    }
+
+    private void collectReferences(Expression expr) {
+        if (expr instanceof CellReference) {
+            CellReference reference = (CellReference) expr;
+            sheets.add(reference.getSpreadsheet());
+            int col = FileSystem.columnNumber(reference.getCoordinate());
+            int row = FileSystem.rowNumber(reference.getCoordinate());
+            int fixedCol = reference.isAbsoluteColumn() ? 1 : 0;
+            int fixedRow = reference.isAbsoluteRow() ? 1 : 0;
+            references.add(new int[] { col, fixedCol, col, fixedCol, row, fixedRow, row, fixedRow });
+        } else if (expr instanceof Range) {
+            Range range = (Range) expr;
+            sheets.add(range.getSpreadsheet());
+            references.add(new int[] {
+                range.getFirstCol(), range.isFixedFirstCol() ? 1 : 0, range.getLastCol(), range.isFixedLastCol() ? 1 : 0,
+                range.getFirstRow(), range.isFixedFirstRow() ? 1 : 0, range.getLastRow(), range.isFixedLastRow() ? 1 : 0
+            });
+        } else if (expr instanceof Function) {
+            for (Expression argument : ((Function) expr).getArguments()) {
+                collectReferences(argument);
+            }
+        } else if (expr instanceof BinaryOperation) {
+            collectReferences(((BinaryOperation) expr).getLeft());
+            collectReferences(((BinaryOperation) expr).getRight());
+        }
+    }
+
+    /**
+     * Expression of the cell 'cols' columns and 'rows' rows from the origin
+     */
+    public Expression expressionAt(int cols, int rows) {
+        return expression.shift(cols, rows);
+    }
+
+    /**
+     * Formula text of the cell 'cols' columns and 'rows' rows from the origin
+     */
+    public String formulaAt(int cols, int rows) {
+        if ((cols == 0 && rows == 0) || spans.length == 0) {
+            return formula;
+        }
+        StringBuilder text = new StringBuilder(formula.length() + 8);
+        int copied = 0;
+        for (int i = 0; i < spans.length; i += 2) {
+            text.append(formula, copied, spans[i]);
+            text.append(CellReference.shift(formula.substring(spans[i], spans[i + 1]), cols, rows));
+            copied = spans[i + 1];
+        }
+        return text.append(formula, copied, formula.length()).toString();
+    }
+
+    /**
+     * Every cell or range the formula reads at its origin, as
+     * {firstCol, fixed, lastCol, fixed, firstRow, fixed, lastRow, fixed}, where a fixed
+     * bound (1) is anchored or open-ended and does not move with the offset
+     */
+    public List<int[]> references() {
+        return references;
+    }
+
+    /**
+     * True if every reference is to the given sheet (none goes to another sheet of its workbook)
+     */
+    public boolean readsOnly(Spreadsheet sheet) {
+        for (Spreadsheet other : sheets) {
+            if (other != sheet) return false;
+        }
+        return true;
+    }
+
+    public String getFormula() {
+        return formula;
+    }
+
+    public Expression getExpression() {
+        return expression;
+    }
+
+    public int getOriginCol() {
+        return originCol;
+    }
+
+    public int getOriginRow() {
+        return originRow;
+    }
+}
@@ -1,54 +1,296 @@
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class Function implements Expression {
     private String functionName;
-    private Expression argument;
+    private List<Expression> arguments;
 
-    public Function(String functionName, Expression argument) {
+    public Function(String functionName, List<Expression> arguments) {
         this.functionName = functionName.toUpperCase();
-        this.argument = argument;
+        this.arguments = arguments;
     }
 
     @Override
     public double calculate() {
-        List<Double> values = extractValues(argument);
+        switch (functionName) {
+            case "BUSCARV":
+                return toNumber(lookup());
+            case "CONTAR.SI":
+                return countIf(range(0), value(arguments.get(1)));
+            case "SUMAR.SI":
+                return sumIf(range(0), value(arguments.get(1)),
+                        arguments.size() > 2 ? range(2) : range(0));
+            default:
+                return aggregate();
+        }
+    }
+
+    @Override
+    public Expression shift(int cols, int rows) {
+        List<Expression> shifted = null;
+        for (int i = 0; i < arguments.size(); i++) {
+            Expression argument = arguments.get(i).shift(cols, rows);
+            if (argument != arguments.get(i) && shifted == null) {
+                shifted = new ArrayList<>(arguments);
+            }
+            if (shifted != null) {
+                shifted.set(i, argument);
+            }
+        }
+        return shifted == null ? this : new Function(functionName, shifted);
+    }
+
+    @Override
+    public Object evaluate() {
+        // A lookup can return text; everything else is numeric
+        return functionName.equals("BUSCARV") ? lookup() : calculate();
+    }
+
+    private double aggregate() {
+        double[] values = arguments.size() == 1 ? extractValues(arguments.get(0)) : argumentValues();
 
-        if (values.isEmpty()) {
+        if (values.length == 0) {
             return 0;
         }
 
         switch (functionName) {
             case "SUMA":
-                return values.stream().mapToDouble(d -> d).sum();
+                return Aggregates.sum(values, values.length);
             case "MIN":
-                return values.stream().mapToDouble(d -> d).min().orElse(0);
+                return Aggregates.min(values, values.length);
             case "MAX":
-                return values.stream().mapToDouble(d -> d).max().orElse(0);
+                return Aggregates.max(values, values.length);
             case "PROMEDIO":
-                return values.stream().mapToDouble(d -> d).average().orElse(0);
+                return Aggregates.average(values, values.length);
             default:
                 throw new IllegalArgumentException("Unknown function: " + functionName);
         }
     }
 
+    /**
+     * Numeric values of all arguments in one block. The ranges of each sheet are read together
+     * in a single pass over its cells (Range.valueBlock); other arguments are calculated.
+     */
+    private double[] argumentValues() {
+        Map<Spreadsheet, List<Range>> ranges = new LinkedHashMap<>();
+        double[] values = new double[arguments.size()];
+        int count = 0;
+
+        for (Expression argument : arguments) {
+            if (argument instanceof Range) {
+                Range range = (Range) argument;
+                ranges.computeIfAbsent(range.getSpreadsheet(), sheet -> new ArrayList<>()).add(range);
+            } else {
+                values[count++] = argument.calculate();
+            }
+        }
+        for (List<Range> group : ranges.values()) {
+            double[] block = Range.valueBlock(group);
+            if (count + block.length > values.length) {
+                values = Arrays.copyOf(values, count + block.length);
+            }
+            System.arraycopy(block, 0, values, count, block.length);
+            count += block.length;
+        }
+        return count == values.length ? values : Arrays.copyOf(values, count);
+    }
+
     /**
      * Extract numeric values from an expression
      * If it's a Range, get all values; otherwise evaluate single expression
      */
-    private List<Double> extractValues(Expression expr) {
-        List<Double> values = new ArrayList<>();
+    private double[] extractValues(Expression expr) {
+        if (expr instanceof Range) {
+            return ((Range) expr).getValueBlock();
+        }
+        return new double[] { expr.calculate() };
+    }
+
+    /**
+     * BUSCARV(value, table, column[, 0]): value of the given column in the first table row
+     * whose first column equals value (exact match only)
+     */
+    private Object lookup() {
+        Range table = range(1);
+        int column = (int) arguments.get(2).calculate();
+        if (column < 1 || column > table.getLastCol() - table.getFirstCol() + 1) {
+            throw new IllegalArgumentException("BUSCARV column " + column + " is outside the table");
+        }
+        if (arguments.size() > 3 && arguments.get(3).calculate() != 0) {
+            throw new IllegalArgumentException("BUSCARV only supports exact match (last argument 0)");
+        }
+
+        Object key = LookupIndex.key(value(arguments.get(0)));
+        int row = key == null ? -1 : table.getSpreadsheet().getLookupIndex()
+                .firstMatch(table.getFirstCol(), key, table.getFirstRow(), table.getLastRow());
+        if (row < 0) {
+            throw new IllegalArgumentException("BUSCARV value not found: " + value(arguments.get(0)));
+        }
+
+        Content content = table.getSpreadsheet().getContent(table.getFirstCol() + column - 1, row);
+        return content == null ? "" : content.getValue();
+    }
+
+    /**
+     * CONTAR.SI(range, criteria): number of cells in range meeting the criteria
+     */
+    private double countIf(Range range, Object criteria) {
+        Criteria test = new Criteria(criteria);
+        LookupIndex index = range.getSpreadsheet().getLookupIndex();
+        int count = 0;
 
+        for (int col = range.getFirstCol(); col <= lastPopulatedCol(range); col++) {
+            if (test.isEquality()) {
+                count += index.countMatches(col, test.operand, range.getFirstRow(), range.getLastRow());
+            } else {
+                for (int row = range.getFirstRow(); row <= lastPopulatedRow(range); row++) {
+                    if (test.matches(range.getSpreadsheet().getContent(col, row))) count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * SUMAR.SI(range, criteria[, sumRange]): sum of the sumRange cells (same offset as the
+     * matching range cells) for the range cells meeting the criteria
+     */
+    private double sumIf(Range range, Object criteria, Range sumRange) {
+        Criteria test = new Criteria(criteria);
+        Spreadsheet sheet = range.getSpreadsheet();
+        int colOffset = sumRange.getFirstCol() - range.getFirstCol();
+        int rowOffset = sumRange.getFirstRow() - range.getFirstRow();
+        double sum = 0;
+
+        for (int col = range.getFirstCol(); col <= lastPopulatedCol(range); col++) {
+            if (test.isEquality()) {
+                for (int row : sheet.getLookupIndex().matches(col, test.operand, range.getFirstRow(), range.getLastRow())) {
+                    sum += numericValue(sheet.getContent(col + colOffset, row + rowOffset));
+                }
+            } else {
+                for (int row = range.getFirstRow(); row <= lastPopulatedRow(range); row++) {
+                    if (test.matches(sheet.getContent(col, row))) {
+                        sum += numericValue(sheet.getContent(col + colOffset, row + rowOffset));
+                    }
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Criteria of CONTAR.SI/SUMAR.SI: a value to match, or text like ">5", "<=10", "<>x"
+     * Blank cells never match
+     */
+    private static class Criteria {
+        final String operator;
+        final Object operand;
+
+        Criteria(Object criteria) {
+            String op = "=";
+            Object value = criteria;
+            if (criteria instanceof String) {
+                String text = ((String) criteria).trim();
+                for (String candidate : new String[] { ">=", "<=", "<>", ">", "<", "=" }) {
+                    if (text.startsWith(candidate)) {
+                        op = candidate;
+                        value = text.substring(candidate.length());
+                        break;
+                    }
+                }
+            }
+            this.operator = op;
+            this.operand = LookupIndex.key(value);
+            if (operand == null) {
+                throw new IllegalArgumentException("Empty criteria");
+            }
+        }
+
+        boolean isEquality() {
+            return operator.equals("=");
+        }
+
+        boolean matches(Content content) {
+            Object key = content == null ? null : LookupIndex.key(content.getValue());
+            if (key == null) {
+                return false;
+            }
+            if (operator.equals("<>")) {
+                return !key.equals(operand);
+            }
+
+            int cmp;
+            if (key instanceof Double && operand instanceof Double) {
+                cmp = Double.compare((Double) key, (Double) operand);
+            } else if (key instanceof String && operand instanceof String) {
+                cmp = ((String) key).compareTo((String) operand);
+            } else {
+                return false; // Numbers and text are never ordered against each other
+            }
+
+            switch (operator) {
+                case ">": return cmp > 0;
+                case "<": return cmp < 0;
+                case ">=": return cmp >= 0;
+                case "<=": return cmp <= 0;
+                default: return cmp == 0;
+            }
+        }
+    }
+
+    private Range range(int argument) {
+        Expression expr = arguments.get(argument);
         if (expr instanceof Range) {
-            return ((Range) expr).getValues();
-        } else {
-            values.add(expr.calculate());
+            return (Range) expr;
+        }
+        if (expr instanceof CellReference) {
+            String coord = ((CellReference) expr).getCoordinate();
+            return new Range(coord, coord, ((CellReference) expr).getSpreadsheet());
         }
+        throw new IllegalArgumentException(functionName + " argument " + (argument + 1) + " must be a range");
+    }
+
+    private static int lastPopulatedRow(Range range) {
+        return Math.min(range.getLastRow(), range.getSpreadsheet().getIndex().getMaxRow());
+    }
 
-        return values;
+    private static int lastPopulatedCol(Range range) {
+        return Math.min(range.getLastCol(), range.getSpreadsheet().getIndex().getMaxCol());
+    }
+
+    /**
+     * Raw value of an argument: a cell reference yields the cell's own value (possibly text)
+     */
+    private static Object value(Expression expr) {
+        if (expr instanceof CellReference) {
+            CellReference ref = (CellReference) expr;
+            Content content = ref.getSpreadsheet().getContent(
+                    FileSystem.columnNumber(ref.getCoordinate()), FileSystem.rowNumber(ref.getCoordinate()));
+            return content == null ? "" : content.getValue();
+        }
+        return expr.evaluate();
+    }
+
+    private static double numericValue(Content content) {
+        Object key = content == null ? null : LookupIndex.key(content.getValue());
+        return key instanceof Double ? (Double) key : 0;
+    }
+
+    private static double toNumber(Object value) {
+        Object key = LookupIndex.key(value);
+        if (key instanceof Double) {
+            return (Double) key;
+        }
+        if (key == null) {
+            return 0;
+        }
+        throw new RuntimeException("Value is not a number: " + value);
     }
 
-    public Expression getArgument() {
-        return argument;
+    public List<Expression> getArguments() {
+        return arguments;
     }
 }
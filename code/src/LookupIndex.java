@@ -0,0 +1,221 @@
+import java.util.*;
+
+/**
+ * Per-column value indexes used by BUSCARV, CONTAR.SI and SUMAR.SI.
+ *
+ * For each column that a lookup touches, maps every value in the column to the rows that hold
+ * it, in ascending row order. The index of a column is built on first use and shared by all
+ * formulas looking into that column. It is dropped as soon as a cell of the column changes or
+ * is recalculated (the sheet reports edited cells and their dependents from the dependency
+ * graph), and rebuilt by the next lookup. Finding a value in a row span is then a hash lookup
+ * plus a binary search instead of a scan of the range.
+ *
+ * Keys stay normalized values rather than TextDictionary codes, because matching ignores case
+ * and surrounding blanks and reads numeric text as a number, so several codes can share a key.
+ * The key of a text is kept on its shared TextContent, so building an index normalizes each
+ * distinct text once instead of once per cell.
+ */
+public class LookupIndex {
+    private final Spreadsheet sheet;
+    private final Map<Integer, Map<Object, Rows>> columns = new HashMap<>();
+    private final Map<Integer, Long> columnBytes = new HashMap<>();
+    private long bytes;
+
+    // Columns whose index is being built: a formula of the column evaluated by build() that looks
+    // into the same column (=CONTAR.SI(A1:A3, "x") in A4) scans its rows instead of re-entering
+    private final Set<Integer> building = new HashSet<>();
+
+    /**
+     * Rows holding one value, ascending
+     */
+    private static class Rows {
+        int[] rows = new int[2];
+        int count;
+
+        void add(int row) {
+            if (count == rows.length) {
+                rows = Arrays.copyOf(rows, count * 2);
+            }
+            rows[count++] = row;
+        }
+
+        /**
+         * Position of the first row >= the given one
+         */
+        int lowerBound(int row) {
+            int at = Arrays.binarySearch(rows, 0, count, row);
+            return at < 0 ? -at - 1 : at;
+        }
+    }
+
+    public LookupIndex(Spreadsheet sheet) {
+        this.sheet = sheet;
+    }
+
+    /**
+     * Normalized lookup key of a cell value: numbers (and numeric text) as Double,
+     * other text upper-cased so matching is case-insensitive, null for blank
+     */
+    public static Object key(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (!(value instanceof String)) {
+            return null;
+        }
+        String text = (String) value;
+        ContentClassifier classifier = ContentClassifier.forThread();
+        switch (classifier.classify(text)) {
+            case ContentClassifier.BLANK:
+                return null;
+            case ContentClassifier.NUMBER:
+                return classifier.number();
+            default:
+                return classifier.text(text).toUpperCase();
+        }
+    }
+
+    private static Object key(Content content) {
+        return content instanceof TextContent ? ((TextContent) content).lookupKey() : key(content.getValue());
+    }
+
+    /**
+     * First row in [firstRow, lastRow] of the column holding the key, or -1
+     */
+    public int firstMatch(int col, Object key, int firstRow, int lastRow) {
+        Map<Object, Rows> index = column(col);
+        if (index == null) {
+            int[] found = scan(col, key, firstRow, lastRow);
+            return found.length == 0 ? -1 : found[0];
+        }
+        Rows rows = index.get(key);
+        if (rows == null) {
+            return -1;
+        }
+        int at = rows.lowerBound(firstRow);
+        return at < rows.count && rows.rows[at] <= lastRow ? rows.rows[at] : -1;
+    }
+
+    /**
+     * Rows in [firstRow, lastRow] of the column holding the key, ascending
+     */
+    public int[] matches(int col, Object key, int firstRow, int lastRow) {
+        Map<Object, Rows> index = column(col);
+        if (index == null) {
+            return scan(col, key, firstRow, lastRow);
+        }
+        Rows rows = index.get(key);
+        if (rows == null) {
+            return new int[0];
+        }
+        int from = rows.lowerBound(firstRow);
+        int to = rows.lowerBound(lastRow + 1);
+        return Arrays.copyOfRange(rows.rows, from, to);
+    }
+
+    /**
+     * Number of rows in [firstRow, lastRow] of the column holding the key
+     */
+    public int countMatches(int col, Object key, int firstRow, int lastRow) {
+        Map<Object, Rows> index = column(col);
+        if (index == null) {
+            return scan(col, key, firstRow, lastRow).length;
+        }
+        Rows rows = index.get(key);
+        if (rows == null) {
+            return 0;
+        }
+        return rows.lowerBound(lastRow + 1) - rows.lowerBound(firstRow);
+    }
+
+    /**
+     * Drop the indexes of the columns of the given cells
+     */
+    public void invalidate(Collection<String> coords) {
+        if (columns.isEmpty()) {
+            return;
+        }
+        for (String coord : coords) {
+            invalidate(FileSystem.columnNumber(coord));
+        }
+    }
+
+    public void invalidate(int col) {
+        if (!columns.isEmpty() && columns.remove(col) != null) {
+            bytes -= columnBytes.remove(col);
+        }
+    }
+
+    public void clear() {
+        columns.clear();
+        columnBytes.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Estimated heap bytes of the built column indexes
+     */
+    public long estimateBytes() {
+        return bytes;
+    }
+
+    /**
+     * The index of a column, built if needed; null while it is being built
+     */
+    private Map<Object, Rows> column(int col) {
+        Map<Object, Rows> index = columns.get(col);
+        if (index == null) {
+            if (!building.add(col)) {
+                return null;
+            }
+            try {
+                index = build(col);
+            } finally {
+                building.remove(col);
+            }
+            columns.put(col, index);
+        }
+        return index;
+    }
+
+    /**
+     * Rows in [firstRow, lastRow] of the column holding the key, found without the index
+     */
+    private int[] scan(int col, Object key, int firstRow, int lastRow) {
+        int[] found = new int[8];
+        int count = 0;
+        for (int row = firstRow; row <= Math.min(lastRow, sheet.getIndex().getMaxRow()); row++) {
+            Content content = sheet.getContent(col, row);
+            if (content != null && key.equals(key(content))) {
+                if (count == found.length) {
+                    found = Arrays.copyOf(found, count * 2);
+                }
+                found[count++] = row;
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    private Map<Object, Rows> build(int col) {
+        Map<Object, Rows> index = new HashMap<>();
+        int maxRow = sheet.getIndex().getMaxRow();
+        long cells = 0;
+
+        for (int row = 1; row <= maxRow; row++) {
+            Content content = sheet.getContent(col, row);
+            if (content == null) {
+                continue;
+            }
+            Object key = key(content);
+            if (key != null) {
+                index.computeIfAbsent(key, k -> new Rows()).add(row);
+                cells++;
+            }
+        }
+        // Map entry, key and Rows per distinct value; one int (with slack) per row
+        long built = index.size() * 96L + cells * 6;
+        columnBytes.put(col, built);
+        bytes += built;
+        return index;
+    }
+}
@@ -1,6 +1,62 @@
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 public class Main {
-    public static void main(String[] args) {
-        CLI cli =  new CLI();
+    public static void main(String[] args) throws Exception {
+        Path mappedStoreDir = null;
+        Integer serverPort = null;
+        String loadPath = null;
+        String batchInput = null;
+
+        for (String arg : args) {
+            if (arg.equals("--mapped-store")) {
+                // Keep cell contents in a memory-mapped file instead of on the heap
+                mappedStoreDir = Paths.get(System.getProperty("java.io.tmpdir"));
+            } else if (arg.startsWith("--mapped-store=")) {
+                mappedStoreDir = Paths.get(arg.substring("--mapped-store=".length()));
+            } else if (arg.equals("--server")) {
+                // Headless mode: serve the sheet to local clients instead of the menu
+                serverPort = SpreadsheetServer.DEFAULT_PORT;
+            } else if (arg.startsWith("--server=")) {
+                serverPort = Integer.parseInt(arg.substring("--server=".length()));
+            } else if (arg.equals("--batch")) {
+                // Scripted mode: read commands from stdin
+                batchInput = "-";
+            } else if (arg.startsWith("--batch=")) {
+                batchInput = arg.substring("--batch=".length());
+            } else if (arg.startsWith("--memory-limit=")) {
+                // Per-sheet memory budget, e.g. 512m or 2g
+                MemoryBudget.setDefaultLimit(MemoryBudget.parseSize(arg.substring("--memory-limit=".length())));
+            } else if (arg.startsWith("--load=")) {
+                loadPath = arg.substring("--load=".length());
+            }
+        }
+
+        if (serverPort != null || batchInput != null) {
+            Spreadsheet sheet = loadPath == null
+                    ? Spreadsheet.create(mappedStoreDir)
+                    : FileSystem.open(loadPath, mappedStoreDir);
+
+            if (serverPort != null) {
+                new SpreadsheetServer(sheet, serverPort).start();
+                return;
+            }
+
+            BatchRunner runner = new BatchRunner(sheet, System.out, mappedStoreDir);
+            try (BufferedReader reader = batchInput.equals("-")
+                    ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                    : Files.newBufferedReader(Paths.get(batchInput), StandardCharsets.UTF_8)) {
+                int errors = runner.run(reader);
+                runner.getSheet().close();
+                System.exit(errors == 0 ? 0 : 1);
+            }
+        }
+
+        CLI cli = new CLI(mappedStoreDir);
 
         cli.start();
     }
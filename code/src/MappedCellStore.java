@@ -0,0 +1,515 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.IntConsumer;
+
+/**
+ * Cell store for sheets larger than the heap.
+ *
+ * Cell contents are written as records into a memory-mapped scratch file, so the data
+ * lives in the OS page cache instead of the Java heap. The heap only holds:
+ * - a primitive index from packed (column, row) to record offset
+ * - a bounded LRU cache of materialized Cell/Content objects
+ *
+ * Record layout: [byte kind][double value]              for numbers
+ *                [byte kind][int code]                  for text (code in the sheet's TextDictionary)
+ *                [byte kind][int length][UTF-8 bytes]   for formulas
+ *
+ * Overwriting a cell reuses its record when the new one fits, otherwise appends a new record
+ * and repoints the index. Bytes left unreferenced that way are counted, and once they exceed
+ * both one region and the live records, the live records are copied into a fresh scratch file
+ * and the old one is deleted, so the file stays within about twice the live data.
+ * Formulas are stored as raw text and parsed again when they are materialized.
+ */
+public class MappedCellStore implements CellStore {
+    private static final byte NUMERIC = 1;
+    private static final byte TEXT = 2;
+    private static final byte FORMULA = 3;
+
+    private static final int REGION_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_CACHE_CELLS = 100_000;
+
+    private final Spreadsheet sheet;
+    private final Path directory;
+    private FileChannel channel;
+    private List<MappedByteBuffer> regions = new ArrayList<>();
+    private long writePosition;
+    // Bytes below writePosition that no index entry points to any more
+    private long garbage;
+
+    private final LongLongMap index = new LongLongMap();
+    private final Map<String, Cell> cache;
+
+    /**
+     * Create a store backed by a scratch file in the given directory
+     * (deleted when the store is closed or the JVM exits)
+     */
+    public MappedCellStore(Spreadsheet sheet, Path directory, int cacheCells) throws IOException {
+        this.sheet = sheet;
+        this.directory = directory;
+        this.channel = openScratchFile(directory);
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Cell> eldest) {
+                return size() > cacheCells;
+            }
+        };
+    }
+
+    @Override
+    public Cell get(String coord) {
+        Cell cell = cache.get(coord);
+        if (cell != null) {
+            return cell;
+        }
+
+        long offset = index.get(key(coord));
+        if (offset < 0) {
+            return null;
+        }
+
+        cell = new Cell(coord);
+        cell.setContent(read(offset));
+        cache.put(coord, cell);
+        return cell;
+    }
+
+    @Override
+    public Cell getOrCreate(String coord) {
+        Cell cell = get(coord);
+        // Empty cells are not stored; reads of blank coordinates get a detached cell
+        return cell != null ? cell : new Cell(coord);
+    }
+
+    @Override
+    public void setContent(String coord, Content content) {
+        long key = key(coord);
+        index.put(key, write(content, index.get(key)));
+        if (garbage > REGION_SIZE && garbage > writePosition - garbage) {
+            compact();
+        }
+
+        Cell cell = cache.get(coord);
+        if (cell == null) {
+            cell = new Cell(coord);
+            cache.put(coord, cell);
+        }
+        cell.setContent(content);
+    }
+
+    @Override
+    public void remove(String coord) {
+        long offset = index.remove(key(coord));
+        if (offset >= 0) {
+            garbage += recordSize(offset);
+        }
+        cache.remove(coord);
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Read-only view; cells are materialized one at a time while iterating
+     */
+    @Override
+    public Map<String, Cell> asMap() {
+        return new AbstractMap<>() {
+            @Override
+            public Cell get(Object coord) {
+                return coord instanceof String ? MappedCellStore.this.get((String) coord) : null;
+            }
+
+            @Override
+            public boolean containsKey(Object coord) {
+                return coord instanceof String && index.get(key((String) coord)) >= 0;
+            }
+
+            @Override
+            public int size() {
+                return index.size();
+            }
+
+            @Override
+            public Set<Entry<String, Cell>> entrySet() {
+                return new AbstractSet<>() {
+                    @Override
+                    public int size() {
+                        return index.size();
+                    }
+
+                    @Override
+                    public Iterator<Entry<String, Cell>> iterator() {
+                        PrimitiveIterator.OfLong keys = index.keys();
+                        return new Iterator<>() {
+                            @Override
+                            public boolean hasNext() {
+                                return keys.hasNext();
+                            }
+
+                            @Override
+                            public Entry<String, Cell> next() {
+                                long key = keys.nextLong();
+                                String coord = FileSystem.coordinate((int) (key >>> 32), (int) key);
+                                return new SimpleImmutableEntry<>(coord, MappedCellStore.this.get(coord));
+                            }
+                        };
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public void clear() {
+        index.clear();
+        cache.clear();
+        writePosition = 0; // Regions stay mapped and are overwritten
+        garbage = 0;
+    }
+
+    /**
+     * Delete the scratch file; its mappings are released when they are garbage collected
+     */
+    @Override
+    public void close() throws IOException {
+        clear();
+        regions.clear();
+        channel.close();
+    }
+
+    /**
+     * Read the codes straight from the text records: no cell is materialized or cached and no
+     * formula is parsed
+     */
+    @Override
+    public void visitTextCodes(IntConsumer visitor) {
+        long[] keys = index.keys;
+        long[] offsets = index.values;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] == LongLongMap.FREE) {
+                continue;
+            }
+            MappedByteBuffer region = region(offsets[slot]);
+            int at = (int) (offsets[slot] % REGION_SIZE);
+            if (region.get(at) == TEXT) {
+                visitor.accept(region.getInt(at + 1));
+            }
+        }
+    }
+
+    @Override
+    public long estimateBytes() {
+        // Two long slots per entry at load factor 1/2, plus the materialized cells
+        return index.capacity() * 16L + cache.size() * PersistentCellStore.BYTES_PER_CELL;
+    }
+
+    @Override
+    public void evictCaches() {
+        cache.clear();
+    }
+
+    private static long key(String coord) {
+        return ((long) FileSystem.columnNumber(coord) << 32) | (FileSystem.rowNumber(coord) & 0xFFFFFFFFL);
+    }
+
+    private static FileChannel openScratchFile(Path directory) throws IOException {
+        Path file = Files.createTempFile(directory, "cells", ".dat");
+        file.toFile().deleteOnExit();
+        return FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    /**
+     * Store a record, in place of the 'previous' one (-1 for none) when it fits
+     */
+    private long write(Content content, long previous) {
+        byte kind;
+        byte[] bytes = null;
+        int code = 0;
+        int size;
+
+        if (content instanceof NumericContent) {
+            kind = NUMERIC;
+            size = 1 + 8;
+        } else if (content instanceof FormulaContent) {
+            kind = FORMULA;
+            bytes = content.getRawContent().getBytes(StandardCharsets.UTF_8);
+            size = 1 + 4 + bytes.length;
+        } else {
+            kind = TEXT;
+            code = textCode(content);
+            size = 1 + 4;
+        }
+
+        if (size > REGION_SIZE) {
+            throw new IllegalArgumentException("Cell content too large: " + size + " bytes");
+        }
+
+        long offset;
+        if (previous >= 0 && size <= recordSize(previous)) {
+            offset = previous;
+            garbage += recordSize(previous) - size;
+        } else {
+            if (previous >= 0) {
+                garbage += recordSize(previous);
+            }
+            offset = allocate(size);
+        }
+
+        MappedByteBuffer region = region(offset);
+        int at = (int) (offset % REGION_SIZE);
+
+        region.put(at, kind);
+        if (kind == NUMERIC) {
+            region.putDouble(at + 1, (Double) content.getValue());
+        } else if (kind == TEXT) {
+            region.putInt(at + 1, code);
+        } else {
+            region.putInt(at + 1, bytes.length);
+            region.put(at + 5, bytes);
+        }
+        return offset;
+    }
+
+    /**
+     * Reserve 'size' bytes at the end of the file; records never straddle two regions
+     */
+    private long allocate(int size) {
+        long regionStart = writePosition / REGION_SIZE * REGION_SIZE;
+        if (writePosition + size > regionStart + REGION_SIZE) {
+            garbage += regionStart + REGION_SIZE - writePosition;
+            writePosition = regionStart + REGION_SIZE;
+        }
+        long offset = writePosition;
+        writePosition += size;
+        return offset;
+    }
+
+    private int recordSize(long offset) {
+        return recordSize(region(offset), (int) (offset % REGION_SIZE));
+    }
+
+    private static int recordSize(MappedByteBuffer region, int at) {
+        return switch (region.get(at)) {
+            case NUMERIC -> 1 + 8;
+            case TEXT -> 1 + 4;
+            default -> 1 + 4 + region.getInt(at + 1);
+        };
+    }
+
+    /**
+     * Copy the live records into a fresh scratch file and delete the old one
+     */
+    private void compact() {
+        FileChannel oldChannel = channel;
+        List<MappedByteBuffer> oldRegions = regions;
+        try {
+            channel = openScratchFile(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot compact cell storage", e);
+        }
+        regions = new ArrayList<>();
+        writePosition = 0;
+        garbage = 0;
+
+        byte[] record = new byte[64];
+        long[] offsets = index.values;
+        for (int slot = 0; slot < offsets.length; slot++) {
+            if (index.keys[slot] == LongLongMap.FREE) {
+                continue;
+            }
+            MappedByteBuffer from = oldRegions.get((int) (offsets[slot] / REGION_SIZE));
+            int at = (int) (offsets[slot] % REGION_SIZE);
+            int size = recordSize(from, at);
+            if (record.length < size) {
+                record = new byte[size];
+            }
+            from.get(at, record, 0, size);
+
+            long offset = allocate(size);
+            region(offset).put((int) (offset % REGION_SIZE), record, 0, size);
+            offsets[slot] = offset;
+        }
+
+        try {
+            oldChannel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot delete old cell storage", e);
+        }
+    }
+
+    private Content read(long offset) {
+        MappedByteBuffer region = region(offset);
+        int at = (int) (offset % REGION_SIZE);
+        byte kind = region.get(at);
+
+        if (kind == NUMERIC) {
+            return new NumericContent(region.getDouble(at + 1));
+        }
+        if (kind == TEXT) {
+            return sheet.getTextDictionary().get(region.getInt(at + 1));
+        }
+
+        byte[] bytes = new byte[region.getInt(at + 1)];
+        region.get(at + 5, bytes);
+        String raw = new String(bytes, StandardCharsets.UTF_8);
+
+        try {
+            return sheet.parseContent(raw);
+        } catch (Exception e) {
+            // It parsed when it was stored, so this should not happen
+            return new TextContent(raw);
+        }
+    }
+
+    private int textCode(Content content) {
+        if (content instanceof TextContent && ((TextContent) content).getCode() >= 0) {
+            return ((TextContent) content).getCode();
+        }
+        return sheet.getTextDictionary().intern(content.getRawContent()).getCode();
+    }
+
+    private MappedByteBuffer region(long offset) {
+        int number = (int) (offset / REGION_SIZE);
+        try {
+            while (regions.size() <= number) {
+                long start = (long) regions.size() * REGION_SIZE;
+                regions.add(channel.map(FileChannel.MapMode.READ_WRITE, start, REGION_SIZE));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot map cell storage", e);
+        }
+        return regions.get(number);
+    }
+
+    /**
+     * Open-addressing hash map from long to long with no per-entry objects
+     * Returns -1 for missing keys, so values must be non-negative
+     */
+    private static class LongLongMap {
+        private static final long FREE = Long.MIN_VALUE;
+
+        private long[] keys;
+        private long[] values;
+        private int size;
+
+        LongLongMap() {
+            clear();
+        }
+
+        long get(long key) {
+            int mask = keys.length - 1;
+            for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) return values[slot];
+                if (keys[slot] == FREE) return -1;
+            }
+        }
+
+        int capacity() {
+            return keys.length;
+        }
+
+        void put(long key, long value) {
+            if (size * 2 >= keys.length) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            while (keys[slot] != FREE && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (keys[slot] == FREE) {
+                keys[slot] = key;
+                size++;
+            }
+            values[slot] = value;
+        }
+
+        /**
+         * Remove a key and return its value, or -1 if missing
+         */
+        long remove(long key) {
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            while (keys[slot] != key) {
+                if (keys[slot] == FREE) return -1;
+                slot = (slot + 1) & mask;
+            }
+            long value = values[slot];
+
+            // Move later keys of the probe run into the hole if their home slot allows it,
+            // so lookups never stop early at a freed slot
+            for (int next = (slot + 1) & mask; keys[next] != FREE; next = (next + 1) & mask) {
+                int home = hash(keys[next]) & mask;
+                if (((next - home) & mask) >= ((next - slot) & mask)) {
+                    keys[slot] = keys[next];
+                    values[slot] = values[next];
+                    slot = next;
+                }
+            }
+            keys[slot] = FREE;
+            size--;
+            return value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            keys = new long[16];
+            values = new long[16];
+            Arrays.fill(keys, FREE);
+            size = 0;
+        }
+
+        PrimitiveIterator.OfLong keys() {
+            long[] snapshot = keys;
+            return new PrimitiveIterator.OfLong() {
+                private int slot = advance(0);
+
+                private int advance(int from) {
+                    while (from < snapshot.length && snapshot[from] == FREE) from++;
+                    return from;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return slot < snapshot.length;
+                }
+
+                @Override
+                public long nextLong() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    long key = snapshot[slot];
+                    slot = advance(slot + 1);
+                    return key;
+                }
+            };
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new long[oldKeys.length * 2];
+            Arrays.fill(keys, FREE);
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != FREE) put(oldKeys[i], oldValues[i]);
+            }
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
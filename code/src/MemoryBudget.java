@@ -0,0 +1,137 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Estimated heap usage of one spreadsheet and the budget it must stay within.
+ *
+ * Every structure reports an estimate computed from its element counts, so checking the
+ * budget is O(1) and cheap enough to do for every stored cell. Edits that would go over the
+ * budget are rejected with MemoryLimitException before anything large is allocated (a formula
+ * is checked against the number of cells it references before its ranges are expanded).
+ * When usage passes 90% of the budget, rebuildable caches are dropped and the oldest undo
+ * steps are trimmed, once: eviction is re-armed only after usage falls below 80%, so edits
+ * made while the sheet stays near its budget do not evict again and again.
+ */
+public class MemoryBudget {
+    // Dependency node plus edge for every cell a formula references
+    static final long BYTES_PER_REFERENCE = DependencyManager.BYTES_PER_NODE + DependencyManager.BYTES_PER_EDGE;
+
+    private static long defaultLimit = Runtime.getRuntime().maxMemory() / 4 * 3;
+
+    private final Spreadsheet sheet;
+    private long limit;
+    private Consumer<Map<String, Long>> listener;
+    // Caches were evicted and usage has not fallen below 80% since
+    private boolean evicted;
+
+    public MemoryBudget(Spreadsheet sheet) {
+        this.sheet = sheet;
+        this.limit = defaultLimit;
+    }
+
+    /**
+     * Budget for spreadsheets created from now on (default: 3/4 of the maximum heap)
+     */
+    public static void setDefaultLimit(long bytes) {
+        defaultLimit = bytes;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public void setLimit(long bytes) {
+        this.limit = bytes;
+    }
+
+    /**
+     * Metrics hook: receives the breakdown after every edit, batch and load
+     */
+    public void setListener(Consumer<Map<String, Long>> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Estimated bytes per structure, in a stable order
+     */
+    public Map<String, Long> breakdown() {
+        Map<String, Long> bytes = new LinkedHashMap<>();
+        bytes.put("cells", sheet.getCellStore().estimateBytes());
+        bytes.put("cell index", sheet.getIndex().estimateBytes());
+        bytes.put("dependencies", sheet.getDependencyManager().estimateBytes());
+        bytes.put("lookup index", sheet.getLookupIndex().estimateBytes());
+        bytes.put("text dictionary", sheet.getTextDictionary().estimateBytes());
+        bytes.put("undo history", sheet.estimateHistoryBytes());
+        return bytes;
+    }
+
+    public long used() {
+        return sheet.getCellStore().estimateBytes()
+                + sheet.getIndex().estimateBytes()
+                + sheet.getDependencyManager().estimateBytes()
+                + sheet.getLookupIndex().estimateBytes()
+                + sheet.getTextDictionary().estimateBytes()
+                + sheet.estimateHistoryBytes();
+    }
+
+    /**
+     * Reject an allocation of about 'bytes' that would exceed the budget
+     * Safe to call from loader threads; it never evicts anything itself
+     */
+    public void check(long bytes, String what) {
+        long used = used();
+        if (used + bytes > limit) {
+            throw new MemoryLimitException(what + " needs about " + describe(bytes) + ", but only "
+                    + describe(Math.max(0, limit - used)) + " of the " + describe(limit)
+                    + " memory budget is left");
+        }
+    }
+
+    /**
+     * Drop caches and trim history when usage crosses 90% of the budget, then notify the listener
+     * Must run on the thread that edits the sheet
+     */
+    public void relievePressure() {
+        long used = used();
+        if (used < limit / 10 * 8) {
+            evicted = false;
+        } else if (used > limit / 10 * 9 && !evicted) {
+            sheet.evictCaches();
+            evicted = true;
+        }
+        if (listener != null) {
+            listener.accept(breakdown());
+        }
+    }
+
+    /**
+     * Parse a size like "512m", "2g", "800k" or a plain number of bytes
+     */
+    public static long parseSize(String size) {
+        String text = size.trim().toLowerCase();
+        long unit = 1;
+        switch (text.isEmpty() ? ' ' : text.charAt(text.length() - 1)) {
+            case 'k' -> unit = 1L << 10;
+            case 'm' -> unit = 1L << 20;
+            case 'g' -> unit = 1L << 30;
+            default -> { }
+        }
+        if (unit != 1) {
+            text = text.substring(0, text.length() - 1);
+        }
+        try {
+            return Long.parseLong(text) * unit;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid memory size: " + size);
+        }
+    }
+
+    private static String describe(long bytes) {
+        return bytes < (1 << 20) ? ((bytes + 1023) >> 10) + " KB" : megabytes(bytes) + " MB";
+    }
+
+    public static long megabytes(long bytes) {
+        return (bytes + (1 << 19)) >> 20;
+    }
+}
@@ -0,0 +1,10 @@
+/**
+ * Thrown when an edit or load would take a spreadsheet over its memory budget
+ */
+public class MemoryLimitException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public MemoryLimitException(String message) {
+        super(message);
+    }
+}
@@ -10,6 +10,10 @@ public class NumericContent extends Content {
         return number;
     }
 
+    public double getNumber() {
+        return number;
+    }
+
     @Override
     public String getRawContent() {
         return String.valueOf(number);
@@ -0,0 +1,432 @@
+import java.util.*;
+
+/**
+ * Default cell store, built on a persistent hash array mapped trie (HAMT) keyed by the
+ * packed cell address (column << 32 | row).
+ *
+ * Every update copies only the path from the root to the changed leaf and shares the rest,
+ * so a Version (the root at some point in time) is an O(1) snapshot that costs memory only
+ * for what changed afterwards. Cells are never mutated in place: setting content stores a
+ * new Cell, so older versions keep seeing their own contents.
+ *
+ * Between snapshots, nodes created since the last snapshot are updated in place (they are
+ * owned by the current edit token), so bulk loading does not pay for path copying.
+ *
+ * Two versions can be compared with diff(), which skips every subtree they share and
+ * therefore runs in time proportional to the number of changed cells.
+ */
+public class PersistentCellStore implements CellStore {
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final int MAX_SHIFT = 30; // 32-bit hash, 5 bits per level
+
+    /**
+     * Immutable snapshot of the store's contents
+     */
+    public static final class Version {
+        private final BitmapNode root;
+        private final int size;
+
+        private Version(BitmapNode root, int size) {
+            this.root = root;
+            this.size = size;
+        }
+
+        public int size() {
+            return size;
+        }
+    }
+
+    /**
+     * Receives the differences between two versions
+     * before is null for an added cell, after is null for a removed one
+     */
+    public interface DiffVisitor {
+        void visit(String coord, Cell before, Cell after);
+    }
+
+    private Version current = new Version(BitmapNode.EMPTY, 0);
+
+    // Nodes carrying this token belong to no snapshot yet and may be mutated in place
+    private Object edit = new Object();
+
+    @Override
+    public Cell get(String coord) {
+        return (Cell) find(current.root, key(coord));
+    }
+
+    @Override
+    public Content getContent(int col, int row) {
+        Cell cell = (Cell) find(current.root, ((long) col << 32) | (row & 0xFFFFFFFFL));
+        return cell == null ? null : cell.getContent();
+    }
+
+    @Override
+    public Cell getOrCreate(String coord) {
+        Cell cell = get(coord);
+        // Blank cells are not stored; reads of blank coordinates get a detached cell
+        return cell != null ? cell : new Cell(coord);
+    }
+
+    @Override
+    public void setContent(String coord, Content content) {
+        Cell cell = new Cell(coord);
+        cell.setContent(content);
+        long key = key(coord);
+        boolean[] added = new boolean[1];
+        BitmapNode root = (BitmapNode) put(current.root, key, hash(key), 0, cell, added, edit);
+        current = new Version(root, current.size + (added[0] ? 1 : 0));
+    }
+
+    /**
+     * Remove a cell entirely (used when restoring a version that did not have it)
+     */
+    @Override
+    public void remove(String coord) {
+        long key = key(coord);
+        boolean[] removed = new boolean[1];
+        Object root = remove(current.root, key, hash(key), 0, removed);
+        if (removed[0]) {
+            current = new Version(root == null ? BitmapNode.EMPTY : (BitmapNode) root, current.size - 1);
+        }
+    }
+
+    @Override
+    public int size() {
+        return current.size;
+    }
+
+    /**
+     * O(1) snapshot of the current contents
+     */
+    public Version snapshot() {
+        edit = new Object(); // Freeze every node reachable from the current root
+        return current;
+    }
+
+    /**
+     * Make a snapshot the current contents again
+     */
+    public void reset(Version version) {
+        edit = new Object();
+        current = version;
+    }
+
+    /**
+     * Visit every cell that differs between two versions
+     */
+    public static void diff(Version from, Version to, DiffVisitor visitor) {
+        diffNodes(from.root, to.root, 0, visitor);
+    }
+
+    @Override
+    public Map<String, Cell> asMap() {
+        Version version = current;
+        return new AbstractMap<>() {
+            @Override
+            public Cell get(Object coord) {
+                return coord instanceof String ? (Cell) find(version.root, key((String) coord)) : null;
+            }
+
+            @Override
+            public boolean containsKey(Object coord) {
+                return get(coord) != null;
+            }
+
+            @Override
+            public int size() {
+                return version.size;
+            }
+
+            @Override
+            public Set<Entry<String, Cell>> entrySet() {
+                return new AbstractSet<>() {
+                    @Override
+                    public int size() {
+                        return version.size;
+                    }
+
+                    @Override
+                    public Iterator<Entry<String, Cell>> iterator() {
+                        List<Leaf> leaves = new ArrayList<>(version.size);
+                        collect(version.root, leaves);
+                        Iterator<Leaf> it = leaves.iterator();
+                        return new Iterator<>() {
+                            @Override
+                            public boolean hasNext() {
+                                return it.hasNext();
+                            }
+
+                            @Override
+                            public Entry<String, Cell> next() {
+                                Cell cell = it.next().cell;
+                                return new SimpleImmutableEntry<>(cell.getCoordinate(), cell);
+                            }
+                        };
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Leaf, Cell and coordinate string per cell, its share of trie nodes and a typical content
+     */
+    static final long BYTES_PER_CELL = 150;
+
+    @Override
+    public long estimateBytes() {
+        return current.size * BYTES_PER_CELL;
+    }
+
+    @Override
+    public void clear() {
+        edit = new Object();
+        current = new Version(BitmapNode.EMPTY, 0);
+    }
+
+    // ----- Trie nodes -----
+
+    private static final class Leaf {
+        final long key;
+        final Cell cell;
+
+        Leaf(long key, Cell cell) {
+            this.key = key;
+            this.cell = cell;
+        }
+    }
+
+    /**
+     * Inner node: one bit per occupied slot, children packed in slot order
+     * Each child is a Leaf, a BitmapNode or (below the last level) a CollisionNode
+     */
+    private static final class BitmapNode {
+        static final BitmapNode EMPTY = new BitmapNode(null, 0, new Object[0]);
+
+        final Object edit; // Owner token; null means frozen
+        int bitmap;
+        Object[] children;
+
+        BitmapNode(Object edit, int bitmap, Object[] children) {
+            this.edit = edit;
+            this.bitmap = bitmap;
+            this.children = children;
+        }
+
+        int indexOf(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        Object child(int slot) {
+            int bit = 1 << slot;
+            return (bitmap & bit) == 0 ? null : children[indexOf(bit)];
+        }
+    }
+
+    /**
+     * Leaves whose 32-bit hashes are identical
+     */
+    private static final class CollisionNode {
+        final Leaf[] leaves;
+
+        CollisionNode(Leaf[] leaves) {
+            this.leaves = leaves;
+        }
+    }
+
+    private static long key(String coord) {
+        return ((long) FileSystem.columnNumber(coord) << 32) | (FileSystem.rowNumber(coord) & 0xFFFFFFFFL);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static Object find(BitmapNode root, long key) {
+        int hash = hash(key);
+        Object node = root;
+        for (int shift = 0; ; shift += BITS) {
+            if (node instanceof BitmapNode) {
+                node = ((BitmapNode) node).child((hash >>> shift) & MASK);
+                if (node == null) return null;
+            } else if (node instanceof Leaf) {
+                Leaf leaf = (Leaf) node;
+                return leaf.key == key ? leaf.cell : null;
+            } else {
+                for (Leaf leaf : ((CollisionNode) node).leaves) {
+                    if (leaf.key == key) return leaf.cell;
+                }
+                return null;
+            }
+        }
+    }
+
+    private static Object put(Object node, long key, int hash, int shift, Cell cell, boolean[] added, Object edit) {
+        if (node instanceof BitmapNode) {
+            BitmapNode bn = (BitmapNode) node;
+            int bit = 1 << ((hash >>> shift) & MASK);
+            int index = bn.indexOf(bit);
+
+            if ((bn.bitmap & bit) == 0) {
+                Object[] children = new Object[bn.children.length + 1];
+                System.arraycopy(bn.children, 0, children, 0, index);
+                children[index] = new Leaf(key, cell);
+                System.arraycopy(bn.children, index, children, index + 1, bn.children.length - index);
+                added[0] = true;
+                if (bn.edit == edit) {
+                    bn.bitmap |= bit;
+                    bn.children = children;
+                    return bn;
+                }
+                return new BitmapNode(edit, bn.bitmap | bit, children);
+            }
+
+            Object child = put(bn.children[index], key, hash, shift + BITS, cell, added, edit);
+            if (bn.edit == edit) {
+                bn.children[index] = child;
+                return bn;
+            }
+            Object[] children = bn.children.clone();
+            children[index] = child;
+            return new BitmapNode(edit, bn.bitmap, children);
+        }
+
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            if (leaf.key == key) {
+                return new Leaf(key, cell);
+            }
+            added[0] = true;
+            int leafHash = hash(leaf.key);
+            if (leafHash == hash || shift > MAX_SHIFT) {
+                return new CollisionNode(new Leaf[] { leaf, new Leaf(key, cell) });
+            }
+            // Push the existing leaf one level down and insert next to it
+            BitmapNode split = new BitmapNode(edit, 1 << ((leafHash >>> shift) & MASK), new Object[] { leaf });
+            return put(split, key, hash, shift, cell, added, edit);
+        }
+
+        Leaf[] leaves = ((CollisionNode) node).leaves;
+        for (int i = 0; i < leaves.length; i++) {
+            if (leaves[i].key == key) {
+                Leaf[] copy = leaves.clone();
+                copy[i] = new Leaf(key, cell);
+                return new CollisionNode(copy);
+            }
+        }
+        Leaf[] copy = Arrays.copyOf(leaves, leaves.length + 1);
+        copy[leaves.length] = new Leaf(key, cell);
+        added[0] = true;
+        return new CollisionNode(copy);
+    }
+
+    /**
+     * Returns the new node, or null if the subtree became empty
+     */
+    private static Object remove(Object node, long key, int hash, int shift, boolean[] removed) {
+        if (node instanceof BitmapNode) {
+            BitmapNode bn = (BitmapNode) node;
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bn.bitmap & bit) == 0) {
+                return bn;
+            }
+            int index = bn.indexOf(bit);
+            Object child = remove(bn.children[index], key, hash, shift + BITS, removed);
+            if (!removed[0]) {
+                return bn;
+            }
+            if (child != null) {
+                Object[] children = bn.children.clone();
+                children[index] = child;
+                return new BitmapNode(null, bn.bitmap, children);
+            }
+            if (bn.children.length == 1) {
+                return null;
+            }
+            Object[] children = new Object[bn.children.length - 1];
+            System.arraycopy(bn.children, 0, children, 0, index);
+            System.arraycopy(bn.children, index + 1, children, index, children.length - index);
+            return new BitmapNode(null, bn.bitmap & ~bit, children);
+        }
+
+        if (node instanceof Leaf) {
+            if (((Leaf) node).key != key) {
+                return node;
+            }
+            removed[0] = true;
+            return null;
+        }
+
+        Leaf[] leaves = ((CollisionNode) node).leaves;
+        for (int i = 0; i < leaves.length; i++) {
+            if (leaves[i].key == key) {
+                removed[0] = true;
+                if (leaves.length == 2) {
+                    return leaves[1 - i];
+                }
+                Leaf[] copy = new Leaf[leaves.length - 1];
+                System.arraycopy(leaves, 0, copy, 0, i);
+                System.arraycopy(leaves, i + 1, copy, i, copy.length - i);
+                return new CollisionNode(copy);
+            }
+        }
+        return node;
+    }
+
+    private static void collect(Object node, List<Leaf> out) {
+        if (node == null) {
+            return;
+        }
+        if (node instanceof Leaf) {
+            out.add((Leaf) node);
+        } else if (node instanceof CollisionNode) {
+            out.addAll(Arrays.asList(((CollisionNode) node).leaves));
+        } else {
+            for (Object child : ((BitmapNode) node).children) {
+                collect(child, out);
+            }
+        }
+    }
+
+    private static void diffNodes(Object a, Object b, int shift, DiffVisitor visitor) {
+        if (a == b) {
+            return; // Shared subtree
+        }
+
+        if (a instanceof BitmapNode && b instanceof BitmapNode) {
+            BitmapNode na = (BitmapNode) a;
+            BitmapNode nb = (BitmapNode) b;
+            int slots = na.bitmap | nb.bitmap;
+            while (slots != 0) {
+                int slot = Integer.numberOfTrailingZeros(slots);
+                slots &= slots - 1;
+                diffNodes(na.child(slot), nb.child(slot), shift + BITS, visitor);
+            }
+            return;
+        }
+
+        // Different shapes (or leaves): compare the leaves of both small subtrees directly
+        List<Leaf> before = new ArrayList<>();
+        List<Leaf> after = new ArrayList<>();
+        collect(a, before);
+        collect(b, after);
+
+        Map<Long, Leaf> afterByKey = new HashMap<>();
+        for (Leaf leaf : after) {
+            afterByKey.put(leaf.key, leaf);
+        }
+        for (Leaf leaf : before) {
+            Leaf other = afterByKey.remove(leaf.key);
+            if (other == null) {
+                visitor.visit(leaf.cell.getCoordinate(), leaf.cell, null);
+            } else if (other.cell != leaf.cell) {
+                visitor.visit(leaf.cell.getCoordinate(), leaf.cell, other.cell);
+            }
+        }
+        for (Leaf leaf : afterByKey.values()) {
+            visitor.visit(leaf.cell.getCoordinate(), null, leaf.cell);
+        }
+    }
+}
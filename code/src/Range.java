@@ -1,100 +1,336 @@
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+/**
+ * A rectangle of cells: A1:B10, or open-ended like a whole column (A:A), whole rows (3:3)
+ * or a column from a row down (A5:A). Open ends extend to MAX_ROW / MAX_COL, but reading
+ * a range never goes past the last populated row and column.
+ *
+ * Ends may be anchored with "$" ($A$1:$A$10, A$1, $A:$C). Anchored bounds stay put when a
+ * formula is filled into other cells, and so do open ends; getReference() is always plain.
+ */
 public class Range implements Expression {
+    // Sheet limits that open ends stand for
+    public static final int MAX_ROW = 1_048_576;
+    public static final int MAX_COL = 16_384;
+
     private String startCoord;
     private String endCoord;
     private Spreadsheet spreadsheet;
 
+    // Ends as written, with their "$" anchors
+    private final String startText, endText;
+
+    // Normalized bounds (start <= end)
+    private final int firstCol, lastCol, firstRow, lastRow;
+    private final boolean open;
+
+    // Bounds that do not move when the range is shifted: anchored or open-ended
+    private final boolean fixedFirstCol, fixedLastCol, fixedFirstRow, fixedLastRow;
+
+    /**
+     * Ends are cells ("A1"), columns ("A") or rows ("3"); see bounds() for the combinations
+     */
     public Range(String startCoord, String endCoord, Spreadsheet spreadsheet) {
-        this.startCoord = startCoord.toUpperCase();
-        this.endCoord = endCoord.toUpperCase();
+        this.startText = startCoord.toUpperCase();
+        this.endText = endCoord.toUpperCase();
+        this.startCoord = startText.replace("$", "");
+        this.endCoord = endText.replace("$", "");
         this.spreadsheet = spreadsheet;
+
+        int[] bounds = bounds(this.startCoord, this.endCoord);
+        this.firstCol = bounds[0];
+        this.lastCol = bounds[1];
+        this.firstRow = bounds[2];
+        this.lastRow = bounds[3];
+        this.open = bounds[4] != 0;
+
+        // Which end supplies each bound; a missing part (A:A has no rows) is an open, fixed end
+        int startCol = columnNumber(this.startCoord);
+        int endCol = columnNumber(this.endCoord);
+        boolean startFirstCol = startCol <= endCol;
+        boolean startColFixed = startCol == 0 || startText.startsWith("$");
+        boolean endColFixed = endCol == 0 || endText.startsWith("$");
+        this.fixedFirstCol = startFirstCol ? startColFixed : endColFixed;
+        this.fixedLastCol = startFirstCol ? endColFixed : startColFixed;
+
+        int startRow = endsWithDigit(this.startCoord) ? rowNumber(this.startCoord) : MAX_ROW;
+        int endRow = endsWithDigit(this.endCoord) ? rowNumber(this.endCoord) : MAX_ROW;
+        boolean startFirstRow = startRow <= endRow;
+        boolean startRowFixed = !endsWithDigit(this.startCoord) || startText.indexOf('$', 1) > 0;
+        boolean endRowFixed = !endsWithDigit(this.endCoord) || endText.indexOf('$', 1) > 0;
+        this.fixedFirstRow = startFirstRow ? startRowFixed : endRowFixed;
+        this.fixedLastRow = startFirstRow ? endRowFixed : startRowFixed;
+    }
+
+    @Override
+    public Expression shift(int cols, int rows) {
+        if ((cols == 0 || (fixedFirstCol && fixedLastCol)) && (rows == 0 || (fixedFirstRow && fixedLastRow))) {
+            return this;
+        }
+        return new Range(CellReference.shift(startText, cols, rows), CellReference.shift(endText, cols, rows), spreadsheet);
+    }
+
+    /**
+     * Bounds of a reference like "A1:B10", "A:A", "3:3" or "A5:A" (or a single cell "A1") as
+     * {firstCol, lastCol, firstRow, lastRow, 1 if open-ended else 0}
+     */
+    static int[] bounds(String reference) {
+        int colon = reference.indexOf(':');
+        if (colon < 0) {
+            return bounds(reference.toUpperCase(), reference.toUpperCase());
+        }
+        return bounds(reference.substring(0, colon).toUpperCase(), reference.substring(colon + 1).toUpperCase());
+    }
+
+    private static int[] bounds(String start, String end) {
+        int startCol = columnNumber(start);
+        int endCol = columnNumber(end);
+        int startRow = endsWithDigit(start) ? rowNumber(start) : 0;
+        int endRow = endsWithDigit(end) ? rowNumber(end) : 0;
+        boolean startHasCol = startCol > 0, endHasCol = endCol > 0;
+        boolean startHasRow = startRow > 0, endHasRow = endRow > 0;
+
+        if (!startHasCol && !endHasCol) {
+            // 3:5 - whole rows
+            startCol = 1;
+            endCol = MAX_COL;
+        } else if (!startHasRow && !endHasRow) {
+            // A:C - whole columns
+            startRow = 1;
+            endRow = MAX_ROW;
+        } else if (startHasCol != endHasCol || startHasRow != endHasRow) {
+            // A5:A - a column from a row down (the end missing its row runs to the last row)
+            if (!startHasCol || !endHasCol) {
+                throw new IllegalArgumentException("Invalid range: " + start + ":" + end);
+            }
+            if (!startHasRow) startRow = MAX_ROW;
+            if (!endHasRow) endRow = MAX_ROW;
+        }
+
+        boolean open = !(startHasCol && endHasCol && startHasRow && endHasRow);
+        return new int[] {
+            Math.min(startCol, endCol), Math.max(startCol, endCol),
+            Math.min(startRow, endRow), Math.max(startRow, endRow),
+            open ? 1 : 0
+        };
     }
 
     @Override
     public double calculate() {
         // Default calculate() returns sum for backward compatibility
-        return getValues().stream().mapToDouble(d -> d).sum();
+        double[] values = getValueBlock();
+        return Aggregates.sum(values, values.length);
     }
 
     /**
      * Get all numeric values in the range
      */
     public List<Double> getValues() {
-        List<Double> values = new ArrayList<>();
+        double[] block = getValueBlock();
+        List<Double> values = new ArrayList<>(block.length);
+        for (double value : block) {
+            values.add(value);
+        }
+        return values;
+    }
 
-        int startCol = columnNumber(startCoord);
-        int startRow = rowNumber(startCoord);
-        int endCol = columnNumber(endCoord);
-        int endRow = rowNumber(endCoord);
+    /**
+     * Numeric values of the range as one contiguous block, in row-major order
+     * Empty and non-numeric cells are left out, so the block can be fed straight to Aggregates
+     */
+    public double[] getValueBlock() {
+        return valueBlock(List.of(this));
+    }
 
-        // Ensure start <= end
-        if (startCol > endCol) {
-            int temp = startCol;
-            startCol = endCol;
-            endCol = temp;
-        }
-        if (startRow > endRow) {
-            int temp = startRow;
-            startRow = endRow;
-            endRow = temp;
+    /**
+     * Numeric values of several ranges of one sheet, gathered in a single row-major pass:
+     * each row is visited once for all the ranges that cover it, so SUMA(A1:A9; C1:C9; E1:E9)
+     * walks the storage once instead of once per range. A cell in two ranges counts twice.
+     *
+     * Only populated cells are read, from the sheet's CellIndex: the rows visited are the
+     * populated rows of the ranges' columns when those are fewer than the rows spanned, so
+     * SUMA(A:A) costs as much as column A has cells, however far other columns reach; within a
+     * row, ranges wider than a few columns only look at the row's populated columns.
+     */
+    static double[] valueBlock(List<Range> ranges) {
+        // Nothing lies beyond the last populated row/column, so huge ranges are clamped first
+        Spreadsheet spreadsheet = ranges.get(0).spreadsheet;
+        CellIndex index = spreadsheet.getIndex();
+        int maxCol = index.getMaxCol();
+        int startRow = MAX_ROW, endRow = 0;
+        for (Range range : ranges) {
+            startRow = Math.min(startRow, range.firstRow);
+            endRow = Math.max(endRow, Math.min(range.lastRow, index.getMaxRow()));
         }
+        Values values = new Values();
 
-        // Iterate over rectangular range
-        for (int row = startRow; row <= endRow; row++) {
-            for (int col = startCol; col <= endCol; col++) {
-                String coord = coordinate(col, row);
-                Cell cell = spreadsheet.getCell(coord);
-                Content content = cell.getContent();
-
-                if (content != null) {
-                    Object value = content.getValue();
-                    if (value instanceof Number) {
-                        values.add(((Number) value).doubleValue());
-                    } else if (value instanceof String) {
-                        String str = (String) value;
-                        if (!str.isEmpty()) {
-                            try {
-                                values.add(Double.parseDouble(str));
-                            } catch (NumberFormatException e) {
-                                // Skip non-numeric values
-                            }
-                        }
+        int[] rows = populatedRows(ranges, index, startRow, endRow);
+        int rowCount = rows == null ? endRow - startRow + 1 : rows.length;
+        for (int i = 0; i < rowCount; i++) {
+            int row = rows == null ? startRow + i : rows[i];
+            for (Range range : ranges) {
+                if (row < range.firstRow || row > range.lastRow) {
+                    continue;
+                }
+                int endCol = Math.min(range.lastCol, maxCol);
+                if (endCol - range.firstCol < NARROW_RANGE) {
+                    for (int col = range.firstCol; col <= endCol; col++) {
+                        values.add(spreadsheet.getContent(col, row));
+                    }
+                } else {
+                    for (int col : index.columnsInRow(row, range.firstCol, endCol)) {
+                        values.add(spreadsheet.getContent(col, row));
                     }
                 }
             }
         }
+        return values.toArray();
+    }
 
-        return values;
+    // Ranges up to this many columns wide read their cells directly instead of asking the index
+    private static final int NARROW_RANGE = 8;
+
+    /**
+     * Populated rows of the ranges' columns within [startRow, endRow], ascending, or null when
+     * those columns hold at least as many cells as there are rows to walk
+     */
+    private static int[] populatedRows(List<Range> ranges, CellIndex index, int startRow, int endRow) {
+        long span = endRow - startRow + 1L;
+        long cells = 0;
+        for (Range range : ranges) {
+            int endCol = Math.min(range.lastCol, index.getMaxCol());
+            for (int col = range.firstCol; col <= endCol && cells < span; col++) {
+                cells += index.countInColumn(col);
+            }
+        }
+        if (cells >= span) {
+            return null;
+        }
+
+        int[] rows = new int[(int) cells];
+        int count = 0;
+        for (Range range : ranges) {
+            int endCol = Math.min(range.lastCol, index.getMaxCol());
+            for (int col = range.firstCol; col <= endCol; col++) {
+                for (int row : index.rowsInColumn(col, range.firstRow, range.lastRow)) {
+                    rows[count++] = row;
+                }
+            }
+        }
+        Arrays.sort(rows, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || rows[distinct - 1] != rows[i]) {
+                rows[distinct++] = rows[i];
+            }
+        }
+        return Arrays.copyOf(rows, distinct);
     }
 
     /**
-     * Get all cell coordinates in the range (for dependency tracking)
+     * Growing block of the numeric values of the cells added to it
      */
-    public List<String> getAllCoordinates() {
-        List<String> coordinates = new ArrayList<>();
+    private static class Values {
+        private final ContentClassifier numbers = ContentClassifier.forThread();
+        private double[] values = new double[16];
+        private int count;
+
+        void add(Content content) {
+            if (content == null) {
+                return;
+            }
+
+            double value;
+            if (content instanceof NumericContent) {
+                value = ((NumericContent) content).getNumber();
+            } else {
+                Object raw = content.getValue();
+                if (raw instanceof Number) {
+                    value = ((Number) raw).doubleValue();
+                } else if (raw instanceof String && numbers.classify((String) raw) == ContentClassifier.NUMBER) {
+                    value = numbers.number();
+                } else {
+                    // Skip non-numeric values
+                    return;
+                }
+            }
+
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = value;
+        }
+
+        double[] toArray() {
+            return count == values.length ? values : Arrays.copyOf(values, count);
+        }
+    }
 
-        int startCol = columnNumber(startCoord);
-        int startRow = rowNumber(startCoord);
-        int endCol = columnNumber(endCoord);
-        int endRow = rowNumber(endCoord);
+    /**
+     * Number of distinct cells covered by the ranges (overlaps counted once). Sweeps the column
+     * boundaries and merges the row intervals of the ranges spanning each strip of columns.
+     */
+    static long cellCount(List<Range> ranges) {
+        int[] cols = new int[ranges.size() * 2];
+        for (int i = 0; i < ranges.size(); i++) {
+            cols[2 * i] = ranges.get(i).firstCol;
+            cols[2 * i + 1] = ranges.get(i).lastCol + 1;
+        }
+        Arrays.sort(cols);
+
+        long count = 0;
+        List<int[]> rows = new ArrayList<>();
+        for (int i = 0; i + 1 < cols.length; i++) {
+            if (cols[i] == cols[i + 1]) {
+                continue;
+            }
+            rows.clear();
+            for (Range range : ranges) {
+                if (range.firstCol <= cols[i] && cols[i] <= range.lastCol) {
+                    rows.add(new int[] { range.firstRow, range.lastRow });
+                }
+            }
+            rows.sort((a, b) -> Integer.compare(a[0], b[0]));
 
-        // Ensure start <= end
-        if (startCol > endCol) {
-            int temp = startCol;
-            startCol = endCol;
-            endCol = temp;
+            long covered = 0;
+            int from = 0, to = -1;
+            for (int[] interval : rows) {
+                if (interval[0] > to + 1) {
+                    covered += to - from + 1;
+                    from = interval[0];
+                    to = interval[1];
+                } else {
+                    to = Math.max(to, interval[1]);
+                }
+            }
+            covered += to - from + 1;
+            count += covered * (cols[i + 1] - cols[i]);
         }
-        if (startRow > endRow) {
-            int temp = startRow;
-            startRow = endRow;
-            endRow = temp;
+        return count;
+    }
+
+    /**
+     * True if the cell lies inside the range
+     */
+    boolean contains(int col, int row) {
+        return firstCol <= col && col <= lastCol && firstRow <= row && row <= lastRow;
+    }
+
+    /**
+     * Get all cell coordinates in the range (for dependency tracking)
+     * Open-ended ranges are tracked as one region instead, see isOpen()
+     */
+    public List<String> getAllCoordinates() {
+        if (open) {
+            throw new IllegalStateException("Open-ended range " + getReference() + " has no fixed cell list");
         }
+        List<String> coordinates = new ArrayList<>();
 
         // Iterate over rectangular range
-        for (int row = startRow; row <= endRow; row++) {
-            for (int col = startCol; col <= endCol; col++) {
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
                 coordinates.add(coordinate(col, row));
             }
         }
@@ -102,6 +338,56 @@ public class Range implements Expression {
         return coordinates;
     }
 
+    /**
+     * The range as written, e.g. "A1:B10"
+     */
+    public String getReference() {
+        return startCoord + ":" + endCoord;
+    }
+
+    /**
+     * True for whole columns/rows and ranges like A5:A, which are tracked as one dependency region
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+    public Spreadsheet getSpreadsheet() {
+        return spreadsheet;
+    }
+
+    public int getFirstCol() {
+        return firstCol;
+    }
+
+    public int getLastCol() {
+        return lastCol;
+    }
+
+    public int getFirstRow() {
+        return firstRow;
+    }
+
+    public int getLastRow() {
+        return lastRow;
+    }
+
+    public boolean isFixedFirstCol() {
+        return fixedFirstCol;
+    }
+
+    public boolean isFixedLastCol() {
+        return fixedLastCol;
+    }
+
+    public boolean isFixedFirstRow() {
+        return fixedFirstRow;
+    }
+
+    public boolean isFixedLastRow() {
+        return fixedLastRow;
+    }
+
     // Utility: Convert "A1" → column number
     private static int columnNumber(String coord) {
         int i = 0;
@@ -115,6 +401,10 @@ public class Range implements Expression {
         return col;
     }
 
+    private static boolean endsWithDigit(String coord) {
+        return !coord.isEmpty() && Character.isDigit(coord.charAt(coord.length() - 1));
+    }
+
     // Utility: Extract row number from "A1"
     private static int rowNumber(String coord) {
         int i = 0;
@@ -0,0 +1,295 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Offline load generator: builds a synthetic workbook and replays a random edit stream against it.
+ *
+ *   java SoakHarness [--cells=N] [--columns=N] [--formula-density=F] [--chain-depth=N]
+ *                    [--range-width=N] [--fan-out=N] [--edits=N] [--seed=N]
+ *                    [--batch-every=N] [--save-every=N] [--mapped-store[=dir]] [--memory-limit=SIZE]
+ *
+ * Column A holds numeric inputs. Every other cell is a formula with probability formula-density
+ * (otherwise a number, or text one time in ten). A formula is one of three shapes:
+ *   chain    =B4+A5        extends the formula above it, up to chain-depth links
+ *   range    =SUMA(A1:A50) aggregates range-width input cells above it
+ *   fan-out  =A3*2         reads one of a few hub inputs, each read by about fan-out formulas
+ * Formulas only reference earlier rows, so the workbook is always acyclic.
+ *
+ * The edit stream changes inputs (70%), rewrites formulas (20%) and overwrites other cells (10%)
+ * through Spreadsheet.setCellContent, whose latency covers the edit and the recalculation of its
+ * dependents. Every batch-every edits, a group of edits goes through the batch command path
+ * (BatchRunner); every save-every edits, the sheet is saved and loaded back with FileSystem.
+ * The report lists throughput, p50/p99/p99.9 latencies, heap use and GC counts and times.
+ */
+public class SoakHarness {
+    private int cells = 20_000;
+    private int columns = 10;
+    private double formulaDensity = 0.5;
+    private int chainDepth = 20;
+    private int rangeWidth = 50;
+    private int fanOut = 100;
+    private int edits = 20_000;
+    private long seed = 42;
+    private int batchEvery = 1_000;
+    private int saveEvery = 10_000;
+    private Path mappedStoreDir;
+
+    private Random random;
+    private int rows;
+    private int hubs;
+
+    // Chain links ending at each cell (row-major index), 0 when the cell does not continue a chain
+    private int[] chainLength;
+
+    public static void main(String[] args) throws Exception {
+        SoakHarness harness = new SoakHarness();
+        for (String arg : args) {
+            harness.configure(arg);
+        }
+        harness.run();
+    }
+
+    private void configure(String arg) {
+        String value = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : "";
+        String name = arg.contains("=") ? arg.substring(0, arg.indexOf('=')) : arg;
+        switch (name) {
+            case "--cells" -> cells = Integer.parseInt(value);
+            case "--columns" -> columns = Integer.parseInt(value);
+            case "--formula-density" -> formulaDensity = Double.parseDouble(value);
+            case "--chain-depth" -> chainDepth = Integer.parseInt(value);
+            case "--range-width" -> rangeWidth = Integer.parseInt(value);
+            case "--fan-out" -> fanOut = Integer.parseInt(value);
+            case "--edits" -> edits = Integer.parseInt(value);
+            case "--seed" -> seed = Long.parseLong(value);
+            case "--batch-every" -> batchEvery = Integer.parseInt(value);
+            case "--save-every" -> saveEvery = Integer.parseInt(value);
+            case "--mapped-store" -> mappedStoreDir = Paths.get(value.isEmpty() ? System.getProperty("java.io.tmpdir") : value);
+            case "--memory-limit" -> MemoryBudget.setDefaultLimit(MemoryBudget.parseSize(value));
+            default -> throw new IllegalArgumentException("Unknown option: " + arg);
+        }
+    }
+
+    private void run() throws Exception {
+        if (columns < 2 || cells < columns) {
+            throw new IllegalArgumentException("Need at least 2 columns and one full row of cells");
+        }
+        random = new Random(seed);
+        rows = cells / columns;
+        chainLength = new int[rows * columns];
+
+        System.out.printf("Workbook: %d rows x %d columns, formula density %.2f, chain depth %d, range width %d, fan-out %d%n",
+                rows, columns, formulaDensity, chainDepth, rangeWidth, fanOut);
+        System.out.printf("Store: %s, memory budget %d MB, seed %d%n",
+                mappedStoreDir == null ? "persistent" : "mapped (" + mappedStoreDir + ")",
+                MemoryBudget.megabytes(new Spreadsheet().getMemoryBudget().getLimit()), seed);
+
+        GcSnapshot gcStart = GcSnapshot.take();
+        long start = System.nanoTime();
+        Spreadsheet sheet = generate();
+        long generated = System.nanoTime() - start;
+        System.out.printf("Generated %d cells in %d ms (%.0f cells/s)%n",
+                sheet.getIndex().size(), generated / 1_000_000, sheet.getIndex().size() / (generated / 1e9));
+
+        Path file = Files.createTempFile("soak", ".s2v");
+        try {
+            replay(sheet, file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        GcSnapshot.take().since(gcStart).print();
+    }
+
+    private Spreadsheet newSheet() throws IOException {
+        return Spreadsheet.create(mappedStoreDir);
+    }
+
+    /**
+     * Build the workbook in blocks of rows, each written as one batch
+     */
+    private Spreadsheet generate() throws Exception {
+        Spreadsheet sheet = newSheet();
+        hubs = Math.max(1, Math.min(rows, (int) (rows * (columns - 1) * formulaDensity / Math.max(1, fanOut))));
+
+        int blockRows = Math.max(1, 4096 / columns);
+        for (int first = 1; first <= rows; first += blockRows) {
+            int count = Math.min(blockRows, rows - first + 1);
+            String[] block = new String[count * columns];
+            for (int r = 0; r < count; r++) {
+                for (int c = 0; c < columns; c++) {
+                    block[r * columns + c] = c == 0 ? number() : cell(c + 1, first + r);
+                }
+            }
+            Map<String, String> errors = sheet.writeBlock(1, first, columns, count, block);
+            if (!errors.isEmpty()) {
+                throw new IllegalStateException("Generating the workbook failed: " + errors.values().iterator().next());
+            }
+        }
+        sheet.clearHistory();
+        return sheet;
+    }
+
+    private String cell(int col, int row) {
+        chainLength[index(col, row)] = 0;
+        double roll = random.nextDouble();
+        if (roll < formulaDensity) {
+            return formula(col, row);
+        }
+        return roll < formulaDensity + (1 - formulaDensity) / 10 ? "item" + random.nextInt(1000) : number();
+    }
+
+    private String formula(int col, int row) {
+        String column = FileSystem.columnName(col);
+        switch (random.nextInt(3)) {
+            case 0 -> {
+                int above = row > 1 ? chainLength[index(col, row - 1)] : chainDepth;
+                if (above > 0 && above < chainDepth) {
+                    chainLength[index(col, row)] = above + 1;
+                    return "=" + column + (row - 1) + "+A" + row;
+                }
+                chainLength[index(col, row)] = 1;
+                return "=A" + row + "+1";
+            }
+            case 1 -> {
+                int first = Math.max(1, row - rangeWidth);
+                return row > 1 ? "=SUMA(A" + first + ":A" + (row - 1) + ")" : "=A1";
+            }
+            default -> {
+                int hub = 1 + random.nextInt(Math.min(hubs, row));
+                return "=A" + hub + "*2";
+            }
+        }
+    }
+
+    private String number() {
+        return Integer.toString(random.nextInt(10_000));
+    }
+
+    private int index(int col, int row) {
+        return (row - 1) * columns + (col - 1);
+    }
+
+    /**
+     * Apply the edit stream and print the report
+     */
+    private void replay(Spreadsheet sheet, Path file) throws Exception {
+        long[] latencies = new long[edits];
+        int measured = 0;
+        int failed = 0;
+        int batched = 0;
+        long batchNanos = 0;
+        int saves = 0;
+        long saveNanos = 0;
+        long loadNanos = 0;
+
+        long start = System.nanoTime();
+        for (int edit = 1; edit <= edits; edit++) {
+            int row = 1 + random.nextInt(rows);
+            double roll = random.nextDouble();
+            int col = roll < 0.7 ? 1 : 2 + random.nextInt(columns - 1);
+            String content = col == 1 ? number() : roll < 0.9 ? formula(col, row) : cell(col, row);
+            String coord = FileSystem.coordinate(col, row);
+
+            if (batchEvery > 0 && edit % batchEvery == 0) {
+                // A group of input edits through the command path, ending with a read
+                StringBuilder script = new StringBuilder();
+                for (int i = 0; i < 100; i++) {
+                    script.append("set A").append(1 + random.nextInt(rows)).append(' ').append(number()).append('\n');
+                }
+                script.append("get ").append(coord).append('\n');
+                long t = System.nanoTime();
+                BatchRunner runner = new BatchRunner(sheet, OutputStream.nullOutputStream());
+                failed += runner.run(new BufferedReader(new StringReader(script.toString())));
+                batchNanos += System.nanoTime() - t;
+                batched++;
+            }
+
+            long t = System.nanoTime();
+            try {
+                sheet.setCellContent(coord, content);
+                latencies[measured++] = System.nanoTime() - t;
+            } catch (Exception e) {
+                failed++;
+            }
+
+            if (saveEvery > 0 && edit % saveEvery == 0) {
+                t = System.nanoTime();
+                FileSystem.save(sheet, file.toString());
+                long saved = System.nanoTime();
+                Spreadsheet loaded = FileSystem.load(file.toString(), newSheet());
+                loadNanos += System.nanoTime() - saved;
+                saveNanos += saved - t;
+                saves++;
+                if (loaded.getIndex().size() != sheet.getIndex().size()) {
+                    throw new IllegalStateException("Reloaded sheet has " + loaded.getIndex().size()
+                            + " cells instead of " + sheet.getIndex().size());
+                }
+                loaded.close();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Arrays.sort(latencies, 0, measured);
+        System.out.printf("Edits: %d in %d ms (%.0f edits/s over the whole stream), %d failed%n",
+                edits, elapsed / 1_000_000, edits / (elapsed / 1e9), failed);
+        System.out.printf("Edit-to-recalculated latency: p50 %s, p99 %s, p99.9 %s, max %s%n",
+                micros(percentile(latencies, measured, 0.5)), micros(percentile(latencies, measured, 0.99)),
+                micros(percentile(latencies, measured, 0.999)), micros(measured == 0 ? 0 : latencies[measured - 1]));
+        if (batched > 0) {
+            System.out.printf("Batch command path: %d scripts of 100 edits, %s per script%n",
+                    batched, micros(batchNanos / batched));
+        }
+        if (saves > 0) {
+            System.out.printf("Save/load: %d round trips, save %d ms, load %d ms on average%n",
+                    saves, saveNanos / saves / 1_000_000, loadNanos / saves / 1_000_000);
+        }
+        System.out.printf("Sheet estimate: %d MB of a %d MB budget%n",
+                MemoryBudget.megabytes(sheet.getMemoryBudget().used()),
+                MemoryBudget.megabytes(sheet.getMemoryBudget().getLimit()));
+        sheet.close();
+    }
+
+    private static long percentile(long[] sorted, int count, double fraction) {
+        if (count == 0) {
+            return 0;
+        }
+        return sorted[Math.min(count - 1, (int) Math.ceil(fraction * count) - 1)];
+    }
+
+    private static String micros(long nanos) {
+        return nanos < 10_000_000 ? String.format("%.1f us", nanos / 1e3) : (nanos / 1_000_000) + " ms";
+    }
+
+    /**
+     * Heap use and cumulative collector counts and times at one point
+     */
+    private record GcSnapshot(long heapUsed, long collections, long collectionMillis) {
+        static GcSnapshot take() {
+            long count = 0;
+            long millis = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, gc.getCollectionCount());
+                millis += Math.max(0, gc.getCollectionTime());
+            }
+            return new GcSnapshot(ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(), count, millis);
+        }
+
+        GcSnapshot since(GcSnapshot start) {
+            return new GcSnapshot(heapUsed, collections - start.collections, collectionMillis - start.collectionMillis);
+        }
+
+        void print() {
+            Runtime runtime = Runtime.getRuntime();
+            System.out.printf("Heap: %d MB used, %d MB committed, %d MB max; GC: %d collections, %d ms%n",
+                    MemoryBudget.megabytes(heapUsed), MemoryBudget.megabytes(runtime.totalMemory()),
+                    MemoryBudget.megabytes(runtime.maxMemory()), collections, collectionMillis);
+        }
+    }
+}
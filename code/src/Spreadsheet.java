@@ -1,16 +1,73 @@
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
 
-public class Spreadsheet {
-    private Map<String, Cell> cells;
+public final class Spreadsheet {
+    private CellStore cells;
     private DependencyManager dependencyManager;
+    private EditJournal journal;
+    private CellChangePublisher changePublisher;
+
+    // Set when the sheet belongs to a workbook, which resolves Hoja2!A1 references
+    private Workbook workbook;
+    private String name;
+
+    // Populated cells by row, for windowed reads
+    private CellIndex index = new CellIndex();
+
+    // Value -> rows indexes of the columns searched by lookup functions
+    private final LookupIndex lookupIndex;
+
+    // Shared content per distinct text value
+    private TextDictionary textDictionary = new TextDictionary();
+
+    // Estimated heap usage and the limit edits must stay within
+    private final MemoryBudget memory;
+
+    // Undo/redo history as store versions (they share structure, so each step costs only its changes)
+    private static final int MAX_HISTORY = 1000;
+    // Undo steps dropped each time memory pressure evicts caches
+    private static final int EVICT_HISTORY_STEPS = 100;
+    private static final long BYTES_PER_HISTORY_STEP = 600; // Copied trie path of a typical edit
+    private Deque<PersistentCellStore.Version> undoHistory = new ArrayDeque<>();
+    private Deque<PersistentCellStore.Version> redoHistory = new ArrayDeque<>();
 
     public Spreadsheet() {
-        this.cells = new HashMap<>();
+        this.cells = new PersistentCellStore();
         this.dependencyManager = new DependencyManager();
+        this.lookupIndex = new LookupIndex(this);
+        this.memory = new MemoryBudget(this);
+    }
+
+    /**
+     * Create a spreadsheet whose cell contents live in a memory-mapped file in 'directory'
+     * instead of on the heap, keeping at most 'cacheCells' materialized cells in memory
+     */
+    public static Spreadsheet withMappedStore(Path directory, int cacheCells) throws IOException {
+        Spreadsheet sheet = new Spreadsheet();
+        sheet.cells = new MappedCellStore(sheet, directory, cacheCells);
+        return sheet;
+    }
+
+    /**
+     * A new spreadsheet with the default store, or with a mapped store in 'mappedStoreDir'
+     * when it is not null (the --mapped-store option)
+     */
+    public static Spreadsheet create(Path mappedStoreDir) throws IOException {
+        return mappedStoreDir == null
+                ? new Spreadsheet()
+                : withMappedStore(mappedStoreDir, MappedCellStore.DEFAULT_CACHE_CELLS);
     }
 
     public Cell getCell(String coord) {
-        return cells.computeIfAbsent(coord.toUpperCase(), Cell::new);
+        return cells.getOrCreate(coord.toUpperCase());
+    }
+
+    /**
+     * Content at a column/row position (null when blank), without going through a coordinate string
+     */
+    public Content getContent(int col, int row) {
+        return cells.getContent(col, row);
     }
 
     /**
@@ -18,107 +75,848 @@ public class Spreadsheet {
      */
     public void setCellContent(String coord, String rawInput) throws Exception {
         coord = coord.toUpperCase();
-        Cell cell = getCell(coord);
+        // Detect content type and create appropriate Content object
+        Content newContent = parseContent(rawInput);
+        checkNewCell(coord, newContent);
+        PersistentCellStore.Version before = currentVersion();
 
         // Clear old dependencies for this cell
         dependencyManager.clearDependencies(coord);
 
-        // Detect content type and create appropriate Content object
-        Content newContent = parseContent(rawInput);
-
         // Extract dependencies if formula
         if (newContent instanceof FormulaContent) {
             Set<String> referencedCells = extractReferences((FormulaContent) newContent);
 
             // Check for circular dependencies
-            if (dependencyManager.wouldCreateCycle(coord, referencedCells)) {
+            if (dependencyManager.wouldCreateCycle(coord, referencedCells)
+                    || (workbook != null && workbook.wouldCreateCycle(this, coord, referencedCells))) {
                 throw new RuntimeException("Circular dependency detected: Cannot set " + coord);
             }
 
             // Add dependencies
-            for (String refCell : referencedCells) {
-                dependencyManager.addDependency(coord, refCell);
-            }
+            dependencyManager.setDependencies(coord, referencedCells);
         }
 
         // Set the content
-        cell.setContent(newContent);
+        storeContent(coord, newContent);
+        recordHistory(before);
 
         // Recalculate dependent cells
-        recalculateDependents(coord);
+        Set<String> dependents = recalculateDependents(coord);
+        publishChanges(Collections.singleton(coord), dependents);
+        recalculateOtherSheets(Collections.singleton(coord), dependents);
+
+        if (journal != null) {
+            journal.append(coord, rawInput);
+        }
+        compactTextIfNeeded();
+        memory.relievePressure();
     }
 
     /**
-     * Parse raw input string and detect content type
+     * Remove a cell entirely, as undo does for a cell that did not exist (journal replay of such
+     * an undo); unlike setting "" it leaves no empty cell behind
+     */
+    public void removeCell(String coord) throws Exception {
+        coord = coord.toUpperCase();
+        int col = FileSystem.columnNumber(coord);
+        int row = FileSystem.rowNumber(coord);
+        PersistentCellStore.Version before = currentVersion();
+
+        dependencyManager.clearDependencies(coord);
+        cells.remove(coord);
+        index.remove(col, row);
+        lookupIndex.invalidate(col);
+        recordHistory(before);
+
+        Set<String> dependents = recalculateDependents(coord);
+        publishChanges(Collections.singleton(coord), dependents);
+        recalculateOtherSheets(Collections.singleton(coord), dependents);
+
+        if (journal != null) {
+            journal.appendRemoval(coord);
+        }
+        memory.relievePressure();
+    }
+
+    /**
+     * Set several cells as one batch (coordinate -> raw input, applied in iteration order).
+     * Dependents are recalculated once for the whole batch instead of after every cell.
+     * A failing cell does not stop the batch; returns coordinate -> error message for failures.
      */
-    private Content parseContent(String rawInput) throws Exception {
-        if (rawInput == null || rawInput.trim().isEmpty()) {
-            return new TextContent("");
+    public Map<String, String> setCellContents(Map<String, String> edits) throws Exception {
+        Map<String, String> errors = new LinkedHashMap<>();
+        Set<String> changed = new HashSet<>();
+        PersistentCellStore.Version before = currentVersion();
+
+        for (Map.Entry<String, String> edit : edits.entrySet()) {
+            applyEdit(edit.getKey().toUpperCase(), edit.getValue(), changed, errors);
         }
 
-        String trimmed = rawInput.trim();
+        finishBatch(before, changed);
+        return errors;
+    }
 
-        // Formula detection
-        if (trimmed.startsWith("=")) {
+    /**
+     * Write raw inputs into the rectangle of 'cols' x 'rows' cells starting at (firstCol, firstRow),
+     * taken row by row from 'block'. A null entry leaves its cell unchanged.
+     * Applied as one batch like setCellContents; returns coordinate -> error message for failures.
+     */
+    public Map<String, String> writeBlock(int firstCol, int firstRow, int cols, int rows, String[] block) throws Exception {
+        checkBlock(cols, rows, block.length);
+        Map<String, String> errors = new LinkedHashMap<>();
+        Set<String> changed = new HashSet<>();
+        PersistentCellStore.Version before = currentVersion();
+
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                String raw = block[r * cols + c];
+                if (raw != null) {
+                    applyEdit(FileSystem.coordinate(firstCol + c, firstRow + r), raw, changed, errors);
+                }
+            }
+        }
+
+        finishBatch(before, changed);
+        return errors;
+    }
+
+    /**
+     * Write numbers into a rectangle (row by row from 'block'), skipping NaN entries.
+     * Numbers need no parsing, so this is the fastest way to move numeric data in.
+     */
+    public void writeBlock(int firstCol, int firstRow, int cols, int rows, double[] block) throws Exception {
+        checkBlock(cols, rows, block.length);
+        Set<String> changed = new HashSet<>();
+        PersistentCellStore.Version before = currentVersion();
+
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                double value = block[r * cols + c];
+                if (Double.isNaN(value)) {
+                    continue;
+                }
+                String coord = FileSystem.coordinate(firstCol + c, firstRow + r);
+                installContent(coord, new NumericContent(value), null);
+                changed.add(coord);
+                if (journal != null) {
+                    journal.append(coord, Double.toString(value));
+                }
+            }
+        }
+
+        finishBatch(before, changed);
+    }
+
+    /**
+     * Read evaluated values of a rectangle into 'block', row by row.
+     * Numbers (and numeric results) are stored as-is; blank, text and error cells become NaN.
+     * Returns the number of numeric cells.
+     */
+    public int readBlock(int firstCol, int firstRow, int cols, int rows, double[] block) {
+        checkBlock(cols, rows, block.length);
+        Arrays.fill(block, 0, cols * rows, Double.NaN);
+        int count = 0;
+
+        // Nothing lies beyond the populated bounds, those entries stay NaN
+        int lastRow = Math.min(firstRow + rows - 1, index.getMaxRow());
+        int lastCol = Math.min(firstCol + cols - 1, index.getMaxCol());
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                Content content = cells.getContent(col, row);
+                double value;
+                if (content instanceof NumericContent) {
+                    value = ((NumericContent) content).getNumber();
+                } else {
+                    Object evaluated = content == null ? null : content.getValue();
+                    if (!(evaluated instanceof Double)) {
+                        continue;
+                    }
+                    value = (Double) evaluated;
+                }
+                block[(row - firstRow) * cols + (col - firstCol)] = value;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Read evaluated values of a rectangle into 'block', row by row:
+     * Double for numbers, String for text and errors, null for blank cells
+     */
+    public void readBlock(int firstCol, int firstRow, int cols, int rows, Object[] block) {
+        checkBlock(cols, rows, block.length);
+        Arrays.fill(block, 0, cols * rows, null);
+
+        int lastRow = Math.min(firstRow + rows - 1, index.getMaxRow());
+        int lastCol = Math.min(firstCol + cols - 1, index.getMaxCol());
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                Content content = cells.getContent(col, row);
+                if (content != null) {
+                    block[(row - firstRow) * cols + (col - firstCol)] = content.getValue();
+                }
+            }
+        }
+    }
+
+    private static void checkBlock(int cols, int rows, int length) {
+        if (cols < 0 || rows < 0 || (long) cols * rows > length) {
+            throw new IllegalArgumentException("Block of " + length + " cannot hold " + cols + " x " + rows + " cells");
+        }
+    }
+
+    /**
+     * Fill every cell of 'target' (e.g. "B2:B1000") with the content of 'source', like dragging
+     * its fill handle: relative references move with each cell, "$"-anchored ones stay put.
+     * A formula is not re-parsed per cell: the cells share it as one template plus their
+     * offsets, and its dependencies are registered as one pattern instead of edges per cell.
+     * Applied as one undo step; returns the number of cells filled.
+     */
+    public long fill(String source, String target) throws Exception {
+        source = source.toUpperCase();
+        int[] block = fillTarget(target);
+        return fillBlocks(List.of(new int[] {
+            FileSystem.columnNumber(source), FileSystem.rowNumber(source), block[0], block[1], block[2], block[3]
+        }));
+    }
+
+    /**
+     * Fill each column of 'range' from its top cell (Ctrl+D)
+     */
+    public long fillDown(String range) throws Exception {
+        int[] block = fillTarget(range);
+        List<int[]> blocks = new ArrayList<>();
+        for (int col = block[0]; col <= block[1] && block[2] < block[3]; col++) {
+            blocks.add(new int[] { col, block[2], col, col, block[2] + 1, block[3] });
+        }
+        return fillBlocks(blocks);
+    }
+
+    /**
+     * Fill each row of 'range' from its leftmost cell (Ctrl+R)
+     */
+    public long fillRight(String range) throws Exception {
+        int[] block = fillTarget(range);
+        List<int[]> blocks = new ArrayList<>();
+        for (int row = block[2]; row <= block[3] && block[0] < block[1]; row++) {
+            blocks.add(new int[] { block[0], row, block[0] + 1, block[1], row, row });
+        }
+        return fillBlocks(blocks);
+    }
+
+    private static int[] fillTarget(String range) {
+        int[] block = Range.bounds(range.replace("$", ""));
+        if (block[4] != 0) {
+            throw new IllegalArgumentException("Fill needs a range with four corners, like A1:A100: " + range);
+        }
+        return block;
+    }
+
+    /**
+     * Fill blocks given as {sourceCol, sourceRow, firstCol, lastCol, firstRow, lastRow}, in order.
+     * Each block is checked for cycles against the sheet as the blocks before it left it;
+     * if one fails, the cells already filled are rolled back: to the version before the fill,
+     * or, on a store without versions, cell by cell from the contents each block replaced.
+     */
+    private long fillBlocks(List<int[]> blocks) throws Exception {
+        long total = 0;
+        for (int[] block : blocks) {
+            total += (long) (block[3] - block[2] + 1) * (block[5] - block[4] + 1);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        memory.check(total * PersistentCellStore.BYTES_PER_CELL, "Fill of " + total + " cells");
+        PersistentCellStore.Version before = currentVersion();
+        Map<String, Content> replaced = before == null ? new HashMap<>() : null;
+        Set<String> dependents = new HashSet<>();
+
+        for (int i = 0; i < blocks.size(); i++) {
+            if (replaced != null) {
+                rememberBlock(blocks.get(i), replaced);
+            }
             try {
-                FormulaEngine engine = new FormulaEngine(trimmed, this);
-                Expression expr = engine.parse();
-                return new FormulaContent(trimmed, expr);
-            } catch (FormulaParseException e) {
-                throw new RuntimeException("Formula syntax error: " + e.getMessage());
+                fillBlock(blocks.get(i), dependents);
+            } catch (RuntimeException e) {
+                if (before != null) {
+                    restore(before);
+                } else {
+                    rollBack(blocks.subList(0, i + 1), replaced);
+                }
+                throw e;
+            }
+        }
+
+        recordHistory(before);
+        recalculate(dependents);
+        publishChanges(blockCells(blocks), dependents);
+        recalculateOtherSheets(blockCells(blocks), dependents);
+        compactTextIfNeeded();
+        memory.relievePressure();
+        return total;
+    }
+
+    /**
+     * Keep the contents of the populated cells a fill block is about to overwrite
+     */
+    private void rememberBlock(int[] block, Map<String, Content> replaced) {
+        for (int row = block[4]; row <= block[5]; row++) {
+            for (int col : index.columnsInRow(row, block[2], block[3])) {
+                replaced.put(FileSystem.coordinate(col, row), cells.getContent(col, row));
             }
         }
+    }
+
+    /**
+     * Undo a failed fill on a store without versions: put back the 'replaced' contents of the
+     * blocks' cells and remove the cells the fill created
+     */
+    private void rollBack(List<int[]> filled, Map<String, Content> replaced) throws Exception {
+        List<String> coords = blockCells(filled);
+        for (String coord : coords) {
+            Content content = replaced.get(coord);
+            if (content == null) {
+                cells.remove(coord);
+            } else {
+                cells.setContent(coord, content);
+            }
+            reinstated(coord, content);
+        }
+        recalculate(dependencyManager.getAllDependents(coords));
+    }
+
+    private void fillBlock(int[] block, Set<String> dependents) throws Exception {
+        int sourceCol = block[0], sourceRow = block[1];
+        int firstCol = block[2], lastCol = block[3], firstRow = block[4], lastRow = block[5];
+        Content source = cells.getContent(sourceCol, sourceRow);
+        if (source == null) {
+            throw new IllegalArgumentException("Cell " + FileSystem.coordinate(sourceCol, sourceRow) + " is empty");
+        }
+
+        FillPattern pattern = null;
+        if (source instanceof FormulaContent) {
+            // A filled source passes its own template on, so nothing is ever parsed twice
+            FormulaTemplate template = source instanceof FilledFormulaContent
+                    ? ((FilledFormulaContent) source).getFill().getTemplate()
+                    : new FormulaTemplate(source.getRawContent(), ((FormulaContent) source).getExpression(), sourceCol, sourceRow);
+            pattern = new FillPattern(template, firstCol, lastCol, firstRow, lastRow);
+            if (pattern.referenceOffSheet() != null) {
+                throw new IllegalArgumentException("Filling " + source.getRawContent() + " into "
+                        + FileSystem.coordinate(firstCol, firstRow) + ":" + FileSystem.coordinate(lastCol, lastRow)
+                        + " moves a reference off the sheet");
+            }
+            if (!template.readsOnly(this)) {
+                // References to other sheets are tracked per cell, so each cell gets its own formula
+                dependents.addAll(dependencyManager.getDependentsOfBlock(firstCol, lastCol, firstRow, lastRow));
+                fillCellByCell(template, block);
+                return;
+            }
+            dependents.addAll(dependencyManager.checkFill(pattern));
+        } else {
+            dependents.addAll(dependencyManager.getDependentsOfBlock(firstCol, lastCol, firstRow, lastRow));
+        }
+
+        dependencyManager.clearBlock(firstCol, lastCol, firstRow, lastRow);
+        int originCol = pattern == null ? 0 : pattern.getTemplate().getOriginCol();
+        int originRow = pattern == null ? 0 : pattern.getTemplate().getOriginRow();
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                // Numbers and texts are immutable, so every cell can share the source's content
+                Content content = pattern == null ? source : new FilledFormulaContent(pattern, col - originCol, row - originRow);
+                String coord = FileSystem.coordinate(col, row);
+                cells.setContent(coord, content);
+                index.add(col, row);
+                if (journal != null) {
+                    journal.append(coord, content.getRawContent());
+                }
+            }
+        }
+        if (pattern != null) {
+            dependencyManager.addFill(pattern);
+        }
+        for (int col = firstCol; col <= lastCol; col++) {
+            lookupIndex.invalidate(col);
+        }
+    }
+
+    private void fillCellByCell(FormulaTemplate template, int[] block) throws Exception {
+        for (int row = block[4]; row <= block[5]; row++) {
+            for (int col = block[2]; col <= block[3]; col++) {
+                String coord = FileSystem.coordinate(col, row);
+                String formula = template.formulaAt(col - template.getOriginCol(), row - template.getOriginRow());
+                FormulaContent content = (FormulaContent) parseContent(formula);
+                installContent(coord, content, extractReferences(content));
+                if (journal != null) {
+                    journal.append(coord, formula);
+                }
+            }
+        }
+    }
+
+    /**
+     * Coordinates of the target cells of fill blocks, generated on demand
+     */
+    private static List<String> blockCells(List<int[]> blocks) {
+        long[] ends = new long[blocks.size()];
+        long total = 0;
+        for (int i = 0; i < blocks.size(); i++) {
+            int[] block = blocks.get(i);
+            total += (long) (block[3] - block[2] + 1) * (block[5] - block[4] + 1);
+            ends[i] = total;
+        }
+        int size = (int) Math.min(total, Integer.MAX_VALUE);
+        return new AbstractList<>() {
+            @Override
+            public String get(int index) {
+                // First block whose end lies past 'index'
+                int i = Arrays.binarySearch(ends, index + 1L);
+                if (i < 0) i = -i - 1;
+                int[] block = blocks.get(i);
+                int offset = (int) (index - (i == 0 ? 0 : ends[i - 1]));
+                int width = block[3] - block[2] + 1;
+                return FileSystem.coordinate(block[2] + offset % width, block[4] + offset / width);
+            }
 
-        // Numeric detection
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Parse and install one cell of a batch, recording it as changed or failed
+     */
+    private void applyEdit(String coord, String rawInput, Set<String> changed, Map<String, String> errors) {
         try {
-            double number = Double.parseDouble(trimmed);
-            return new NumericContent(number);
-        } catch (NumberFormatException e) {
-            // Not a number, treat as text
+            Content content = parseContent(rawInput);
+            Set<String> referencedCells = content instanceof FormulaContent
+                    ? extractReferences((FormulaContent) content)
+                    : null;
+            installContent(coord, content, referencedCells);
+            changed.add(coord);
+
+            if (journal != null) {
+                journal.append(coord, rawInput);
+            }
+        } catch (Exception e) {
+            errors.put(coord, e.getMessage());
+        }
+    }
+
+    /**
+     * Record history and recalculate the dependents of a batch once
+     */
+    private void finishBatch(PersistentCellStore.Version before, Set<String> changed) throws Exception {
+        if (!changed.isEmpty()) {
+            recordHistory(before);
         }
 
-        // Default to text
-        return new TextContent(trimmed);
+        Set<String> dependents = dependencyManager.getAllDependents(changed);
+        recalculate(dependents);
+        publishChanges(changed, dependents);
+        recalculateOtherSheets(changed, dependents);
+        compactTextIfNeeded();
+        memory.relievePressure();
+    }
+
+    /**
+     * O(1) snapshot of all cell contents, e.g. as a checkpoint before a risky bulk edit.
+     * Captures contents, not evaluated values: formulas in it are evaluated against the live sheet.
+     */
+    public PersistentCellStore.Version snapshot() {
+        return persistentStore().snapshot();
+    }
+
+    /**
+     * Bring the sheet back to a snapshot. Only the cells that differ are touched:
+     * their dependencies are re-registered, then their dependents are recalculated.
+     */
+    public void restore(PersistentCellStore.Version version) throws Exception {
+        PersistentCellStore store = persistentStore();
+        Map<String, Cell> changed = new LinkedHashMap<>();
+        PersistentCellStore.diff(store.snapshot(), version, (coord, before, after) -> changed.put(coord, after));
+
+        store.reset(version);
+
+        for (Map.Entry<String, Cell> entry : changed.entrySet()) {
+            Cell cell = entry.getValue();
+            reinstated(entry.getKey(), cell == null ? null : cell.getContent());
+        }
+
+        Set<String> dependents = dependencyManager.getAllDependents(changed.keySet());
+        recalculate(dependents);
+        publishChanges(changed.keySet(), dependents);
+        recalculateOtherSheets(changed.keySet(), dependents);
+        memory.relievePressure();
+    }
+
+    /**
+     * Re-register a cell whose earlier content was just put back in the store (null: the cell
+     * is gone): its dependencies, the indexes and the journal
+     */
+    private void reinstated(String coord, Content content) throws IOException {
+        if (content instanceof FilledFormulaContent) {
+            dependencyManager.restoreFillCell(((FilledFormulaContent) content).getFill(), coord);
+        } else if (content instanceof FormulaContent) {
+            dependencyManager.setDependencies(coord, extractReferences((FormulaContent) content));
+        } else {
+            dependencyManager.clearDependencies(coord);
+        }
+
+        int col = FileSystem.columnNumber(coord);
+        int row = FileSystem.rowNumber(coord);
+        if (content == null) {
+            index.remove(col, row);
+        } else {
+            index.add(col, row);
+        }
+        lookupIndex.invalidate(col);
+
+        if (journal != null) {
+            if (content == null) {
+                journal.appendRemoval(coord);
+            } else {
+                journal.append(coord, content.getRawContent());
+            }
+        }
+    }
+
+    /**
+     * Undo the last edit (or batch of edits). Returns false if there is nothing to undo.
+     */
+    public boolean undo() throws Exception {
+        if (undoHistory.isEmpty()) {
+            return false;
+        }
+        redoHistory.push(snapshot());
+        restore(undoHistory.pop());
+        return true;
+    }
+
+    /**
+     * Redo the last undone edit. Returns false if there is nothing to redo.
+     */
+    public boolean redo() throws Exception {
+        if (redoHistory.isEmpty()) {
+            return false;
+        }
+        undoHistory.push(snapshot());
+        restore(redoHistory.pop());
+        return true;
+    }
+
+    /**
+     * Forget undo/redo history (e.g. after loading a file)
+     */
+    public void clearHistory() {
+        undoHistory.clear();
+        redoHistory.clear();
+    }
+
+    /**
+     * Free dictionary codes of texts that no cell uses any more, neither in the live sheet
+     * nor in a version kept for undo/redo (those are found by diffing against the live sheet)
+     */
+    private void compactTextIfNeeded() {
+        if (textDictionary.needsCompaction()) {
+            compactText();
+        }
+    }
+
+    private void compactText() {
+        BitSet used = new BitSet();
+        cells.visitTextCodes(used::set);
+        if (cells instanceof PersistentCellStore) {
+            PersistentCellStore.Version live = ((PersistentCellStore) cells).snapshot();
+            for (Deque<PersistentCellStore.Version> history : List.of(undoHistory, redoHistory)) {
+                for (PersistentCellStore.Version version : history) {
+                    PersistentCellStore.diff(live, version, (coord, before, after) -> markText(after, used));
+                }
+            }
+        }
+        textDictionary.compact(used);
+    }
+
+    /**
+     * Rough size of the undo/redo history (versions share everything they did not change)
+     */
+    public long estimateHistoryBytes() {
+        return (undoHistory.size() + redoHistory.size()) * BYTES_PER_HISTORY_STEP;
+    }
+
+    /**
+     * Free memory that can be rebuilt or lived without: lookup indexes, store caches,
+     * unused dictionary texts, redo history and the oldest EVICT_HISTORY_STEPS undo steps.
+     * Finding the unused texts reads codes in place (CellStore.visitTextCodes), so it does not
+     * reload the cells just evicted.
+     */
+    public void evictCaches() {
+        lookupIndex.clear();
+        cells.evictCaches();
+        redoHistory.clear();
+        for (int i = 0; i < EVICT_HISTORY_STEPS && !undoHistory.isEmpty(); i++) {
+            undoHistory.removeLast();
+        }
+        compactText();
+    }
+
+    private static void markText(Cell cell, BitSet used) {
+        if (cell != null && cell.getContent() instanceof TextContent) {
+            int code = ((TextContent) cell.getContent()).getCode();
+            if (code >= 0) used.set(code);
+        }
+    }
+
+    private PersistentCellStore persistentStore() {
+        if (!(cells instanceof PersistentCellStore)) {
+            throw new UnsupportedOperationException("Snapshots and undo need the default cell store");
+        }
+        return (PersistentCellStore) cells;
+    }
+
+    /**
+     * Current version if the store supports snapshots, otherwise null (no history kept)
+     */
+    private PersistentCellStore.Version currentVersion() {
+        return cells instanceof PersistentCellStore ? ((PersistentCellStore) cells).snapshot() : null;
+    }
+
+    private void recordHistory(PersistentCellStore.Version before) {
+        if (before == null) {
+            return;
+        }
+        undoHistory.push(before);
+        if (undoHistory.size() > MAX_HISTORY) {
+            undoHistory.removeLast();
+        }
+        redoHistory.clear();
+    }
+
+    /**
+     * Install content that was already parsed (e.g. by a loader thread) without recalculating.
+     * Dependencies are registered and checked for cycles as in setCellContent;
+     * the caller runs calculateAll() once everything is installed.
+     */
+    public void installContent(String coord, Content content, Set<String> referencedCells) {
+        coord = coord.toUpperCase();
+        checkNewCell(coord, content);
+        dependencyManager.clearDependencies(coord);
+
+        if (referencedCells != null && !referencedCells.isEmpty()) {
+            if (dependencyManager.wouldCreateCycle(coord, referencedCells)
+                    || (workbook != null && workbook.wouldCreateCycle(this, coord, referencedCells))) {
+                throw new RuntimeException("Circular dependency detected: Cannot set " + coord);
+            }
+            dependencyManager.setDependencies(coord, referencedCells);
+        }
+
+        storeContent(coord, content);
+    }
+
+    /**
+     * Charge the budget for a cell only when it is being created: overwrites and clears
+     * reuse the cell that is already stored
+     */
+    private void checkNewCell(String coord, Content content) {
+        if (isBlank(content)) {
+            return;
+        }
+        Cell existing = cells.get(coord);
+        if (existing == null || isBlank(existing.getContent())) {
+            memory.check(PersistentCellStore.BYTES_PER_CELL, "Cell " + coord);
+        }
+    }
+
+    private static boolean isBlank(Content content) {
+        return content == null || (content instanceof TextContent && ((TextContent) content).getRawContent().isEmpty());
+    }
+
+    private void storeContent(String coord, Content content) {
+        int col = FileSystem.columnNumber(coord);
+        int row = FileSystem.rowNumber(coord); // Rejects malformed coordinates before storing
+        cells.setContent(coord, content);
+        index.add(col, row);
+        lookupIndex.invalidate(col);
+    }
+
+    /**
+     * Parse raw input string and detect content type
+     * Does not touch the sheet, so it is safe to call from several threads
+     */
+    public Content parseContent(String rawInput) throws Exception {
+        if (rawInput == null) {
+            return textDictionary.intern("");
+        }
+        return parseContent(rawInput, 0, rawInput.length());
+    }
+
+    /**
+     * Same, for input[from, to) (e.g. one cell of a file line), classified in a single scan
+     * without building a string for numbers
+     */
+    public Content parseContent(CharSequence input, int from, int to) throws Exception {
+        ContentClassifier classifier = ContentClassifier.forThread();
+        switch (classifier.classify(input, from, to)) {
+            case ContentClassifier.BLANK:
+                return textDictionary.intern("");
+            case ContentClassifier.NUMBER:
+                return new NumericContent(classifier.number());
+            case ContentClassifier.FORMULA:
+                String formula = classifier.text(input);
+                try {
+                    FormulaEngine engine = new FormulaEngine(formula, this);
+                    Expression expr = engine.parse();
+                    return new FormulaContent(formula, expr);
+                } catch (FormulaParseException e) {
+                    throw new RuntimeException("Formula syntax error: " + e.getMessage());
+                }
+            default:
+                // Text, shared with every other cell holding the same text
+                return textDictionary.intern(classifier.text(input));
+        }
     }
 
     /**
      * Extract all cell references from a formula
      */
-    private Set<String> extractReferences(FormulaContent formula) {
+    public Set<String> extractReferences(FormulaContent formula) {
+        // Checked before any range is expanded into coordinates; overlapping ranges count once
+        List<Range> ranges = new ArrayList<>();
+        long count = countReferences(formula.getExpression(), ranges) + cellsInRanges(ranges);
+        memory.check(count * MemoryBudget.BYTES_PER_REFERENCE, "Formula referencing " + count + " cells");
+
         Set<String> references = new HashSet<>();
-        collectReferences(formula.getExpression(), references);
+        collectReferences(formula.getExpression(), references, new ArrayList<>());
         return references;
     }
 
-    private void collectReferences(Expression expr, Set<String> references) {
+    /**
+     * References outside fixed ranges, which are added to 'ranges' instead
+     */
+    private static long countReferences(Expression expr, List<Range> ranges) {
+        if (expr instanceof CellReference) {
+            return 1;
+        } else if (expr instanceof Range) {
+            Range range = (Range) expr;
+            if (range.isOpen()) {
+                return 1; // One region node, however many cells it covers
+            }
+            ranges.add(range);
+            return 0;
+        } else if (expr instanceof Function) {
+            long count = 0;
+            for (Expression argument : ((Function) expr).getArguments()) {
+                count += countReferences(argument, ranges);
+            }
+            return count;
+        } else if (expr instanceof BinaryOperation) {
+            BinaryOperation binOp = (BinaryOperation) expr;
+            return countReferences(binOp.getLeft(), ranges) + countReferences(binOp.getRight(), ranges);
+        }
+        return 0;
+    }
+
+    /**
+     * Distinct cells of the ranges, per sheet
+     */
+    private static long cellsInRanges(List<Range> ranges) {
+        Map<Spreadsheet, List<Range>> bySheet = new IdentityHashMap<>();
+        for (Range range : ranges) {
+            bySheet.computeIfAbsent(range.getSpreadsheet(), sheet -> new ArrayList<>()).add(range);
+        }
+        long count = 0;
+        for (List<Range> group : bySheet.values()) {
+            count += Range.cellCount(group);
+        }
+        return count;
+    }
+
+    /**
+     * 'expanded' holds the fixed ranges already added, so cells they share with a later range
+     * (SUMA(A1:A100, A50:A150)) are not expanded twice
+     */
+    private void collectReferences(Expression expr, Set<String> references, List<Range> expanded) {
         if (expr instanceof CellReference) {
-            references.add(((CellReference) expr).getCoordinate());
+            CellReference reference = (CellReference) expr;
+            references.add(qualifier(reference.getSpreadsheet()) + reference.getCoordinate());
         } else if (expr instanceof Range) {
             Range range = (Range) expr;
-            // Add all cells in range
-            for (String coord : range.getAllCoordinates()) {
-                references.add(coord);
+            String qualifier = qualifier(range.getSpreadsheet());
+            if (range.isOpen()) {
+                // Tracked as one region; the dependency graph finds it from the cells it contains
+                references.add(qualifier + range.getReference());
+                return;
+            }
+            List<Range> overlapping = new ArrayList<>();
+            for (Range other : expanded) {
+                if (other.getSpreadsheet() == range.getSpreadsheet()
+                        && other.getFirstCol() <= range.getLastCol() && range.getFirstCol() <= other.getLastCol()
+                        && other.getFirstRow() <= range.getLastRow() && range.getFirstRow() <= other.getLastRow()) {
+                    overlapping.add(other);
+                }
+            }
+            expanded.add(range);
+
+            // Add the cells of the range not already added with an earlier one
+            for (int row = range.getFirstRow(); row <= range.getLastRow(); row++) {
+                for (int col = range.getFirstCol(); col <= range.getLastCol(); col++) {
+                    if (!overlapping.isEmpty() && isCovered(overlapping, col, row)) {
+                        continue;
+                    }
+                    String coord = FileSystem.coordinate(col, row);
+                    references.add(qualifier.isEmpty() ? coord : qualifier + coord);
+                }
             }
         } else if (expr instanceof Function) {
             Function func = (Function) expr;
-            collectReferences(func.getArgument(), references);
+            for (Expression argument : func.getArguments()) {
+                collectReferences(argument, references, expanded);
+            }
         } else if (expr instanceof BinaryOperation) {
             BinaryOperation binOp = (BinaryOperation) expr;
-            collectReferences(binOp.getLeft(), references);
-            collectReferences(binOp.getRight(), references);
+            collectReferences(binOp.getLeft(), references, expanded);
+            collectReferences(binOp.getRight(), references, expanded);
         }
         // Literal has no references
     }
 
+    private static boolean isCovered(List<Range> ranges, int col, int row) {
+        for (Range range : ranges) {
+            if (range.contains(col, row)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * "" for this sheet, "HOJA2!" for another sheet of the workbook
+     */
+    private String qualifier(Spreadsheet sheet) {
+        return sheet == this || sheet.name == null ? "" : sheet.name.toUpperCase() + "!";
+    }
+
     /**
      * Recalculate all cells that depend on the changed cell
      */
-    private void recalculateDependents(String changedCell) throws Exception {
+    private Set<String> recalculateDependents(String changedCell) throws Exception {
         Set<String> dependents = dependencyManager.getAllDependents(changedCell);
+        recalculate(dependents);
+        return dependents;
+    }
 
+    /**
+     * Recalculate the given cells in dependency order
+     */
+    private void recalculate(Set<String> dependents) throws Exception {
         if (dependents.isEmpty()) {
             return;
         }
+        // Values of these cells may change, so indexes over their columns are stale
+        lookupIndex.invalidate(dependents);
 
         // Get calculation order (topological sort)
         List<String> calcOrder = dependencyManager.getCalculationOrder(dependents);
@@ -147,7 +945,7 @@ public class Spreadsheet {
     public void calculateAll() throws Exception {
         // Get all cells with formulas
         Set<String> formulaCells = new HashSet<>();
-        for (Map.Entry<String, Cell> entry : cells.entrySet()) {
+        for (Map.Entry<String, Cell> entry : cells.asMap().entrySet()) {
             if (entry.getValue().getContent() instanceof FormulaContent) {
                 formulaCells.add(entry.getKey());
             }
@@ -156,6 +954,7 @@ public class Spreadsheet {
         if (formulaCells.isEmpty()) {
             return;
         }
+        lookupIndex.clear();
 
         // Calculate in dependency order
         List<String> calcOrder = dependencyManager.getCalculationOrder(formulaCells);
@@ -166,10 +965,49 @@ public class Spreadsheet {
                 cell.getContent().getValue(); // Trigger calculation
             }
         }
+
+        publishChanges(calcOrder, Collections.emptySet());
+    }
+
+    /**
+     * Publisher of changed values after each recalculation pass (created on first use)
+     */
+    public CellChangePublisher getChangePublisher() {
+        if (changePublisher == null) {
+            changePublisher = new CellChangePublisher(this);
+        }
+        return changePublisher;
+    }
+
+    /**
+     * Let the workbook recalculate formulas of other sheets that read the changed cells
+     */
+    private void recalculateOtherSheets(Collection<String> changed, Set<String> dependents) throws Exception {
+        if (workbook != null) {
+            workbook.recalculateDependents(this, changed, dependents);
+        }
+    }
+
+    /**
+     * Recalculate cells of this sheet reached from another sheet's change (called by Workbook)
+     */
+    void recalculateCells(Set<String> cells) throws Exception {
+        recalculate(cells);
+        publishChanges(Collections.emptyList(), cells);
+    }
+
+    private void publishChanges(Collection<String> changed, Set<String> dependents) {
+        if (changePublisher == null || !changePublisher.hasSubscribers()) {
+            return;
+        }
+        List<String> all = new ArrayList<>(changed.size() + dependents.size());
+        all.addAll(changed);
+        all.addAll(dependents);
+        changePublisher.publish(all);
     }
 
     public Map<String, Cell> getAllCells() {
-        return cells;
+        return cells.asMap();
     }
 
     /**
@@ -177,10 +1015,99 @@ public class Spreadsheet {
      */
     public void reset() {
         cells.clear();
+        index.clear();
+        lookupIndex.clear();
+        textDictionary.clear();
         dependencyManager.reset();
+        clearHistory();
+        closeJournal();
+    }
+
+    /**
+     * Ordered index of the cells that have content
+     */
+    public CellIndex getIndex() {
+        return index;
+    }
+
+    public MemoryBudget getMemoryBudget() {
+        return memory;
+    }
+
+    public CellStore getCellStore() {
+        return cells;
+    }
+
+    public TextDictionary getTextDictionary() {
+        return textDictionary;
+    }
+
+    /**
+     * Shared indexes behind BUSCARV, CONTAR.SI and SUMAR.SI
+     */
+    public LookupIndex getLookupIndex() {
+        return lookupIndex;
     }
 
     public DependencyManager getDependencyManager() {
         return dependencyManager;
     }
+
+    /**
+     * The workbook this sheet belongs to, or null for a standalone sheet
+     */
+    public Workbook getWorkbook() {
+        return workbook;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    void attach(Workbook workbook, String name) {
+        this.workbook = workbook;
+        this.name = name;
+    }
+
+    public EditJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Attach the journal that records every successful edit (replacing any previous one)
+     */
+    public void setJournal(EditJournal journal) {
+        if (this.journal != null && this.journal != journal) {
+            closeJournal();
+        }
+        this.journal = journal;
+    }
+
+    /**
+     * Detach the journal and release the cell store's resources (the mapped store's scratch
+     * file); call when the sheet is replaced or the application exits
+     */
+    public void close() {
+        closeJournal();
+        try {
+            cells.close();
+        } catch (IOException e) {
+            System.err.println("Error closing cell store: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Flush and detach the edit journal, if any
+     */
+    public void closeJournal() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            System.err.println("Error closing journal: " + e.getMessage());
+        }
+        journal = null;
+    }
 }
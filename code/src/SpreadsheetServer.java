@@ -0,0 +1,187 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Headless server mode: many local clients share one in-memory spreadsheet.
+ *
+ * Listens on the loopback interface only and serves a line-based protocol,
+ * one virtual thread per connection. Each request line gets exactly one response line:
+ *
+ *   SET A1 <content>   -> OK | ERROR <message>
+ *   GET A1             -> VALUE <evaluated value>
+ *   RANGE A1:C3        -> ROWS <values of row 1>|<values of row 2>|...  (cells separated by ';')
+ *   SAVE <path>        -> OK | ERROR <message>  (journaled like a CLI save)
+ *   QUIT               -> BYE
+ *
+ * Clients may pipeline requests. Consecutive SETs already waiting in the input buffer
+ * are applied as one batch under a single lock acquisition, and responses are flushed
+ * only once the input buffer is drained.
+ */
+public class SpreadsheetServer {
+    public static final int DEFAULT_PORT = 7070;
+    private static final int MAX_BATCH = 1024;
+
+    private final Spreadsheet sheet;
+    private final int port;
+
+    // Spreadsheet is not thread-safe (even reads may create cells or evaluate formulas)
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public SpreadsheetServer(Spreadsheet sheet, int port) {
+        this.sheet = sheet;
+        this.port = port;
+    }
+
+    /**
+     * Accept connections until the process is stopped
+     */
+    public void start() throws IOException {
+        try (ServerSocket server = new ServerSocket();
+             ExecutorService connections = Executors.newVirtualThreadPerTaskExecutor()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            System.out.println("Excel-CLI server listening on " + server.getLocalSocketAddress());
+
+            while (!server.isClosed()) {
+                Socket socket = server.accept();
+                connections.submit(() -> serve(socket));
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+
+            List<String[]> batch = new ArrayList<>();
+            String line;
+
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split(" ", 3);
+                String command = parts[0].toUpperCase();
+
+                if (command.equals("SET")) {
+                    batch.add(parts);
+                    // Keep collecting while more pipelined requests are already buffered
+                    if (in.ready() && batch.size() < MAX_BATCH) {
+                        continue;
+                    }
+                    applyBatch(batch, out);
+                } else {
+                    applyBatch(batch, out);
+                    if (command.equals("QUIT")) {
+                        out.write("BYE\n");
+                        break;
+                    }
+                    out.write(handle(command, parts));
+                    out.write('\n');
+                }
+
+                if (!in.ready()) {
+                    out.flush();
+                }
+            }
+            applyBatch(batch, out);
+        } catch (IOException e) {
+            // Client went away; nothing to answer
+        }
+    }
+
+    /**
+     * Apply buffered SET requests in order and write one response per request
+     */
+    private void applyBatch(List<String[]> batch, Writer out) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        List<String> responses = new ArrayList<>(batch.size());
+        lock.lock();
+        try {
+            for (String[] parts : batch) {
+                if (parts.length < 2) {
+                    responses.add("ERROR Usage: SET <cell> <content>");
+                    continue;
+                }
+                try {
+                    sheet.setCellContent(parts[1], parts.length > 2 ? parts[2] : "");
+                    responses.add("OK");
+                } catch (Exception e) {
+                    responses.add("ERROR " + e.getMessage());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        batch.clear();
+
+        for (String response : responses) {
+            out.write(response);
+            out.write('\n');
+        }
+    }
+
+    private String handle(String command, String[] parts) {
+        lock.lock();
+        try {
+            switch (command) {
+                case "GET":
+                    if (parts.length < 2) return "ERROR Usage: GET <cell>";
+                    return "VALUE " + sheet.getCellContent(parts[1]);
+                case "RANGE":
+                    if (parts.length < 2) return "ERROR Usage: RANGE <start>:<end>";
+                    return readRange(parts[1]);
+                case "SAVE":
+                    if (parts.length < 2) return "ERROR Usage: SAVE <path>";
+                    String path = parts.length > 2 ? parts[1] + " " + parts[2] : parts[1];
+                    EditJournal.save(sheet, path);
+                    return "OK";
+                default:
+                    return "ERROR Unknown command: " + command;
+            }
+        } catch (Exception e) {
+            return "ERROR " + e.getMessage();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private String readRange(String range) {
+        if (range.indexOf(':') < 0) {
+            return "ERROR Invalid range: " + range;
+        }
+
+        // Open ranges (A:A, 3:3, A5:A) stop at the last populated row and column
+        int[] bounds = Range.bounds(range.replace("$", ""));
+        CellIndex index = sheet.getIndex();
+        int firstCol = bounds[0], lastCol = bounds[1];
+        int firstRow = bounds[2], lastRow = bounds[3];
+        if (bounds[4] != 0) {
+            lastCol = Math.min(lastCol, Math.max(firstCol, index.getMaxCol()));
+            lastRow = Math.min(lastRow, Math.max(firstRow, index.getMaxRow()));
+        }
+
+        // Blank cells are looked up without creating them
+        Map<String, Cell> cells = sheet.getAllCells();
+        StringBuilder sb = new StringBuilder("ROWS ");
+        for (int row = firstRow; row <= lastRow; row++) {
+            if (row > firstRow) sb.append('|');
+            for (int col = firstCol; col <= lastCol; col++) {
+                if (col > firstCol) sb.append(';');
+                Cell cell = cells.get(FileSystem.coordinate(col, row));
+                if (cell != null) sb.append(cell.getDisplayValue());
+            }
+        }
+        return sb.toString();
+    }
+}
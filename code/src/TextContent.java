@@ -1,10 +1,17 @@
 public class TextContent extends Content {
     private String text;
+    private int code = -1; // Code in the sheet's TextDictionary, -1 if not encoded
+    private Object lookupKey; // LookupIndex.key(text), computed on first lookup
 
     public TextContent(String text) {
         this.text = text;
     }
 
+    TextContent(String text, int code) {
+        this.text = text;
+        this.code = code;
+    }
+
     @Override
     public Object getValue() {
         return text;
@@ -14,4 +21,18 @@ public class TextContent extends Content {
     public String getRawContent() {
         return text;
     }
+
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Lookup key of the text; an encoded text computes it once for every cell that shares it
+     */
+    Object lookupKey() {
+        if (lookupKey == null) {
+            lookupKey = LookupIndex.key(text);
+        }
+        return lookupKey;
+    }
 }
@@ -0,0 +1,116 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-sheet dictionary of text values.
+ *
+ * Each distinct text gets an int code and exactly one TextContent, which every cell holding
+ * that text shares, so a label repeated a million times is stored once. Two encoded texts are
+ * equal exactly when their codes are.
+ *
+ * Entries are not reference counted (undo history shares contents with the live sheet);
+ * instead compact() frees the codes no longer used by any cell the caller reports, and freed
+ * codes are reused. Codes of texts still in use never change.
+ *
+ * intern() may be called from several loader threads at once; compact() and clear() may not
+ * run concurrently with anything else.
+ */
+public class TextDictionary {
+    private final Map<String, TextContent> contents = new ConcurrentHashMap<>();
+    private volatile TextContent[] byCode = new TextContent[256];
+    private int nextCode;
+    private final Deque<Integer> freeCodes = new ArrayDeque<>();
+
+    // Number of texts after the last compaction, to decide when the next one is worthwhile
+    private int liveAfterCompaction;
+
+    // Characters of all encoded texts, for estimateBytes()
+    private final AtomicLong chars = new AtomicLong();
+
+    /**
+     * The shared content for a text, encoding it if it is new
+     */
+    public TextContent intern(String text) {
+        TextContent content = contents.get(text);
+        return content != null ? content : add(text);
+    }
+
+    private synchronized TextContent add(String text) {
+        TextContent content = contents.get(text);
+        if (content != null) {
+            return content;
+        }
+
+        int code = freeCodes.isEmpty() ? nextCode++ : freeCodes.pop();
+        TextContent[] table = byCode;
+        if (code >= table.length) {
+            table = Arrays.copyOf(table, table.length * 2);
+        }
+        content = new TextContent(text, code);
+        table[code] = content;
+        byCode = table;
+        chars.addAndGet(text.length());
+        contents.put(text, content); // Publishes the slot written above
+        return content;
+    }
+
+    /**
+     * Content for a code handed out by intern()
+     */
+    public TextContent get(int code) {
+        TextContent content = code < byCode.length ? byCode[code] : null;
+        if (content == null) {
+            throw new IllegalArgumentException("Unknown text code: " + code);
+        }
+        return content;
+    }
+
+    /**
+     * Number of distinct texts currently encoded
+     */
+    public int size() {
+        return contents.size();
+    }
+
+    /**
+     * True when enough texts were added since the last compaction that one could pay off
+     */
+    public boolean needsCompaction() {
+        int size = contents.size();
+        return size > 1024 && size > 2 * liveAfterCompaction;
+    }
+
+    /**
+     * Free every code not in 'usedCodes' (the codes of all cells that are still reachable)
+     */
+    public synchronized void compact(BitSet usedCodes) {
+        TextContent[] table = byCode;
+        for (int code = 0; code < nextCode; code++) {
+            TextContent content = table[code];
+            if (content != null && !usedCodes.get(code)) {
+                contents.remove(content.getRawContent());
+                chars.addAndGet(-content.getRawContent().length());
+                table[code] = null;
+                freeCodes.push(code);
+            }
+        }
+        liveAfterCompaction = contents.size();
+    }
+
+    /**
+     * Estimated heap bytes: TextContent, String and map node per entry, plus the characters
+     */
+    public long estimateBytes() {
+        return contents.size() * 100L + chars.get();
+    }
+
+    public synchronized void clear() {
+        chars.set(0);
+        contents.clear();
+        byCode = new TextContent[256];
+        nextCode = 0;
+        freeCodes.clear();
+        liveAfterCompaction = 0;
+    }
+}
@@ -0,0 +1,24 @@
+/**
+ * String constant in a formula, e.g. the criteria in CONTAR.SI(A1:A10, ">5")
+ */
+public class TextLiteral implements Expression {
+    private String value;
+
+    public TextLiteral(String value) {
+        this.value = value;
+    }
+
+    @Override
+    public double calculate() {
+        ContentClassifier classifier = ContentClassifier.forThread();
+        if (classifier.classify(value) == ContentClassifier.NUMBER) {
+            return classifier.number();
+        }
+        throw new RuntimeException("Text is not a number: " + value);
+    }
+
+    @Override
+    public Object evaluate() {
+        return value;
+    }
+}
@@ -0,0 +1,283 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.*;
+
+/**
+ * Exports evaluated values (not raw content) as delimited text, e.g. CSV or TSV.
+ *
+ * The rectangle is processed in blocks of rows. The calling thread evaluates each block's
+ * populated cells (evaluation touches shared sheet state, so it stays on one thread) and hands
+ * the values to worker threads, which format the block into UTF-8 bytes. Blocks are written
+ * through a FileChannel in row order, with a bounded number in flight.
+ *
+ * Numbers are formatted exactly as Double.toString does, without allocating for the common
+ * case of integral values. Fields containing the delimiter, a quote or a line break are quoted.
+ */
+public class ValueExporter {
+    // Rows per formatting task
+    private static final int CHUNK_ROWS = 4096;
+
+    /**
+     * Values of one block of rows: for each row, its populated cells in column order
+     */
+    private static class Block {
+        int firstRow;
+        int rowCount;
+        int[] rowEnds;               // Cell index after the last cell of each row
+        int[] cols = new int[64];
+        double[] numbers = new double[64];
+        String[] texts = new String[64]; // null when the cell holds numbers[i]
+        int cellCount;
+
+        void add(int col, double number, String text) {
+            if (cellCount == cols.length) {
+                int capacity = cellCount * 2;
+                cols = Arrays.copyOf(cols, capacity);
+                numbers = Arrays.copyOf(numbers, capacity);
+                texts = Arrays.copyOf(texts, capacity);
+            }
+            cols[cellCount] = col;
+            numbers[cellCount] = number;
+            texts[cellCount] = text;
+            cellCount++;
+        }
+    }
+
+    /**
+     * Delimiter for a file name: tab for .tsv, comma otherwise
+     */
+    public static char delimiterFor(String path) {
+        return path.toLowerCase().endsWith(".tsv") ? '\t' : ',';
+    }
+
+    /**
+     * Export the whole used area of the sheet (A1 to the last populated row and column)
+     * Returns the number of rows written
+     */
+    public static long export(Spreadsheet sheet, Path path, char delimiter) throws IOException {
+        CellIndex index = sheet.getIndex();
+        return export(sheet, path, delimiter, 1, 1, index.getMaxCol(), index.getMaxRow());
+    }
+
+    /**
+     * Export a range given as "A1:C10", or open like "A:A", "3:3" or "A5:A"; open ends stop at
+     * the last populated row and column
+     */
+    public static long export(Spreadsheet sheet, Path path, char delimiter, String range) throws IOException {
+        int[] bounds = Range.bounds(range.replace("$", ""));
+        CellIndex index = sheet.getIndex();
+        int lastCol = bounds[4] != 0 ? Math.min(bounds[1], Math.max(bounds[0], index.getMaxCol())) : bounds[1];
+        int lastRow = bounds[4] != 0 ? Math.min(bounds[3], Math.max(bounds[2], index.getMaxRow())) : bounds[3];
+        return export(sheet, path, delimiter, bounds[0], bounds[2], lastCol, lastRow);
+    }
+
+    public static long export(Spreadsheet sheet, Path path, char delimiter,
+                              int firstCol, int firstRow, int lastCol, int lastRow) throws IOException {
+        if (delimiter == '"' || delimiter == '\n' || delimiter == '\r' || delimiter > 127) {
+            throw new IllegalArgumentException("Unsupported delimiter: " + delimiter);
+        }
+
+        int workers = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "value-exporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Deque<Future<ByteBuffer>> pending = new ArrayDeque<>();
+        long rows = 0;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (int row = firstRow; row <= lastRow; row += CHUNK_ROWS) {
+                Block block = evaluate(sheet, row, Math.min(lastRow, row + CHUNK_ROWS - 1), firstCol, lastCol);
+                pending.add(pool.submit(() -> format(block, firstCol, lastCol, (byte) delimiter)));
+                rows += block.rowCount;
+
+                if (pending.size() > 2 * workers) {
+                    write(channel, pending.poll());
+                }
+            }
+            while (!pending.isEmpty()) {
+                write(channel, pending.poll());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return rows;
+    }
+
+    /**
+     * Evaluate the populated cells of rows [firstRow, lastRow] (on the calling thread)
+     */
+    private static Block evaluate(Spreadsheet sheet, int firstRow, int lastRow, int firstCol, int lastCol) {
+        Block block = new Block();
+        block.firstRow = firstRow;
+        block.rowCount = lastRow - firstRow + 1;
+        block.rowEnds = new int[block.rowCount];
+
+        for (int i = 0; i < block.rowCount; i++) {
+            int row = firstRow + i;
+            for (int col : sheet.getIndex().columnsInRow(row, firstCol, lastCol)) {
+                Content content = sheet.getContent(col, row);
+                if (content instanceof NumericContent) {
+                    block.add(col, ((NumericContent) content).getNumber(), null);
+                } else if (content != null) {
+                    Object value = content.getValue();
+                    if (value instanceof Double) {
+                        block.add(col, (Double) value, null);
+                    } else if (value != null) {
+                        String text = value.toString();
+                        if (!text.isEmpty()) block.add(col, 0, text);
+                    }
+                }
+            }
+            block.rowEnds[i] = block.cellCount;
+        }
+        return block;
+    }
+
+    /**
+     * Format a block as delimited lines (runs on a worker thread)
+     */
+    private static ByteBuffer format(Block block, int firstCol, int lastCol, byte delimiter) {
+        ByteSink out = new ByteSink(block.rowCount * (lastCol - firstCol + 1) + block.cellCount * 8);
+        int cell = 0;
+
+        for (int i = 0; i < block.rowCount; i++) {
+            int col = firstCol;
+            for (; cell < block.rowEnds[i]; cell++) {
+                // Blank cells in between are empty fields
+                for (; col < block.cols[cell]; col++) {
+                    out.put(delimiter);
+                }
+                if (block.texts[cell] == null) {
+                    out.putDouble(block.numbers[cell]);
+                } else {
+                    out.putField(block.texts[cell], delimiter);
+                }
+            }
+            for (; col < lastCol; col++) {
+                out.put(delimiter);
+            }
+            out.put((byte) '\n');
+        }
+        return out.toBuffer();
+    }
+
+    private static void write(FileChannel channel, Future<ByteBuffer> future) throws IOException {
+        ByteBuffer buffer;
+        try {
+            buffer = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Export interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Error formatting values: " + e.getCause().getMessage(), e.getCause());
+        }
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Growable byte buffer with number and field formatting
+     */
+    private static class ByteSink {
+        private byte[] bytes;
+        private int length;
+
+        ByteSink(int capacity) {
+            bytes = new byte[Math.max(capacity, 64)];
+        }
+
+        void put(byte b) {
+            ensure(1);
+            bytes[length++] = b;
+        }
+
+        /**
+         * Same text as Double.toString; integral values below 10^7 are written digit by digit
+         */
+        void putDouble(double value) {
+            long integral = (long) value;
+            if (integral == value && Math.abs(integral) < 10_000_000L && !(integral == 0 && 1 / value < 0)) {
+                putLong(integral);
+                put((byte) '.');
+                put((byte) '0');
+            } else {
+                putAscii(Double.toString(value));
+            }
+        }
+
+        private void putLong(long value) {
+            ensure(20);
+            if (value < 0) {
+                bytes[length++] = '-';
+                value = -value;
+            }
+            int start = length;
+            do {
+                bytes[length++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value != 0);
+            // Digits were written backwards
+            for (int i = start, j = length - 1; i < j; i++, j--) {
+                byte tmp = bytes[i];
+                bytes[i] = bytes[j];
+                bytes[j] = tmp;
+            }
+        }
+
+        private void putAscii(String text) {
+            ensure(text.length());
+            for (int i = 0; i < text.length(); i++) {
+                bytes[length++] = (byte) text.charAt(i);
+            }
+        }
+
+        /**
+         * Write a text field, quoted if it contains the delimiter, a quote or a line break
+         */
+        void putField(String text, byte delimiter) {
+            boolean ascii = true;
+            boolean quote = false;
+            for (int i = 0; i < text.length(); i++) {
+                char ch = text.charAt(i);
+                if (ch > 127) ascii = false;
+                if (ch == delimiter || ch == '"' || ch == '\n' || ch == '\r') quote = true;
+            }
+
+            if (quote) {
+                text = '"' + text.replace("\"", "\"\"") + '"';
+            }
+            if (ascii) {
+                putAscii(text);
+            } else {
+                byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+                ensure(utf8.length);
+                System.arraycopy(utf8, 0, bytes, length, utf8.length);
+                length += utf8.length;
+            }
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+
+        ByteBuffer toBuffer() {
+            return ByteBuffer.wrap(bytes, 0, length);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Named sheets whose formulas can read each other: =Hoja2!A1*2, =SUMA('Ventas 2024'!B:B).
+ *
+ * Every sheet keeps its own cells and dependency graph, where a reference to another sheet is
+ * an external node ("HOJA2!A1"). After an edit the workbook follows those nodes to recalculate
+ * formulas of other sheets that read the changed cells, so sheets that do not read each other
+ * never touch each other's recalculation. calculateAll() recalculates groups of sheets that do
+ * not read each other on separate threads.
+ */
+public class Workbook {
+    public static final String EXTENSION = ".s2w";
+    public static final String DEFAULT_SHEET = "Hoja1";
+
+    // Sheets by upper-case name, in the order they were added
+    private final Map<String, Spreadsheet> sheets = new LinkedHashMap<>();
+
+    /**
+     * True for a path named like a workbook file
+     */
+    public static boolean isWorkbookName(String path) {
+        return path.toLowerCase().endsWith(EXTENSION);
+    }
+
+    /**
+     * Add a new empty sheet
+     */
+    public Spreadsheet addSheet(String name) {
+        return addSheet(name, new Spreadsheet());
+    }
+
+    /**
+     * Add an existing standalone sheet under the given name. Names are case-insensitive;
+     * names other than letters and digits are quoted in formulas: 'Ventas 2024'!A1
+     */
+    public Spreadsheet addSheet(String name, Spreadsheet sheet) {
+        if (name.isEmpty() || !name.equals(name.trim()) || name.indexOf('!') >= 0
+                || name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("Invalid sheet name: '" + name + "'");
+        }
+        if (sheets.containsKey(name.toUpperCase())) {
+            throw new IllegalArgumentException("Sheet already exists: " + name);
+        }
+        if (sheet.getWorkbook() != null) {
+            throw new IllegalArgumentException("Sheet already belongs to a workbook: " + sheet.getName());
+        }
+        sheet.attach(this, name);
+        sheets.put(name.toUpperCase(), sheet);
+        return sheet;
+    }
+
+    /**
+     * The sheet with the given name (any case), or null
+     */
+    public Spreadsheet getSheet(String name) {
+        return sheets.get(name.toUpperCase());
+    }
+
+    public List<Spreadsheet> getSheets() {
+        return new ArrayList<>(sheets.values());
+    }
+
+    /**
+     * True if setting 'coord' of 'sheet' to a formula reading 'references' (as collected by
+     * Spreadsheet.extractReferences) would close a cycle that passes through another sheet.
+     * Cycles within the sheet are found by its own DependencyManager.
+     */
+    boolean wouldCreateCycle(Spreadsheet sheet, String coord, Set<String> references) {
+        if (!isReadByOtherSheets(sheet)) {
+            return false; // A cycle leaving the sheet could never come back
+        }
+
+        Set<String> start = sheet.getDependencyManager().getAllDependents(coord);
+        start.add(coord);
+        Map<Spreadsheet, Set<String>> reached = new IdentityHashMap<>();
+        reached.put(sheet, start);
+        followOtherSheets(sheet, start, reached, null);
+
+        for (String reference : references) {
+            int bang = reference.indexOf('!');
+            Spreadsheet target = bang < 0 ? sheet : getSheet(reference.substring(0, bang));
+            Set<String> cells = reached.get(target);
+            if (cells == null) {
+                continue;
+            }
+            String local = reference.substring(bang + 1);
+            if (local.indexOf(':') < 0) {
+                if (cells.contains(local)) return true;
+                continue;
+            }
+            int[] bounds = Range.bounds(local);
+            for (String cell : cells) {
+                int col = FileSystem.columnNumber(cell), row = FileSystem.rowNumber(cell);
+                if (bounds[0] <= col && col <= bounds[1] && bounds[2] <= row && row <= bounds[3]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Recalculate the formulas of other sheets (and, through them, of this one) that read
+     * cells of 'sheet' which changed or were recalculated
+     */
+    void recalculateDependents(Spreadsheet sheet, Collection<String> changed, Set<String> dependents) throws Exception {
+        if (!isReadByOtherSheets(sheet) || (changed.isEmpty() && dependents.isEmpty())) {
+            return;
+        }
+        Set<String> start = new HashSet<>(dependents);
+        start.addAll(changed);
+        Map<Spreadsheet, Set<String>> reached = new IdentityHashMap<>();
+        reached.put(sheet, start);
+        followOtherSheets(sheet, start, reached, Spreadsheet::recalculateCells);
+    }
+
+    /**
+     * Receives cells of a sheet reached from another sheet
+     */
+    private interface Reached {
+        void accept(Spreadsheet sheet, Set<String> cells) throws Exception;
+    }
+
+    /**
+     * Breadth-first over sheets: from cells of one sheet to the cells of other sheets that
+     * depend on them, adding them to 'reached' and passing each newly reached set on
+     */
+    private void followOtherSheets(Spreadsheet sheet, Set<String> cells, Map<Spreadsheet, Set<String>> reached,
+                                   Reached visitor) {
+        Deque<Spreadsheet> sheetQueue = new ArrayDeque<>(List.of(sheet));
+        Deque<Set<String>> cellQueue = new ArrayDeque<>(List.of(cells));
+
+        while (!sheetQueue.isEmpty()) {
+            Spreadsheet from = sheetQueue.poll();
+            Set<String> changed = cellQueue.poll();
+            for (Spreadsheet other : sheets.values()) {
+                if (other == from) {
+                    continue;
+                }
+                Set<String> found = other.getDependencyManager().getDependentsOfSheetCells(from.getName(), changed);
+                Set<String> known = reached.computeIfAbsent(other, s -> new HashSet<>());
+                found.removeAll(known);
+                if (found.isEmpty()) {
+                    continue;
+                }
+                known.addAll(found);
+                if (visitor != null) {
+                    try {
+                        visitor.accept(other, found);
+                    } catch (RuntimeException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        throw new RuntimeException("Error recalculating sheet " + other.getName() + ": " + e.getMessage(), e);
+                    }
+                }
+                sheetQueue.add(other);
+                cellQueue.add(found);
+            }
+        }
+    }
+
+    private boolean isReadByOtherSheets(Spreadsheet sheet) {
+        for (Spreadsheet other : sheets.values()) {
+            if (other != sheet && other.getDependencyManager().referencesSheet(sheet.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sheets grouped so that no formula reads a sheet of another group
+     */
+    public List<List<Spreadsheet>> independentGroups() {
+        List<Spreadsheet> all = getSheets();
+        int[] parent = new int[all.size()];
+        for (int i = 0; i < parent.length; i++) parent[i] = i;
+
+        for (int i = 0; i < all.size(); i++) {
+            for (int j = 0; j < all.size(); j++) {
+                if (i != j && all.get(i).getDependencyManager().referencesSheet(all.get(j).getName())) {
+                    parent[find(parent, i)] = find(parent, j);
+                }
+            }
+        }
+
+        Map<Integer, List<Spreadsheet>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < all.size(); i++) {
+            groups.computeIfAbsent(find(parent, i), root -> new ArrayList<>()).add(all.get(i));
+        }
+        return new ArrayList<>(groups.values());
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /**
+     * Calculate all formulas of every sheet; independent groups of sheets run in parallel
+     */
+    public void calculateAll() throws Exception {
+        List<List<Spreadsheet>> groups = independentGroups();
+        if (groups.size() <= 1) {
+            for (Spreadsheet sheet : sheets.values()) {
+                sheet.calculateAll();
+            }
+            return;
+        }
+
+        int workers = Math.min(groups.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "workbook-recalc");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> pending = new ArrayList<>();
+            for (List<Spreadsheet> group : groups) {
+                pending.add(pool.submit(() -> {
+                    for (Spreadsheet sheet : group) {
+                        sheet.calculateAll();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : pending) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+/**
+ * Checks for CellChangePublisher. Plain Java, no test framework:
+ *
+ *   javac -d out code/src/*.java code/test/*.java && java -cp out CellChangePublisherTest
+ *
+ * Exits with status 1 on the first failed check.
+ */
+public class CellChangePublisherTest {
+    public static void main(String[] args) throws Exception {
+        openRanges();
+        System.out.println("CellChangePublisherTest: all checks passed");
+    }
+
+    /**
+     * Whole columns, whole rows and a column from a row down are valid subscription ranges
+     */
+    private static void openRanges() throws Exception {
+        Spreadsheet sheet = new Spreadsheet();
+        for (String coord : List.of("A1", "A900", "B3", "C4", "B5")) {
+            sheet.setCellContent(coord, "1");
+        }
+        CellChangePublisher publisher = new CellChangePublisher(sheet, Runnable::run);
+        List<String> column = subscribe(publisher, "A:A");
+        List<String> row = subscribe(publisher, "3:3");
+        List<String> halfOpen = subscribe(publisher, "b4:$B");
+
+        publisher.publish(List.of("A1", "A900", "B3", "C4", "B5"));
+        check(column.equals(List.of("A1", "A900")), "A:A received " + column);
+        check(row.equals(List.of("B3")), "3:3 received " + row);
+        check(halfOpen.equals(List.of("B5")), "B4:B received " + halfOpen);
+    }
+
+    /**
+     * Coordinates delivered to a subscriber of the range, in order
+     */
+    private static List<String> subscribe(CellChangePublisher publisher, String range) {
+        List<String> received = new ArrayList<>();
+        publisher.subscribe(range, new Flow.Subscriber<List<CellChange>>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(List<CellChange> changes) {
+                changes.forEach(change -> received.add(change.getCoordinate()));
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                check(false, range + " failed: " + error);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        return received;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            System.err.println("FAILED: " + message);
+            System.exit(1);
+        }
+    }
+}
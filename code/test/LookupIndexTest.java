@@ -0,0 +1,49 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Checks for LookupIndex. Plain Java, no test framework:
+ *
+ *   javac -d out code/src/*.java code/test/*.java && java -cp out LookupIndexTest
+ *
+ * Exits with status 1 on the first failed check.
+ */
+public class LookupIndexTest {
+    public static void main(String[] args) throws Exception {
+        criteriaFormulaInsideItsOwnColumn();
+        lookupInsideItsOwnColumn();
+        System.out.println("LookupIndexTest: all checks passed");
+    }
+
+    /**
+     * A CONTAR.SI in the column it searches is evaluated while that column's index is built
+     */
+    private static void criteriaFormulaInsideItsOwnColumn() throws Exception {
+        String output = runBatch("set A1 x\nset A2 y\nset A3 x\nset A4 =CONTAR.SI(A1:A3, \"x\")\n"
+                + "set A5 =SUMAR.SI(A1:A3, \"x\", B1:B3)\nset B1 2\nset B3 5\nget A4\nget A5\n"
+                + "set A2 x\nget A4\n");
+        check(output.equals("A4\t2.0\nA5\t7.0\nA4\t3.0\n"), "CONTAR.SI/SUMAR.SI in their own column: " + output);
+    }
+
+    private static void lookupInsideItsOwnColumn() throws Exception {
+        String output = runBatch("set A1 pear\nset B1 3\nset A2 =BUSCARV(\"pear\", A1:B1, 2)\n"
+                + "set C1 =CONTAR.SI(A1:A2, 3)\nget A2\nget C1\n");
+        check(output.equals("A2\t3.0\nC1\t1.0\n"), "BUSCARV in its own column: " + output);
+    }
+
+    private static String runBatch(String script) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int errors = new BatchRunner(new Spreadsheet(), out).run(new BufferedReader(new StringReader(script)));
+        check(errors == 0, "batch reported " + errors + " errors");
+        return out.toString(StandardCharsets.UTF_8).replace("\r\n", "\n");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            System.err.println("FAILED: " + message);
+            System.exit(1);
+        }
+    }
+}